@@ -1,16 +1,55 @@
 package de.marius_oe.cfs;
 
+import static de.marius_oe.cfs.configuration.Configuration.Key.SnapshotFolder;
+import static de.marius_oe.cfs.configuration.Configuration.Key.TargetFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.crypto.Cipher;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import de.marius_oe.cfs.configuration.Configuration;
+import de.marius_oe.cfs.cryption.KeyAgent;
+import de.marius_oe.cfs.cryption.KeyManager;
+import de.marius_oe.cfs.cryption.KeyRotator;
+import de.marius_oe.cfs.storage.SnapshotStore;
+
 public class CryptFileSync {
 
 	private static final Logger logger = LoggerFactory.getLogger(CryptFileSync.class);
 
+	/** Command which starts the key agent. */
+	private static final String COMMAND_AGENT = "agent";
+
+	/** Command which starts the synchronization daemon. */
+	private static final String COMMAND_DAEMON = "daemon";
+
+	/** Command which rotates the master key. */
+	private static final String COMMAND_ROTATE_KEY = "rotate-key";
+
+	/** Command which restores a snapshot into a folder. */
+	private static final String COMMAND_RESTORE = "restore";
+
+	/** Command which lists the snapshots. */
+	private static final String COMMAND_SNAPSHOTS = "snapshots";
+
+	/** Command which prints the status of a running daemon. */
+	private static final String COMMAND_STATUS = "status";
+
+	/** Command which stops a running daemon. */
+	private static final String COMMAND_STOP = "stop";
+
+	/** Command which stops a running key agent. */
+	private static final String COMMAND_STOP_AGENT = "stop-agent";
+
 	/**
 	 * Main class of this project.
 	 * 
@@ -22,6 +61,83 @@ public class CryptFileSync {
 			logger.warn("Please install the Java Cryptography Extension (JCE) Unlimited Strength Jurisdiction Policy.");
 			System.exit(0);
 		}
+
+		String command = args.length > 0 ? args[0] : "";
+		if (COMMAND_AGENT.equals(command)) {
+			new KeyAgent(KeyManager.instance().getKey()).run();
+		} else if (COMMAND_STOP_AGENT.equals(command)) {
+			if (!KeyAgent.stopAgent()) {
+				logger.info("No key agent is running.");
+			}
+		} else if (COMMAND_DAEMON.equals(command)) {
+			new SyncDaemon().run();
+		} else if (COMMAND_STATUS.equals(command)) {
+			String status = SyncDaemon.requestStatus();
+			System.out.println(status == null ? "No daemon is running." : status);
+		} else if (COMMAND_STOP.equals(command)) {
+			if (!SyncDaemon.stopDaemon()) {
+				logger.info("No daemon is running.");
+			}
+		} else if (COMMAND_ROTATE_KEY.equals(command)) {
+			rotateKey();
+		} else if (COMMAND_SNAPSHOTS.equals(command) || COMMAND_RESTORE.equals(command) && args.length == 3) {
+			try {
+				SnapshotStore snapshots = openSnapshots();
+				if (snapshots == null) {
+					logger.info("No snapshot folder is configured.");
+				} else if (COMMAND_SNAPSHOTS.equals(command)) {
+					snapshots.list().forEach(System.out::println);
+				} else {
+					snapshots.restore(args[1], Paths.get(args[2]));
+				}
+			} catch (IOException e) {
+				logger.error("Snapshots cannot be accessed - Reason: {}", e.getLocalizedMessage());
+			}
+		}
+	}
+
+	/**
+	 * Opens the configured snapshot store.
+	 *
+	 * @return the snapshot store or <code>null</code> if no snapshot folder is
+	 *         configured
+	 */
+	private static SnapshotStore openSnapshots() throws IOException {
+		String snapshotFolder = Configuration.get(SnapshotFolder);
+		if (snapshotFolder == null || snapshotFolder.trim().isEmpty()) {
+			return null;
+		}
+		return new SnapshotStore(Paths.get(snapshotFolder.trim()), KeyManager.instance().getNameKey(), ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Rotates the master key and rewraps the files in the target folder and
+	 * the snapshots. A running daemon would keep encrypting with the previous
+	 * key, so the daemon has to be stopped first.
+	 */
+	private static void rotateKey() {
+		if (SyncDaemon.requestStatus() != null) {
+			logger.error("Stop the daemon before rotating the key.");
+			return;
+		}
+
+		String targetFolder = Configuration.get(TargetFolder);
+		if (targetFolder == null || targetFolder.trim().isEmpty()) {
+			logger.error("No target folder is configured.");
+			return;
+		}
+
+		try {
+			List<Path> roots = new ArrayList<>();
+			roots.add(Paths.get(targetFolder.trim()));
+			SnapshotStore snapshots = openSnapshots();
+			if (snapshots != null) {
+				roots.add(snapshots.getObjectFolder());
+			}
+			KeyRotator.rotate(roots, Runtime.getRuntime().availableProcessors());
+		} catch (IOException | RuntimeException e) {
+			logger.error("Key cannot be rotated, run the command again to resume - Reason: {}", e.getLocalizedMessage());
+		}
 	}
 
 	/**
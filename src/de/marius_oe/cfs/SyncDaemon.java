@@ -0,0 +1,392 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs;
+
+import static de.marius_oe.cfs.configuration.Configuration.Key.ControlPort;
+import static de.marius_oe.cfs.configuration.Configuration.Key.ControlTokenFile;
+import static de.marius_oe.cfs.configuration.Configuration.Key.DrainTimeout;
+import static de.marius_oe.cfs.configuration.Configuration.Key.JournalCheckpointSize;
+import static de.marius_oe.cfs.configuration.Configuration.Key.JournalFile;
+import static de.marius_oe.cfs.configuration.Configuration.Key.SnapshotFolder;
+import static de.marius_oe.cfs.configuration.Configuration.Key.SnapshotInterval;
+import static de.marius_oe.cfs.configuration.Configuration.Key.SnapshotRetention;
+import static de.marius_oe.cfs.configuration.Configuration.Key.TargetFolder;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.marius_oe.cfs.configuration.Configuration;
+import de.marius_oe.cfs.configuration.ConfigurationSnapshot;
+import de.marius_oe.cfs.configuration.FolderPolicy;
+import de.marius_oe.cfs.cryption.CipherSelector;
+import de.marius_oe.cfs.cryption.CipherSuite;
+import de.marius_oe.cfs.cryption.FileNameCrypter;
+import de.marius_oe.cfs.cryption.KeyManager;
+import de.marius_oe.cfs.storage.LocalStorage;
+import de.marius_oe.cfs.storage.SnapshotStore;
+import de.marius_oe.cfs.sync.SyncEngine;
+import de.marius_oe.cfs.sync.SyncJournal;
+import de.marius_oe.cfs.sync.SyncOperation;
+import de.marius_oe.cfs.util.BufferPool;
+import de.marius_oe.cfs.util.LoopbackToken;
+import de.marius_oe.cfs.util.file.IgnoreMatcher;
+
+/**
+ * Long-running synchronization process. The keys, the cipher selection and
+ * the journal are loaded in parallel on startup. Already during the startup
+ * the daemon answers <code>status</code> and <code>stop</code> commands on
+ * the loopback interface from clients that present the random token of the
+ * control-token-file, like the {@link de.marius_oe.cfs.cryption.KeyAgent}.
+ * <p>
+ * On <code>stop</code> or when the JVM is terminated, the daemon stops the
+ * change detection and waits up to the drain timeout for the queued jobs.
+ * Jobs which are not done by then stay in the journal and are replayed on
+ * the next start.
+ * <p>
+ * If a snapshot folder is configured, the daemon periodically creates
+ * snapshots of the sync folders and removes the objects of snapshots which
+ * have exceeded the retention.
+ */
+public final class SyncDaemon implements Runnable {
+
+	private static final String COMMAND_STATUS = "status";
+	private static final String COMMAND_STOP = "stop";
+
+	private static final int CONNECT_TIMEOUT = 500;
+
+	private static final Logger logger = LoggerFactory.getLogger(SyncDaemon.class);
+
+	/**
+	 * Returns the status of a running daemon.
+	 *
+	 * @return the status or <code>null</code> if no daemon is running
+	 */
+	public static String requestStatus() {
+		try {
+			return send(COMMAND_STATUS);
+		} catch (IOException e) {
+			logger.debug("Daemon not available - Reason: {}", e.getLocalizedMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Sends a command to the daemon and returns its answer.
+	 *
+	 * @return the answer or <code>null</code> if no daemon is running
+	 */
+	private static String send(String command) throws IOException {
+		Socket connection = LoopbackToken.connect(tokenFile(), Configuration.getInt(ControlPort), CONNECT_TIMEOUT, command);
+		if (connection == null) {
+			return null;
+		}
+
+		try (Socket socket = connection) {
+			return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)).readLine();
+		}
+	}
+
+	/**
+	 * Asks a running daemon to stop. The daemon finishes its queued jobs
+	 * after the answer has been sent.
+	 *
+	 * @return <code>true</code> if a daemon was running
+	 */
+	public static boolean stopDaemon() {
+		try {
+			return send(COMMAND_STOP) != null;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private static Path tokenFile() {
+		return Paths.get(Configuration.get(ControlTokenFile));
+	}
+
+	private volatile CipherSuite cipher;
+
+	private volatile SyncEngine engine;
+
+	private SyncJournal journal;
+
+	private volatile boolean running = true;
+
+	private volatile ServerSocket serverSocket;
+
+	private final AtomicBoolean shutdown = new AtomicBoolean();
+
+	private ScheduledExecutorService snapshotTimer;
+
+	private SnapshotStore snapshots;
+
+	private final CountDownLatch shutdownDone = new CountDownLatch(1);
+
+	private volatile boolean started;
+
+	private volatile long startTime;
+
+	private final LoopbackToken token;
+
+	/**
+	 * Constructor.
+	 */
+	public SyncDaemon() {
+		token = new LoopbackToken(tokenFile());
+	}
+
+	/**
+	 * Handles a single client connection.
+	 */
+	private void handle(Socket socket) throws IOException {
+		socket.setSoTimeout(CONNECT_TIMEOUT);
+		BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+		Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+
+		String clientToken = in.readLine();
+		String command = in.readLine();
+		if (!token.matches(clientToken)) {
+			logger.warn("Rejected control request with invalid token.");
+			out.write("denied\n");
+		} else if (COMMAND_STOP.equals(command)) {
+			logger.info("Daemon has been stopped by a client.");
+			running = false;
+			out.write("stopping\n");
+		} else if (COMMAND_STATUS.equals(command) && !started) {
+			out.write(String.format("starting since %tF %<tT%n", new Date(startTime)));
+		} else if (COMMAND_STATUS.equals(command)) {
+			out.write(String.format("running since %tF %<tT, cipher %s, %d jobs queued, %d active%n", new Date(startTime), cipher,
+					engine.getScheduler().getQueuedCount(), engine.getScheduler().getActiveCount()));
+		} else {
+			out.write("unknown command\n");
+		}
+		out.flush();
+	}
+
+	@Override
+	public void run() {
+		try (ServerSocket serverSocket = new ServerSocket()) {
+			// binding first fails fast if a daemon is already running
+			serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), Configuration.getInt(ControlPort)));
+			this.serverSocket = serverSocket;
+			startTime = System.currentTimeMillis();
+
+			// clients see a starting daemon while the keys, the cipher
+			// selection and the journal are loaded
+			token.write();
+			Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "sync-daemon-shutdown"));
+			Thread control = new Thread(this::serve, "sync-daemon-control");
+			control.setDaemon(true);
+			control.start();
+
+			start();
+			started = true;
+			logger.info("Daemon started in {} ms, listening on port {}.", System.currentTimeMillis() - startTime, serverSocket.getLocalPort());
+			control.join();
+		} catch (IOException e) {
+			logger.error("Daemon cannot be started - Reason: {}", e.getLocalizedMessage());
+			throw new UncheckedIOException(e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			shutdown();
+		}
+	}
+
+	/**
+	 * Answers the control requests until the daemon is stopped.
+	 */
+	private void serve() {
+		ServerSocket serverSocket = this.serverSocket;
+		while (running) {
+			try (Socket socket = serverSocket.accept()) {
+				handle(socket);
+			} catch (IOException e) {
+				if (running) {
+					logger.debug("Control request failed - Reason: {}", e.getLocalizedMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stops the change detection, drains the queued jobs within the drain
+	 * timeout and closes the journal. Calls after the first one wait until
+	 * the first one is done.
+	 */
+	public void shutdown() {
+		if (!shutdown.compareAndSet(false, true)) {
+			try {
+				shutdownDone.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return;
+		}
+
+		running = false;
+		try {
+			ServerSocket socket = serverSocket;
+			if (socket != null) {
+				socket.close();
+				token.delete();
+			}
+
+			if (snapshotTimer != null) {
+				// an interrupted snapshot is not recorded, its objects are collected later
+				snapshotTimer.shutdownNow();
+			}
+
+			if (engine != null) {
+				Configuration.removeListener(engine);
+				long timeout = TimeUnit.SECONDS.toMillis(Configuration.getInt(DrainTimeout));
+				logger.info("Stopping, waiting up to {} ms for {} queued jobs.", timeout,
+						engine.getScheduler().getQueuedCount() + engine.getScheduler().getActiveCount());
+				engine.stop(timeout);
+			}
+			Configuration.stopWatching();
+			if (journal != null) {
+				journal.close();
+			}
+			logger.info("Daemon stopped.");
+		} catch (IOException e) {
+			logger.error("Daemon cannot be stopped cleanly - Reason: {}", e.getLocalizedMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			shutdownDone.countDown();
+		}
+	}
+
+	/**
+	 * Creates a snapshot of the sync folders, deletes the snapshots beyond the
+	 * retention and collects their objects.
+	 */
+	private void snapshot() {
+		ConfigurationSnapshot configuration = Configuration.snapshot();
+		try {
+			Map<Path, IgnoreMatcher> folders = new LinkedHashMap<>();
+			for (FolderPolicy policy : configuration.getFolderPolicies()) {
+				folders.put(policy.getPath(), IgnoreMatcher.load(policy.getPath(), policy.getIgnorePatterns()));
+			}
+			snapshots.create(folders);
+			if (snapshots.prune(configuration.getInt(SnapshotRetention)) > 0) {
+				snapshots.collectGarbage();
+			}
+		} catch (IOException | RuntimeException e) {
+			logger.error("Snapshot failed - Reason: {}", e.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Loads the keys, selects the cipher and opens the journal in parallel,
+	 * then starts the synchronization.
+	 */
+	private void start() throws IOException {
+		ConfigurationSnapshot configuration = Configuration.snapshot();
+		String targetFolder = configuration.get(TargetFolder);
+		if (targetFolder == null || targetFolder.trim().isEmpty()) {
+			throw new IOException("No target folder is configured.");
+		}
+		SyncJournal journal = new SyncJournal(Paths.get(configuration.get(JournalFile)), configuration.getInt(JournalCheckpointSize));
+
+		ExecutorService startup = Executors.newFixedThreadPool(3);
+		List<SyncOperation> pending;
+		try {
+			CompletableFuture<FileNameCrypter> keys = CompletableFuture.supplyAsync(FileNameCrypter::instance, startup);
+			CompletableFuture<CipherSuite> cipherSelection = CompletableFuture.supplyAsync(CipherSelector::select, startup);
+			CompletableFuture<List<SyncOperation>> journalReplay = CompletableFuture.supplyAsync(() -> {
+				try {
+					return journal.open();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}, startup);
+			BufferPool.shared();
+
+			CompletableFuture.allOf(keys, cipherSelection, journalReplay).join();
+			cipher = cipherSelection.join();
+			pending = journalReplay.join();
+		} catch (RuntimeException e) {
+			Throwable cause = e.getCause() != null ? e.getCause() : e;
+			if (cause instanceof UncheckedIOException) {
+				cause = cause.getCause();
+			}
+			IOException failure = cause instanceof IOException ? (IOException) cause : new IOException(cause.getLocalizedMessage(), cause);
+			try {
+				// the journal may have been opened although another step failed
+				journal.close();
+			} catch (IOException suppressed) {
+				failure.addSuppressed(suppressed);
+			}
+			throw failure;
+		} finally {
+			startup.shutdown();
+		}
+		// only an opened journal is closed on shutdown
+		this.journal = journal;
+
+		engine = new SyncEngine(configuration, journal, new LocalStorage(Paths.get(targetFolder.trim())));
+		Configuration.addListener(engine);
+		Configuration.startWatching();
+		engine.start(pending);
+
+		String snapshotFolder = configuration.get(SnapshotFolder);
+		if (snapshotFolder != null && !snapshotFolder.trim().isEmpty()) {
+			snapshots = new SnapshotStore(Paths.get(snapshotFolder.trim()), KeyManager.instance().getNameKey(), ForkJoinPool.commonPool());
+			snapshotTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "sync-snapshot");
+				thread.setDaemon(true);
+				return thread;
+			});
+			long interval = configuration.getInt(SnapshotInterval);
+			snapshotTimer.scheduleWithFixedDelay(this::snapshot, interval, interval, TimeUnit.MINUTES);
+		}
+	}
+}
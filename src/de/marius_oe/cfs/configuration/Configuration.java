@@ -25,16 +25,28 @@ package de.marius_oe.cfs.configuration;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Arrays;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import de.marius_oe.cfs.util.file.FileWatcher;
+import de.marius_oe.cfs.util.file.IFileListener;
+
 /**
+ * Access to the configuration file. The file is parsed into an immutable
+ * {@link ConfigurationSnapshot} which is replaced atomically when the file is
+ * reloaded, so readers never see a partially loaded configuration.
+ * <p>
+ * Entries can be overridden by system properties with the prefix
+ * <code>cfs.</code>, e.g. <code>-Dcfs.key_file=/secure/secret.key</code>.
  * 
  * @author Marius
  *
@@ -48,7 +60,52 @@ public final class Configuration implements Serializable {
 	 * Enumeration which represent the confiuration entries.
 	 */
 	public enum Key {
-		Algorithm("algorithm"), KeySize("key_size"), IvFile("initial_vector_file"), SecretKeyFile("key_file"), SyncFolders("sync_folders");
+		Algorithm("algorithm"),
+		KeySize("key_size"),
+		IvFile("initial_vector_file"),
+		SecretKeyFile("key_file"),
+		SyncFolders("sync_folders"),
+		NameCacheSize("name_cache_size"),
+		NameKeyFile("name_key_file"),
+		KeySource("key_source"),
+		KdfFile("kdf_file"),
+		KdfIterations("kdf_iterations"),
+		AgentPort("agent_port"),
+		AgentTimeout("agent_timeout"),
+		AgentTokenFile("agent_token_file"),
+		Compression("compression"),
+		Concurrency("concurrency"),
+		BandwidthLimit("bandwidth_limit"),
+		IgnorePatterns("ignore"),
+		ChangeDetection("change_detection"),
+		ScanIntervalMin("scan_interval_min"),
+		ScanIntervalMax("scan_interval_max"),
+		WatcherShards("watcher_shards"),
+		JournalFile("journal_file"),
+		JournalCheckpointSize("journal_checkpoint_size"),
+		Weight("weight"),
+		ReadLimit("read_limit"),
+		WriteLimit("write_limit"),
+		UploadLimit("upload_limit"),
+		IopsLimit("iops_limit"),
+		SmallFileSize("small_file_size"),
+		Pinned("pinned"),
+		LargeFileSize("large_file_size"),
+		SmallFileWorkers("small_file_workers"),
+		LargeFileWorkers("large_file_workers"),
+		RetryDelay("retry_delay"),
+		RetryAttempts("retry_attempts"),
+		BufferSize("buffer_size"),
+		BufferPoolLimit("buffer_pool_limit"),
+		Cipher("cipher"),
+		AllowedCiphers("allowed_ciphers"),
+		TargetFolder("target_folder"),
+		ControlPort("control_port"),
+		ControlTokenFile("control_token_file"),
+		DrainTimeout("drain_timeout"),
+		SnapshotFolder("snapshot_folder"),
+		SnapshotInterval("snapshot_interval"),
+		SnapshotRetention("snapshot_retention");
 
 		/*
 		 * The key that is used in the config-file
@@ -74,23 +131,36 @@ public final class Configuration implements Serializable {
 
 	private static final String defaultConfigurationFile = "res/config.properties";
 
+	/** Prefix of system properties which override configuration entries. */
+	private static final String SYSTEM_PROPERTY_PREFIX = "cfs.";
+
+	/**
+	 * Listeners which are notified about reloaded configurations.
+	 */
+	private static final List<IConfigurationListener> listeners = new CopyOnWriteArrayList<>();
+
 	private static final Logger logger = LoggerFactory.getLogger(Configuration.class);
 
 	/**
-	 * The loaded configuration.
+	 * The currently loaded configuration.
 	 */
-	private static Properties properties;
+	private static final AtomicReference<ConfigurationSnapshot> snapshot = new AtomicReference<>();
 
-	private static void load() {
-		logger.debug("Loading configuration file..");
-		properties = new Properties();
-		try {
-			properties.load(new FileInputStream(defaultConfigurationFile));
-		} catch (FileNotFoundException e) {
-			logger.error(e.getLocalizedMessage());
-		} catch (IOException e) {
-			logger.error(e.getLocalizedMessage());
-		}
+	/**
+	 * Watcher of the configuration file, <code>null</code> if the file is not
+	 * watched.
+	 */
+	private static FileWatcher watcher;
+
+	/**
+	 * Registers a listener which is notified when the configuration has been
+	 * reloaded.
+	 * 
+	 * @param listener
+	 *            the listener to register
+	 */
+	public static void addListener(IConfigurationListener listener) {
+		listeners.add(listener);
 	}
 
 	/**
@@ -101,10 +171,7 @@ public final class Configuration implements Serializable {
 	 * @return the value of the configuration entry
 	 */
 	public static String get(Key key) {
-		if (properties == null) {
-			load();
-		}
-		return properties.getProperty(key.getKey());
+		return snapshot().get(key);
 	}
 
 	/**
@@ -115,10 +182,7 @@ public final class Configuration implements Serializable {
 	 * @return the value of the configuration entry
 	 */
 	public static Integer getInt(Key key) {
-		if (properties == null) {
-			load();
-		}
-		return Integer.parseInt(properties.getProperty(key.getKey()));
+		return snapshot().getInt(key);
 	}
 
 	/**
@@ -128,7 +192,139 @@ public final class Configuration implements Serializable {
 	 * @return {@link Path} array containing folders to synchronize
 	 */
 	public static Path[] getSynchronizedFolders() {
-		String[] syncFolders = get(Key.SyncFolders).split(";");
-		return Arrays.stream(syncFolders).map(folder -> Paths.get(folder)).toArray(length -> new Path[length]);
+		return snapshot().getFolderPolicies().stream().map(FolderPolicy::getPath).toArray(length -> new Path[length]);
+	}
+
+	private static ConfigurationSnapshot load() throws IOException {
+		logger.debug("Loading configuration file..");
+		Properties properties = new Properties();
+		try (InputStream in = new FileInputStream(defaultConfigurationFile)) {
+			properties.load(in);
+		}
+		return new ConfigurationSnapshot(overrideBySystemProperties(properties));
+	}
+
+	/**
+	 * Replaces the entries which are set as system properties.
+	 */
+	private static Properties overrideBySystemProperties(Properties properties) {
+		for (Key key : Key.values()) {
+			String value = System.getProperty(SYSTEM_PROPERTY_PREFIX + key.getKey());
+			if (value != null) {
+				properties.setProperty(key.getKey(), value);
+			}
+		}
+		return properties;
+	}
+
+	/**
+	 * Reloads the configuration file and notifies the listeners. If the file
+	 * cannot be loaded, the current configuration is kept.
+	 * 
+	 * @return <code>true</code> if the configuration has been replaced
+	 */
+	public static boolean reload() {
+		ConfigurationSnapshot newSnapshot;
+		try {
+			newSnapshot = load();
+		} catch (IOException | IllegalArgumentException e) {
+			logger.error("Configuration cannot be reloaded, keeping the current one - Reason: {}", e.getLocalizedMessage());
+			return false;
+		}
+
+		snapshot.set(newSnapshot);
+		logger.info("Configuration has been reloaded.");
+		for (IConfigurationListener listener : listeners) {
+			listener.onConfigurationChange(newSnapshot);
+		}
+		return true;
+	}
+
+	/**
+	 * Unregisters the given listener.
+	 * 
+	 * @param listener
+	 *            the listener to unregister
+	 */
+	public static void removeListener(IConfigurationListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Returns the currently loaded configuration. The configuration file is
+	 * loaded on the first call.
+	 * 
+	 * @return the current configuration
+	 */
+	public static ConfigurationSnapshot snapshot() {
+		ConfigurationSnapshot current = snapshot.get();
+		if (current != null) {
+			return current;
+		}
+
+		synchronized (Configuration.class) {
+			current = snapshot.get();
+			if (current == null) {
+				try {
+					current = load();
+				} catch (FileNotFoundException e) {
+					logger.error(e.getLocalizedMessage());
+					current = new ConfigurationSnapshot(overrideBySystemProperties(new Properties()));
+				} catch (IOException e) {
+					logger.error(e.getLocalizedMessage());
+					current = new ConfigurationSnapshot(overrideBySystemProperties(new Properties()));
+				}
+				snapshot.set(current);
+			}
+			return current;
+		}
+	}
+
+	/**
+	 * Starts watching the configuration file. Changes are loaded
+	 * automatically without restarting the application.
+	 * 
+	 * @throws IOException
+	 *             if the directory of the configuration file cannot be watched
+	 */
+	public static synchronized void startWatching() throws IOException {
+		if (watcher != null) {
+			return;
+		}
+
+		final Path configFile = Paths.get(defaultConfigurationFile).toAbsolutePath();
+		watcher = new FileWatcher();
+		watcher.register(configFile.getParent());
+		watcher.registerFileListener(new IFileListener() {
+			@Override
+			public void onCreate(Path file) {
+				onModify(file);
+			}
+
+			@Override
+			public void onDelete(Path file) {
+			}
+
+			@Override
+			public void onModify(Path file) {
+				if (configFile.getFileName().equals(file.getFileName())) {
+					reload();
+				}
+			}
+		});
+
+		Thread thread = new Thread(watcher, "configuration-watcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops watching the configuration file.
+	 */
+	public static synchronized void stopWatching() {
+		if (watcher != null) {
+			watcher.stopWatching();
+			watcher = null;
+		}
 	}
 }
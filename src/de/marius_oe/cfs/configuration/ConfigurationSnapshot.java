@@ -0,0 +1,192 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs.configuration;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import de.marius_oe.cfs.configuration.Configuration.Key;
+import de.marius_oe.cfs.configuration.FolderPolicy.ChangeDetection;
+import de.marius_oe.cfs.configuration.FolderPolicy.Compression;
+
+/**
+ * Immutable, parsed state of the configuration file. Values are parsed once
+ * when the snapshot is created, a changed configuration file results in a new
+ * snapshot.
+ * <p>
+ * Sync folders are either listed in <code>sync_folders</code> and use the
+ * default policy, or are declared by name in <code>folders</code> with a
+ * <code>folder.&lt;name&gt;.path</code> entry and optional overrides like
+ * <code>folder.&lt;name&gt;.concurrency</code>. The folders are stored
+ * below their last path element, which therefore must differ between them.
+ */
+public final class ConfigurationSnapshot {
+
+	/** Key listing the names of sync folders with their own policy. */
+	private static final String FOLDER_NAMES_KEY = "folders";
+
+	/** Prefix of the keys of named sync folders. */
+	private static final String FOLDER_PREFIX = "folder.";
+
+	private static final int DEFAULT_CONCURRENCY = 2;
+
+	private final FolderPolicy defaultPolicy;
+
+	private final List<FolderPolicy> folderPolicies;
+
+	private final Map<Key, Integer> intValues;
+
+	private final Map<Key, String> values;
+
+	/**
+	 * Parses the given configuration entries.
+	 *
+	 * @param properties
+	 *            the configuration entries
+	 * @throws IllegalArgumentException
+	 *             if a policy entry is invalid or two sync folders have the
+	 *             same name
+	 */
+	public ConfigurationSnapshot(Properties properties) {
+		values = new EnumMap<>(Key.class);
+		intValues = new EnumMap<>(Key.class);
+		for (Key key : Key.values()) {
+			String value = properties.getProperty(key.getKey());
+			if (value == null) {
+				continue;
+			}
+			value = value.trim();
+			values.put(key, value);
+			try {
+				intValues.put(key, Integer.valueOf(value));
+			} catch (NumberFormatException e) {
+				// not a numeric entry
+			}
+		}
+
+		FolderPolicy builtIn = new FolderPolicy(null, Compression.ZIP, DEFAULT_CONCURRENCY, 0, Collections.<String> emptyList(),
+				ChangeDetection.WATCHER, 1, false);
+		defaultPolicy = FolderPolicy.parse(properties, "", null, builtIn);
+
+		List<FolderPolicy> policies = new ArrayList<>();
+		for (String folder : FolderPolicy.splitList(properties.getProperty(Key.SyncFolders.getKey(), ""))) {
+			policies.add(FolderPolicy.parse(new Properties(), "", Paths.get(folder).toAbsolutePath().normalize(), defaultPolicy));
+		}
+		for (String name : FolderPolicy.splitList(properties.getProperty(FOLDER_NAMES_KEY, ""))) {
+			String prefix = FOLDER_PREFIX + name + ".";
+			String path = properties.getProperty(prefix + "path");
+			if (path == null) {
+				throw new IllegalArgumentException("Missing entry " + prefix + "path");
+			}
+			policies.add(FolderPolicy.parse(properties, prefix, Paths.get(path.trim()).toAbsolutePath().normalize(), defaultPolicy));
+		}
+
+		// the folders are stored below their names in the target folder
+		Map<Path, Path> names = new HashMap<>();
+		for (FolderPolicy policy : policies) {
+			Path name = policy.getPath().getFileName();
+			if (name == null) {
+				throw new IllegalArgumentException("A sync folder needs a name: " + policy.getPath());
+			}
+			Path other = names.putIfAbsent(name, policy.getPath());
+			if (other != null) {
+				throw new IllegalArgumentException("Sync folders " + other + " and " + policy.getPath() + " have the same name " + name);
+			}
+		}
+		folderPolicies = Collections.unmodifiableList(policies);
+	}
+
+	/**
+	 * Returns a configuration value.
+	 *
+	 * @param key
+	 *            The key of the desired configuration entry
+	 * @return the value of the configuration entry or <code>null</code>
+	 */
+	public String get(Key key) {
+		return values.get(key);
+	}
+
+	/**
+	 * Returns the default policy which is used for paths outside of any sync
+	 * folder.
+	 *
+	 * @return the default policy
+	 */
+	public FolderPolicy getDefaultPolicy() {
+		return defaultPolicy;
+	}
+
+	/**
+	 * Returns the policies of all sync folders.
+	 *
+	 * @return unmodifiable list of folder policies
+	 */
+	public List<FolderPolicy> getFolderPolicies() {
+		return folderPolicies;
+	}
+
+	/**
+	 * Returns a numeric configuration value.
+	 *
+	 * @param key
+	 *            The key of the desired configuration entry
+	 * @return the value of the configuration entry
+	 * @throws NumberFormatException
+	 *             if the entry is missing or not numeric
+	 */
+	public Integer getInt(Key key) {
+		Integer value = intValues.get(key);
+		if (value == null) {
+			throw new NumberFormatException("Entry " + key.getKey() + " is not numeric: " + values.get(key));
+		}
+		return value;
+	}
+
+	/**
+	 * Returns the policy of the sync folder containing the given path. If
+	 * folders are nested, the innermost folder wins.
+	 *
+	 * @param path
+	 *            a path inside of a sync folder
+	 * @return the policy of the folder or the default policy
+	 */
+	public FolderPolicy getPolicy(Path path) {
+		FolderPolicy result = defaultPolicy;
+		int resultLength = -1;
+		for (FolderPolicy policy : folderPolicies) {
+			if (path.startsWith(policy.getPath()) && policy.getPath().getNameCount() > resultLength) {
+				result = policy;
+				resultLength = policy.getPath().getNameCount();
+			}
+		}
+		return result;
+	}
+}
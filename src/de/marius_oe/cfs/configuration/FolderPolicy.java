@@ -0,0 +1,198 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs.configuration;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.stream.Collectors;
+
+/**
+ * Immutable synchronization policy of a sync folder. Every value which is
+ * not overridden for a folder is taken from the global default policy.
+ */
+public final class FolderPolicy {
+
+	/**
+	 * Engines which detect changes in a sync folder.
+	 */
+	public enum ChangeDetection {
+		/** Events of the file system via {@link de.marius_oe.cfs.util.file.FileWatcher}. */
+		WATCHER,
+		/** Periodic scans via {@link de.marius_oe.cfs.util.file.PollingScanner}. */
+		SCANNER
+	}
+
+	/**
+	 * Compression codecs which can be applied before encryption.
+	 */
+	public enum Compression {
+		NONE, ZIP
+	}
+
+	/**
+	 * Parses the policy with the given key prefix. Missing entries are taken
+	 * from the given default policy.
+	 *
+	 * @param properties
+	 *            the configuration entries
+	 * @param prefix
+	 *            prefix of the policy keys, e.g. <code>folder.docs.</code>
+	 * @param path
+	 *            the folder of the policy
+	 * @param defaults
+	 *            the policy to inherit from
+	 * @return the parsed policy
+	 */
+	static FolderPolicy parse(Properties properties, String prefix, Path path, FolderPolicy defaults) {
+		String compression = properties.getProperty(prefix + Configuration.Key.Compression.getKey());
+		String concurrency = properties.getProperty(prefix + Configuration.Key.Concurrency.getKey());
+		String bandwidthLimit = properties.getProperty(prefix + Configuration.Key.BandwidthLimit.getKey());
+		String ignorePatterns = properties.getProperty(prefix + Configuration.Key.IgnorePatterns.getKey());
+		String changeDetection = properties.getProperty(prefix + Configuration.Key.ChangeDetection.getKey());
+		String weight = properties.getProperty(prefix + Configuration.Key.Weight.getKey());
+		String pinned = properties.getProperty(prefix + Configuration.Key.Pinned.getKey());
+
+		return new FolderPolicy(path,
+				compression == null ? defaults.compression : Compression.valueOf(compression.trim().toUpperCase()),
+				concurrency == null ? defaults.concurrency : Integer.parseInt(concurrency.trim()),
+				bandwidthLimit == null ? defaults.bandwidthLimit : Long.parseLong(bandwidthLimit.trim()),
+				ignorePatterns == null ? defaults.ignorePatterns : splitList(ignorePatterns),
+				changeDetection == null ? defaults.changeDetection : ChangeDetection.valueOf(changeDetection.trim().toUpperCase()),
+				weight == null ? defaults.weight : Integer.parseInt(weight.trim()),
+				pinned == null ? defaults.pinned : Boolean.parseBoolean(pinned.trim()));
+	}
+
+	/**
+	 * Splits a semicolon separated list and drops empty entries.
+	 */
+	static List<String> splitList(String value) {
+		return Collections.unmodifiableList(Arrays.stream(value.split(";")).map(String::trim).filter(entry -> !entry.isEmpty())
+				.collect(Collectors.toList()));
+	}
+
+	private final long bandwidthLimit;
+	private final ChangeDetection changeDetection;
+	private final Compression compression;
+	private final int concurrency;
+	private final List<String> ignorePatterns;
+	private final Path path;
+	private final boolean pinned;
+	private final int weight;
+
+	/**
+	 * Constructor.
+	 */
+	FolderPolicy(Path path, Compression compression, int concurrency, long bandwidthLimit, List<String> ignorePatterns,
+			ChangeDetection changeDetection, int weight, boolean pinned) {
+		if (weight <= 0) {
+			throw new IllegalArgumentException("Weight must be greater than zero: " + weight);
+		}
+		this.path = path;
+		this.compression = compression;
+		this.concurrency = concurrency;
+		this.bandwidthLimit = bandwidthLimit;
+		this.ignorePatterns = ignorePatterns;
+		this.changeDetection = changeDetection;
+		this.weight = weight;
+		this.pinned = pinned;
+	}
+
+	/**
+	 * Returns the maximum number of bytes per second, <code>0</code> if the
+	 * bandwidth is not limited.
+	 *
+	 * @return the bandwidth limit in bytes per second
+	 */
+	public long getBandwidthLimit() {
+		return bandwidthLimit;
+	}
+
+	/**
+	 * Returns the engine which detects changes in this folder.
+	 *
+	 * @return the change detection engine
+	 */
+	public ChangeDetection getChangeDetection() {
+		return changeDetection;
+	}
+
+	/**
+	 * Returns the compression codec applied before encryption.
+	 *
+	 * @return the compression codec
+	 */
+	public Compression getCompression() {
+		return compression;
+	}
+
+	/**
+	 * Returns the number of files of this folder processed in parallel.
+	 *
+	 * @return the concurrency
+	 */
+	public int getConcurrency() {
+		return concurrency;
+	}
+
+	/**
+	 * Returns the gitignore-style patterns of files which are not
+	 * synchronized.
+	 *
+	 * @return unmodifiable list of ignore patterns
+	 */
+	public List<String> getIgnorePatterns() {
+		return ignorePatterns;
+	}
+
+	/**
+	 * Returns the folder of this policy.
+	 *
+	 * @return the sync folder, <code>null</code> for the default policy
+	 */
+	public Path getPath() {
+		return path;
+	}
+
+	/**
+	 * Returns the share of the I/O capacity this folder gets relative to the
+	 * other folders.
+	 *
+	 * @return the weight
+	 */
+	public int getWeight() {
+		return weight;
+	}
+
+	/**
+	 * Returns whether the files of this folder are synchronized before the
+	 * files of other folders.
+	 *
+	 * @return <code>true</code> if the folder is pinned
+	 */
+	public boolean isPinned() {
+		return pinned;
+	}
+}
@@ -0,0 +1,141 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs.cryption;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.Provider;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * Decrypts a stream written by {@link AeadOutputStream}. Every segment is
+ * verified before any of its bytes are returned; modified or truncated
+ * streams fail with an {@link IOException}.
+ */
+final class AeadInputStream extends InputStream {
+
+	private static final int ENCRYPTED_SEGMENT_SIZE = AeadOutputStream.SEGMENT_SIZE + CipherSuite.TAG_LENGTH;
+
+	private final byte[] encrypted = new byte[ENCRYPTED_SEGMENT_SIZE + 1];
+	private final InputStream in;
+	private final Cipher cipher;
+	private final byte[] iv;
+	private final SecretKey key;
+	private boolean last;
+	/** Number of bytes of the next segment which have already been read. */
+	private int lookahead;
+	private final byte[] plain = new byte[AeadOutputStream.SEGMENT_SIZE];
+	private int plainLength;
+	private int position;
+	private long segment;
+	private final CipherSuite suite;
+
+	/**
+	 * Constructor.
+	 */
+	AeadInputStream(InputStream in, CipherSuite suite, SecretKey key, byte[] iv, Provider provider) throws GeneralSecurityException {
+		this.in = in;
+		this.suite = suite;
+		this.key = key;
+		this.iv = iv;
+		this.cipher = suite.createCipher(Cipher.DECRYPT_MODE, key, AeadOutputStream.nonce(iv, 0), provider);
+	}
+
+	@Override
+	public int available() {
+		return plainLength - position;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		while (position == plainLength) {
+			if (last) {
+				return -1;
+			}
+			readSegment();
+		}
+		int count = Math.min(len, plainLength - position);
+		System.arraycopy(plain, position, b, off, count);
+		position += count;
+		return count;
+	}
+
+	/**
+	 * Reads and verifies the next segment. A segment is the last one if the
+	 * stream ends before or right after it.
+	 */
+	private void readSegment() throws IOException {
+		int length = lookahead;
+		lookahead = 0;
+		while (length <= ENCRYPTED_SEGMENT_SIZE) {
+			int count = in.read(encrypted, length, ENCRYPTED_SEGMENT_SIZE + 1 - length);
+			if (count == -1) {
+				break;
+			}
+			length += count;
+		}
+
+		last = length <= ENCRYPTED_SEGMENT_SIZE;
+		if (!last) {
+			lookahead = length - ENCRYPTED_SEGMENT_SIZE;
+			length = ENCRYPTED_SEGMENT_SIZE;
+		}
+
+		try {
+			if (segment > 0) {
+				// the cipher has been initialized for the first segment
+				suite.init(cipher, Cipher.DECRYPT_MODE, key, AeadOutputStream.nonce(iv, segment));
+			}
+			cipher.updateAAD(new byte[] { (byte) (last ? 1 : 0) });
+			plainLength = cipher.doFinal(encrypted, 0, length, plain, 0);
+		} catch (AEADBadTagException e) {
+			throw new IOException("Segment " + segment + " has been modified or the stream is truncated.", e);
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Segment " + segment + " cannot be decrypted.", e);
+		}
+		position = 0;
+		segment++;
+
+		if (lookahead > 0) {
+			encrypted[0] = encrypted[ENCRYPTED_SEGMENT_SIZE];
+		}
+	}
+}
@@ -0,0 +1,131 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs.cryption;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.Provider;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * Encrypts a stream with an authenticated {@link CipherSuite} in segments.
+ * <p>
+ * Every segment holds {@link #SEGMENT_SIZE} plain bytes, only the last one
+ * may be shorter, and is followed by its authentication tag. The nonce of a
+ * segment is the iv of the header combined with the segment number, and the
+ * last segment is marked in its associated data, so reordered, removed or
+ * appended segments are detected by {@link AeadInputStream}.
+ */
+final class AeadOutputStream extends FilterOutputStream {
+
+	/** Number of plain bytes per segment. */
+	static final int SEGMENT_SIZE = 64 * 1024;
+
+	/**
+	 * Returns the nonce of the given segment.
+	 */
+	static byte[] nonce(byte[] iv, long segment) {
+		byte[] nonce = iv.clone();
+		for (int i = 0; i < 8; i++) {
+			nonce[nonce.length - 1 - i] ^= (byte) (segment >>> (8 * i));
+		}
+		return nonce;
+	}
+
+	private final byte[] buffer = new byte[SEGMENT_SIZE];
+	private int buffered;
+	private boolean closed;
+	private final byte[] encrypted = new byte[SEGMENT_SIZE + CipherSuite.TAG_LENGTH];
+	private final Cipher cipher;
+	private final byte[] iv;
+	private final SecretKey key;
+	private long segment;
+	private final CipherSuite suite;
+
+	/**
+	 * Constructor.
+	 */
+	AeadOutputStream(OutputStream out, CipherSuite suite, SecretKey key, byte[] iv, Provider provider) throws GeneralSecurityException {
+		super(out);
+		this.suite = suite;
+		this.key = key;
+		this.iv = iv;
+		// fails early if the key does not fit the suite
+		this.cipher = suite.createCipher(Cipher.ENCRYPT_MODE, key, nonce(iv, 0), provider);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		writeSegment(true);
+		out.close();
+	}
+
+	@Override
+	public void flush() throws IOException {
+		// only complete segments can be written
+		out.flush();
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (buffered == SEGMENT_SIZE) {
+				writeSegment(false);
+			}
+			int count = Math.min(len, SEGMENT_SIZE - buffered);
+			System.arraycopy(b, off, buffer, buffered, count);
+			buffered += count;
+			off += count;
+			len -= count;
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	private void writeSegment(boolean last) throws IOException {
+		try {
+			if (segment > 0) {
+				// the cipher has been initialized for the first segment
+				suite.init(cipher, Cipher.ENCRYPT_MODE, key, nonce(iv, segment));
+			}
+			cipher.updateAAD(new byte[] { (byte) (last ? 1 : 0) });
+			int length = cipher.doFinal(buffer, 0, buffered, encrypted, 0);
+			out.write(encrypted, 0, length);
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Segment " + segment + " cannot be encrypted.", e);
+		}
+		segment++;
+		buffered = 0;
+	}
+}
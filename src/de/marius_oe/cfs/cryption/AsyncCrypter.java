@@ -0,0 +1,173 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs.cryption;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.marius_oe.cfs.util.MeteredInputStream;
+import de.marius_oe.cfs.util.MeteredOutputStream;
+
+/**
+ * Non-blocking counterpart of {@link Crypter}. Every operation runs on the
+ * given executor and returns a {@link CompletableFuture} with the byte counts
+ * and timings, so stages like reading, encrypting and storing can be
+ * composed without blocking a thread per file.
+ * <p>
+ * The streams passed in are never closed, they are owned by the caller.
+ * Failures complete the future exceptionally with the original
+ * {@link IOException}. Cancelling a future aborts the operation at its next
+ * read or write.
+ */
+public final class AsyncCrypter {
+
+	/**
+	 * Encryption or decryption of a stream.
+	 */
+	@FunctionalInterface
+	private interface Operation {
+		void apply(InputStream inStream, OutputStream outStream) throws IOException;
+	}
+
+	private static final Logger logger = LoggerFactory.getLogger(AsyncCrypter.class);
+
+	private static volatile ExecutorService shared;
+
+	/**
+	 * Returns the pool shared by all crypters created without an executor. It
+	 * has one daemon thread per processor, further operations are queued.
+	 */
+	private static ExecutorService sharedExecutor() {
+		ExecutorService executor = shared;
+		if (executor == null) {
+			synchronized (AsyncCrypter.class) {
+				executor = shared;
+				if (executor == null) {
+					AtomicInteger threads = new AtomicInteger();
+					executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+						Thread thread = new Thread(runnable, "crypter-" + threads.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					});
+					shared = executor;
+				}
+			}
+		}
+		return executor;
+	}
+
+	private final Executor executor;
+
+	/**
+	 * Constructor using a shared pool with one thread per processor.
+	 */
+	public AsyncCrypter() {
+		this(sharedExecutor());
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param executor
+	 *            the executor running the operations
+	 */
+	public AsyncCrypter(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Decrypts the input stream into the output stream.
+	 *
+	 * @param inStream
+	 *            stream with the encrypted data
+	 * @param destinationStream
+	 *            stream for the decrypted data
+	 * @param compressStream
+	 *            whether the data was compressed before encryption
+	 * @return future of the result
+	 */
+	public CompletableFuture<CryptResult> decrypt(InputStream inStream, OutputStream destinationStream, boolean compressStream) {
+		return submit(inStream, destinationStream, (in, out) -> Crypter.decryptStream(in, out, compressStream));
+	}
+
+	/**
+	 * Encrypts the input stream into the output stream.
+	 *
+	 * @param inStream
+	 *            plain text stream
+	 * @param destinationStream
+	 *            stream for the encrypted data
+	 * @param compressStream
+	 *            whether the data should be compressed before encryption
+	 * @return future of the result
+	 */
+	public CompletableFuture<CryptResult> encrypt(InputStream inStream, OutputStream destinationStream, boolean compressStream) {
+		return submit(inStream, destinationStream, (in, out) -> Crypter.encryptStream(in, out, compressStream));
+	}
+
+	/**
+	 * Returns the executor running the operations. Further stages of a
+	 * pipeline, e.g. storing the encrypted file, can run on it with the
+	 * <code>*Async</code> methods of {@link CompletableFuture}.
+	 *
+	 * @return the executor
+	 */
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	private CompletableFuture<CryptResult> submit(InputStream inStream, OutputStream destinationStream, Operation operation) {
+		CompletableFuture<CryptResult> future = new CompletableFuture<>();
+		executor.execute(() -> {
+			if (future.isDone()) {
+				return;
+			}
+
+			long start = System.nanoTime();
+			MeteredInputStream in = new MeteredInputStream(inStream, future::isDone);
+			MeteredOutputStream out = new MeteredOutputStream(destinationStream, future::isDone);
+			try {
+				operation.apply(in, out);
+				out.flush();
+				CryptResult result = new CryptResult(in.getBytes(), out.getBytes(), in.getNanos(), out.getNanos(), System.nanoTime() - start);
+				logger.debug("Stream processed: {}", result);
+				future.complete(result);
+			} catch (IOException | RuntimeException e) {
+				if (!future.isCancelled()) {
+					logger.error("Stream processing failed - Reason: {}", e.getLocalizedMessage());
+				}
+				future.completeExceptionally(e);
+			}
+		});
+		return future;
+	}
+}
@@ -0,0 +1,296 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs.cryption;
+
+import static de.marius_oe.cfs.configuration.Configuration.Key.AllowedCiphers;
+import static de.marius_oe.cfs.configuration.Configuration.Key.KeySize;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.security.GeneralSecurityException;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.RuntimeMBeanException;
+import javax.management.openmbean.CompositeData;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.marius_oe.cfs.configuration.Configuration;
+
+/**
+ * Selects the {@link CipherSuite} for new files. With the configuration
+ * <code>cipher = auto</code> every allowed suite is benchmarked with every
+ * provider offering it and the fastest one is used. The fastest provider of
+ * each suite is used for decryption as well.
+ * <p>
+ * The benchmark only runs in {@link #select()}, which the daemon calls on
+ * startup. Until then the configured cipher is used, or the first allowed one
+ * with <code>cipher = auto</code>.
+ */
+public final class CipherSelector {
+
+	/** Value of the <code>cipher</code> entry which enables the benchmark. */
+	private static final String AUTO = "auto";
+
+	/** Name of the HotSpot diagnostic bean, which not every JVM offers. */
+	private static final String DIAGNOSTIC_BEAN = "com.sun.management:type=HotSpotDiagnostic";
+
+	/** Bytes encrypted per benchmark round. */
+	private static final int BENCHMARK_SIZE = 4 * 1024 * 1024;
+
+	/** Measured rounds per candidate, the fastest one counts. */
+	private static final int BENCHMARK_ROUNDS = 3;
+
+	/**
+	 * Time all candidates run before they are measured. The intrinsics are
+	 * only used once the JIT has compiled the cipher, which takes a while
+	 * especially for GCM.
+	 */
+	private static final long WARMUP_MILLIS = 1000;
+
+	/** Size of the writes during the benchmark. */
+	private static final int WRITE_SIZE = 64 * 1024;
+
+	private static final Logger logger = LoggerFactory.getLogger(CipherSelector.class);
+
+	private static volatile Map<CipherSuite, Provider> providers = Collections.emptyMap();
+
+	private static volatile CipherSuite selected;
+
+	/**
+	 * Measures the encryption throughput of a suite.
+	 *
+	 * @return the throughput of the fastest round in bytes per second
+	 */
+	static double benchmark(CipherSuite suite, Provider provider, SecretKey key, int rounds) throws GeneralSecurityException, IOException {
+		byte[] data = new byte[WRITE_SIZE];
+		long best = Long.MAX_VALUE;
+		for (int round = 0; round < rounds; round++) {
+			long start = System.nanoTime();
+			try (OutputStream out = suite.encrypt(new NullOutputStream(), key, suite.generateIv(), provider)) {
+				for (int written = 0; written < BENCHMARK_SIZE; written += WRITE_SIZE) {
+					out.write(data);
+				}
+			}
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		return BENCHMARK_SIZE * 1e9 / best;
+	}
+
+	/**
+	 * Returns the allowed suites in their configured order.
+	 */
+	private static List<CipherSuite> getAllowedSuites() {
+		List<CipherSuite> allowed = new ArrayList<>();
+		for (String name : Configuration.get(AllowedCiphers).split(";")) {
+			if (!name.trim().isEmpty()) {
+				allowed.add(CipherSuite.forName(name));
+			}
+		}
+		if (allowed.isEmpty()) {
+			throw new IllegalStateException("No cipher is allowed.");
+		}
+		return allowed;
+	}
+
+	/**
+	 * Returns the configured suite or <code>null</code> if it is selected by
+	 * the benchmark.
+	 */
+	private static CipherSuite getConfiguredSuite() {
+		String configured = Configuration.get(Configuration.Key.Cipher).trim();
+		return AUTO.equalsIgnoreCase(configured) ? null : CipherSuite.forName(configured);
+	}
+
+	/**
+	 * Returns the preferred provider of the given suite.
+	 *
+	 * @param suite
+	 *            the cipher suite
+	 * @return the provider, <code>null</code> for the default provider
+	 */
+	static Provider getProvider(CipherSuite suite) {
+		return providers.get(suite);
+	}
+
+	/**
+	 * Returns the suite for new files. Before {@link #select()} has been
+	 * called, this is the configured suite or the first allowed one.
+	 *
+	 * @return the suite for new files
+	 */
+	public static CipherSuite getSuite() {
+		CipherSuite suite = selected;
+		if (suite == null) {
+			suite = getConfiguredSuite();
+		}
+		return suite != null ? suite : getAllowedSuites().get(0);
+	}
+
+	/**
+	 * Returns the value of a VM option of the HotSpot diagnostic bean.
+	 */
+	private static String getVMOption(MBeanServer server, ObjectName diagnostics, String option) throws JMException {
+		CompositeData data = (CompositeData) server.invoke(diagnostics, "getVMOption", new Object[] { option },
+				new String[] { String.class.getName() });
+		return (String) data.get("value");
+	}
+
+	/**
+	 * Logs whether the JVM uses the AES instructions of the CPU. Without
+	 * them AES is several times slower.
+	 */
+	private static void logIntrinsics() {
+		try {
+			// looked up by name, the bean interface is not part of every JVM
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName diagnostics = new ObjectName(DIAGNOSTIC_BEAN);
+			String value;
+			try {
+				value = getVMOption(server, diagnostics, "UseAESIntrinsics");
+			} catch (RuntimeMBeanException e) {
+				// diagnostic options are only visible if unlocked
+				value = getVMOption(server, diagnostics, "UseAES");
+			}
+
+			if (Boolean.parseBoolean(value)) {
+				logger.info("AES instructions of the CPU are used.");
+			} else {
+				logger.warn("AES instructions of the CPU are not used, AES runs in software.");
+			}
+		} catch (JMException | RuntimeException e) {
+			logger.info("Usage of AES instructions cannot be determined - Reason: {}", e.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Selects the suite for new files according to the configuration entries
+	 * <code>cipher</code> and <code>allowed_ciphers</code>, running the
+	 * benchmark if needed. The selection is kept for later calls.
+	 *
+	 * @return the selected suite
+	 */
+	public static synchronized CipherSuite select() {
+		if (selected != null) {
+			return selected;
+		}
+		logIntrinsics();
+
+		CipherSuite configured = getConfiguredSuite();
+		if (configured != null) {
+			selected = configured;
+			logger.info("Using the configured cipher {}.", selected);
+			return selected;
+		}
+
+		List<CipherSuite> allowed = getAllowedSuites();
+
+		byte[] keyBytes = new byte[Configuration.getInt(KeySize) / 8];
+		new SecureRandom().nextBytes(keyBytes);
+		SecretKey key = new SecretKeySpec(keyBytes, "AES");
+
+		// all candidates are warmed up together, they share most of the code
+		Map<Provider, List<CipherSuite>> candidates = new LinkedHashMap<>();
+		for (CipherSuite suite : allowed) {
+			for (Provider provider : Security.getProviders()) {
+				try {
+					Cipher.getInstance(suite.getTransformation(), provider);
+					suite.encrypt(new NullOutputStream(), key, suite.generateIv(), provider).close();
+					candidates.computeIfAbsent(provider, p -> new ArrayList<>()).add(suite);
+				} catch (GeneralSecurityException | IOException e) {
+					logger.debug("Cipher {} of provider {} cannot be used - Reason: {}", suite, provider.getName(), e.getLocalizedMessage());
+				}
+			}
+		}
+
+		long warmupEnd = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WARMUP_MILLIS);
+		try {
+			while (System.nanoTime() < warmupEnd) {
+				for (Map.Entry<Provider, List<CipherSuite>> entry : candidates.entrySet()) {
+					for (CipherSuite suite : entry.getValue()) {
+						benchmark(suite, entry.getKey(), key, 1);
+					}
+				}
+			}
+		} catch (GeneralSecurityException | IOException e) {
+			throw new IllegalStateException("Cipher benchmark failed.", e);
+		}
+
+		Map<CipherSuite, Provider> fastestProviders = new EnumMap<>(CipherSuite.class);
+		Map<CipherSuite, Double> throughputs = new EnumMap<>(CipherSuite.class);
+		for (Map.Entry<Provider, List<CipherSuite>> entry : candidates.entrySet()) {
+			for (CipherSuite suite : entry.getValue()) {
+				double throughput;
+				try {
+					throughput = benchmark(suite, entry.getKey(), key, BENCHMARK_ROUNDS);
+				} catch (GeneralSecurityException | IOException e) {
+					throw new IllegalStateException("Cipher benchmark failed.", e);
+				}
+				logger.info("Cipher {} of provider {}: {} MB/s", suite, entry.getKey().getName(), Math.round(throughput / (1024 * 1024)));
+				if (throughput > throughputs.getOrDefault(suite, 0d)) {
+					throughputs.put(suite, throughput);
+					fastestProviders.put(suite, entry.getKey());
+				}
+			}
+		}
+
+		CipherSuite fastest = null;
+		for (Map.Entry<CipherSuite, Double> entry : throughputs.entrySet()) {
+			if (fastest == null || entry.getValue() > throughputs.get(fastest)) {
+				fastest = entry.getKey();
+			}
+		}
+		if (fastest == null) {
+			throw new IllegalStateException("None of the allowed ciphers " + allowed + " is available.");
+		}
+
+		providers = fastestProviders;
+		selected = fastest;
+		logger.info("Using cipher {} of provider {} for new files.", fastest, fastestProviders.get(fastest).getName());
+		return fastest;
+	}
+
+	/**
+	 * Hidden constructor.
+	 */
+	private CipherSelector() {
+	}
+}
@@ -0,0 +1,253 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs.cryption;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * Ciphers new files can be encrypted with. The id of the suite is stored in
+ * the {@link CryptoHeader} of every file.
+ * <p>
+ * Authenticated suites encrypt the stream in segments of
+ * {@link AeadOutputStream#SEGMENT_SIZE} bytes, so neither encryption nor
+ * decryption has to hold a whole file in memory.
+ */
+public enum CipherSuite {
+
+	AES_CBC(0, "aes-cbc", "AES/CBC/PKCS5Padding", 16, false),
+	AES_CTR(1, "aes-ctr", "AES/CTR/NoPadding", 16, false),
+	AES_GCM(2, "aes-gcm", "AES/GCM/NoPadding", 12, true),
+	CHACHA20_POLY1305(3, "chacha20-poly1305", "ChaCha20-Poly1305", 12, true);
+
+	/** Length of the authentication tag of the authenticated suites. */
+	static final int TAG_LENGTH = 16;
+
+	private static final SecureRandom random = new SecureRandom();
+
+	/**
+	 * Returns the suite with the given id.
+	 *
+	 * @param id
+	 *            the id stored in a header
+	 * @return the suite
+	 * @throws IllegalArgumentException
+	 *             if the id is unknown
+	 */
+	public static CipherSuite byId(int id) {
+		for (CipherSuite suite : values()) {
+			if (suite.id == id) {
+				return suite;
+			}
+		}
+		throw new IllegalArgumentException("Unknown cipher id: " + id);
+	}
+
+	/**
+	 * Returns the suite with the given name, e.g. <code>aes-gcm</code>.
+	 *
+	 * @param name
+	 *            the name used in the configuration
+	 * @return the suite
+	 * @throws IllegalArgumentException
+	 *             if the name is unknown
+	 */
+	public static CipherSuite forName(String name) {
+		for (CipherSuite suite : values()) {
+			if (suite.name.equalsIgnoreCase(name.trim())) {
+				return suite;
+			}
+		}
+		throw new IllegalArgumentException("Unknown cipher: " + name);
+	}
+
+	private final boolean authenticated;
+	private final int id;
+	private final int ivLength;
+	private final String name;
+	private final String transformation;
+
+	private CipherSuite(int id, String name, String transformation, int ivLength, boolean authenticated) {
+		this.id = id;
+		this.name = name;
+		this.transformation = transformation;
+		this.ivLength = ivLength;
+		this.authenticated = authenticated;
+	}
+
+	/**
+	 * Returns a cipher of this suite initialized with the given key and iv.
+	 *
+	 * @param mode
+	 *            {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}
+	 * @param key
+	 *            the key of the cipher
+	 * @param iv
+	 *            the iv or nonce
+	 * @param provider
+	 *            the provider of the cipher, <code>null</code> for the
+	 *            preferred provider
+	 * @return the initialized cipher
+	 * @throws GeneralSecurityException
+	 *             if the cipher is not available or the key does not fit
+	 */
+	Cipher createCipher(int mode, SecretKey key, byte[] iv, Provider provider) throws GeneralSecurityException {
+		Cipher cipher = provider == null ? Cipher.getInstance(transformation) : Cipher.getInstance(transformation, provider);
+		init(cipher, mode, key, iv);
+		return cipher;
+	}
+
+	/**
+	 * Returns a stream which decrypts the given stream.
+	 *
+	 * @param in
+	 *            the encrypted data following the header
+	 * @param key
+	 *            the data key
+	 * @param iv
+	 *            the iv of the header
+	 * @return the decrypting stream
+	 * @throws GeneralSecurityException
+	 *             if the cipher is not available or the key does not fit
+	 */
+	InputStream decrypt(InputStream in, SecretKey key, byte[] iv) throws GeneralSecurityException {
+		return decrypt(in, key, iv, CipherSelector.getProvider(this));
+	}
+
+	/**
+	 * Returns a stream which decrypts the given stream using the given
+	 * provider, <code>null</code> for the preferred provider.
+	 */
+	InputStream decrypt(InputStream in, SecretKey key, byte[] iv, Provider provider) throws GeneralSecurityException {
+		if (authenticated) {
+			return new AeadInputStream(in, this, key, iv, provider);
+		}
+		return new CipherInputStream(in, createCipher(Cipher.DECRYPT_MODE, key, iv, provider));
+	}
+
+	/**
+	 * Returns a stream which encrypts into the given stream. Closing it
+	 * writes the final block and closes the given stream.
+	 *
+	 * @param out
+	 *            the destination following the header
+	 * @param key
+	 *            the data key
+	 * @param iv
+	 *            the iv of the header
+	 * @return the encrypting stream
+	 * @throws GeneralSecurityException
+	 *             if the cipher is not available or the key does not fit
+	 */
+	OutputStream encrypt(OutputStream out, SecretKey key, byte[] iv) throws GeneralSecurityException {
+		return encrypt(out, key, iv, CipherSelector.getProvider(this));
+	}
+
+	/**
+	 * Returns a stream which encrypts into the given stream using the given
+	 * provider, <code>null</code> for the preferred provider.
+	 */
+	OutputStream encrypt(OutputStream out, SecretKey key, byte[] iv, Provider provider) throws GeneralSecurityException {
+		if (authenticated) {
+			return new AeadOutputStream(out, this, key, iv, provider);
+		}
+		return new CipherOutputStream(out, createCipher(Cipher.ENCRYPT_MODE, key, iv, provider));
+	}
+
+	/**
+	 * Returns a new random iv of the length this suite needs.
+	 *
+	 * @return the iv
+	 */
+	byte[] generateIv() {
+		byte[] iv = new byte[ivLength];
+		random.nextBytes(iv);
+		return iv;
+	}
+
+	/**
+	 * Returns the id which is stored in the header.
+	 *
+	 * @return the id
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * Returns the name used in the configuration.
+	 *
+	 * @return the name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the JCE transformation of this suite.
+	 *
+	 * @return the transformation
+	 */
+	public String getTransformation() {
+		return transformation;
+	}
+
+	/**
+	 * Returns whether this suite detects modified data.
+	 *
+	 * @return <code>true</code> for authenticated encryption
+	 */
+	public boolean isAuthenticated() {
+		return authenticated;
+	}
+
+	/**
+	 * Initializes a cipher of this suite again, e.g. for the next segment.
+	 */
+	void init(Cipher cipher, int mode, SecretKey key, byte[] iv) throws GeneralSecurityException {
+		cipher.init(mode, key, parameters(iv));
+	}
+
+	private AlgorithmParameterSpec parameters(byte[] iv) {
+		if (this == AES_GCM) {
+			return new GCMParameterSpec(TAG_LENGTH * 8, iv);
+		}
+		return new IvParameterSpec(iv);
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
@@ -0,0 +1,119 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs.cryption;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Immutable outcome of an encryption or decryption by the
+ * {@link AsyncCrypter}.
+ */
+public final class CryptResult {
+
+	private final long bytesRead;
+	private final long bytesWritten;
+	private final long readNanos;
+	private final long totalNanos;
+	private final long writeNanos;
+
+	/**
+	 * Constructor.
+	 */
+	CryptResult(long bytesRead, long bytesWritten, long readNanos, long writeNanos, long totalNanos) {
+		this.bytesRead = bytesRead;
+		this.bytesWritten = bytesWritten;
+		this.readNanos = readNanos;
+		this.writeNanos = writeNanos;
+		this.totalNanos = totalNanos;
+	}
+
+	/**
+	 * Returns the number of bytes read from the source stream.
+	 *
+	 * @return the byte count
+	 */
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	/**
+	 * Returns the number of bytes written to the destination stream.
+	 *
+	 * @return the byte count
+	 */
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	/**
+	 * Returns the time spent compressing and encrypting or decrypting and
+	 * decompressing, that is the total time without the time spent in the
+	 * source and destination streams.
+	 *
+	 * @param unit
+	 *            the unit of the returned time
+	 * @return the processing time
+	 */
+	public long getCryptTime(TimeUnit unit) {
+		return unit.convert(totalNanos - readNanos - writeNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Returns the time spent reading the source stream.
+	 *
+	 * @param unit
+	 *            the unit of the returned time
+	 * @return the read time
+	 */
+	public long getReadTime(TimeUnit unit) {
+		return unit.convert(readNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Returns the time from the start of the operation until it was done.
+	 *
+	 * @param unit
+	 *            the unit of the returned time
+	 * @return the total time
+	 */
+	public long getTotalTime(TimeUnit unit) {
+		return unit.convert(totalNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Returns the time spent writing the destination stream.
+	 *
+	 * @param unit
+	 *            the unit of the returned time
+	 * @return the write time
+	 */
+	public long getWriteTime(TimeUnit unit) {
+		return unit.convert(writeNanos, TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d -> %d bytes in %d ms (read %d ms, write %d ms)", bytesRead, bytesWritten, getTotalTime(TimeUnit.MILLISECONDS),
+				getReadTime(TimeUnit.MILLISECONDS), getWriteTime(TimeUnit.MILLISECONDS));
+	}
+}
@@ -22,20 +22,21 @@
  */
 package de.marius_oe.cfs.cryption;
 
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
+import java.security.GeneralSecurityException;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
-import javax.crypto.Cipher;
-import javax.crypto.CipherInputStream;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.SecretKey;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -52,37 +53,40 @@ public class Crypter {
 	}
 
 	/**
-	 * Returns the {@link Cipher} for the encryption and decryption process.
-	 * 
-	 * @param mode
-	 *            {@link Cipher.DECRYPT_MODE} or {@link Cipher.ENCRYPT_MODE}
-	 * @param iv
-	 *            the initial vector which should be used in the cipher. if the
-	 *            iv is <code>null</code>, a new iv will be generated.
-	 * @return {@link Cipher} object
+	 * Reads the header of an encrypted stream and returns a stream which
+	 * decrypts the remaining data. Streams of the legacy format, which start
+	 * with the iv and are encrypted by the master key directly, are supported
+	 * as well.
 	 */
-	private static Cipher getCipher(int mode, byte[] iv) {
+	private static InputStream openDecryption(InputStream inStream) throws IOException {
+		int firstByte = inStream.read();
+		if (firstByte == -1) {
+			throw new EOFException("Stream does not contain a header.");
+		}
+
 		try {
-			Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-			if (iv == null) {
-				cipher.init(mode, KeyManager.instance().getKey());
-			} else {
-				IvParameterSpec parameterSpec = new IvParameterSpec(iv);
-				cipher.init(mode, KeyManager.instance().getKey(), parameterSpec);
+			if (!CryptoHeader.isSupported(firstByte)) {
+				logger.debug("Reading legacy header.");
+				byte[] iv = new byte[firstByte];
+				IOUtils.readFully(inStream, iv);
+				return CipherSuite.AES_CBC.decrypt(inStream, KeyManager.instance().getKey(), iv);
 			}
-			return cipher;
-		} catch (InvalidKeyException e) {
-			e.printStackTrace();
-			throw new RuntimeException(e);
-		} catch (NoSuchAlgorithmException e) {
-			e.printStackTrace();
-			throw new RuntimeException(e);
-		} catch (NoSuchPaddingException e) {
-			e.printStackTrace();
-			throw new RuntimeException(e);
-		} catch (InvalidAlgorithmParameterException e) {
-			e.printStackTrace();
-			throw new RuntimeException(e);
+
+			CryptoHeader header = CryptoHeader.read(new DataInputStream(inStream), firstByte);
+			SecretKey masterKey = KeyManager.instance().getKey();
+			if (header.keyFingerprint != KeyManager.fingerprint(masterKey)) {
+				SecretKey previousKey = KeyManager.instance().getPreviousKey();
+				if (previousKey == null || header.keyFingerprint != KeyManager.fingerprint(previousKey)) {
+					throw new IOException("Data key has been wrapped by an unknown master key.");
+				}
+				masterKey = previousKey;
+			}
+
+			SecretKey dataKey = KeyManager.unwrapKey(masterKey, header.wrappedKey);
+			logger.debug("Decrypt InputStream with cipher {}.", header.suite);
+			return header.suite.decrypt(inStream, dataKey, header.iv);
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Stream cannot be decrypted.", e);
 		}
 	}
 
@@ -99,33 +103,8 @@ public class Crypter {
 	 *            whether the stream was compressed before encryption
 	 */
 	public static void decrypt(InputStream inStream, OutputStream destinationStream, boolean compressStream) {
-		logger.debug("decrypting inputstream - compressed: {}", compressStream);
-
 		try {
-			// reading iv of stream
-			int ivLength = inStream.read();
-			byte[] iv = new byte[ivLength];
-			inStream.read(iv);
-
-			logger.debug("Decrypt InputStream.");
-			inStream = new CipherInputStream(inStream, getCipher(Cipher.DECRYPT_MODE, iv));
-
-			if (compressStream) {
-				logger.debug("Decompress InputStream.");
-
-				try {
-					inStream = new ZipInputStream(inStream);
-					((ZipInputStream) inStream).getNextEntry();
-				} catch (IOException e) {
-					logger.debug("Error occured during unzipping - Reason: {}", e.getLocalizedMessage());
-					throw new RuntimeException(e);
-				}
-			}
-
-			// copy stream
-			int bytesCopied = IOUtils.copy(inStream, destinationStream);
-
-			logger.debug("decryption done. copied {} decrypted bytes to the outputstream", bytesCopied);
+			decryptStream(inStream, destinationStream, compressStream);
 
 			inStream.close();
 			destinationStream.close();
@@ -135,6 +114,31 @@ public class Crypter {
 		}
 	}
 
+	/**
+	 * Decrypts the given input stream into the destination stream. Neither
+	 * stream is closed.
+	 *
+	 * @return the number of decrypted bytes
+	 */
+	static long decryptStream(InputStream inStream, OutputStream destinationStream, boolean compressStream) throws IOException {
+		logger.debug("decrypting inputstream - compressed: {}", compressStream);
+
+		// reading header of stream
+		inStream = openDecryption(inStream);
+
+		if (compressStream) {
+			logger.debug("Decompress InputStream.");
+			inStream = new ZipInputStream(inStream);
+			((ZipInputStream) inStream).getNextEntry();
+		}
+
+		// copy stream
+		long bytesCopied = StreamUtils.transfer(inStream, destinationStream);
+
+		logger.debug("decryption done. copied {} decrypted bytes to the outputstream", bytesCopied);
+		return bytesCopied;
+	}
+
 	/**
 	 * Encrypts the given input stream and stores the encrypted data in the
 	 * destinationFile.
@@ -147,36 +151,68 @@ public class Crypter {
 	 *            whether the data should be compressed before encryption
 	 */
 	public static void encrypt(InputStream inStream, OutputStream destinationStream, boolean compressStream) {
-		logger.debug("encrypting inputstream - compressed: {}", compressStream);
-
-		InputStream tempInputStream;
+		try {
+			encryptStream(inStream, destinationStream, compressStream);
 
-		if (compressStream) {
-			logger.debug("Compress InputStream.");
-			tempInputStream = StreamUtils.zipStream(inStream);
-		} else {
-			tempInputStream = inStream;
+			inStream.close();
+			destinationStream.close();
+		} catch (IOException e) {
+			logger.error("Encryption failed - Reason: {}", e.getLocalizedMessage());
+			throw new RuntimeException(e);
 		}
+	}
 
-		Cipher cipher = getCipher(Cipher.ENCRYPT_MODE, null);
+	/**
+	 * Encrypts the given input stream into the destination stream. Neither
+	 * stream is closed.
+	 *
+	 * @return the number of plain bytes
+	 */
+	static long encryptStream(InputStream inStream, OutputStream destinationStream, boolean compressStream) throws IOException {
+		return encryptStream(inStream, destinationStream, compressStream, KeyManager.instance().getKey());
+	}
 
-		logger.debug("Encrypt InputStream.");
-		tempInputStream = new CipherInputStream(tempInputStream, cipher);
+	/**
+	 * Encrypts the given input stream into the destination stream with a
+	 * data key wrapped by the given master key. Neither stream is closed.
+	 *
+	 * @return the number of plain bytes
+	 */
+	static long encryptStream(InputStream inStream, OutputStream destinationStream, boolean compressStream, SecretKey masterKey) throws IOException {
+		logger.debug("encrypting inputstream - compressed: {}", compressStream);
 
-		try {
-			// write iv to the beginning of the stream
-			destinationStream.write((byte) cipher.getIV().length);
-			destinationStream.write(cipher.getIV());
+		// every stream gets its own data key which is wrapped by the master key
+		CipherSuite suite = CipherSelector.getSuite();
+		SecretKey dataKey = KeyManager.instance().generateDataKey();
+		CryptoHeader header = new CryptoHeader(suite, KeyManager.fingerprint(masterKey), KeyManager.wrapKey(masterKey, dataKey), suite.generateIv());
 
-			int bytesCopied = IOUtils.copy(tempInputStream, destinationStream);
+		// write header to the beginning of the stream
+		header.write(destinationStream);
 
-			logger.debug("encryption done. copied {} encrypted bytes to the outputstream", bytesCopied);
+		logger.debug("Encrypt InputStream with cipher {}.", suite);
+		// closing the cipher stream writes the final block but must not close
+		// the destination
+		OutputStream tempOutputStream;
+		try {
+			tempOutputStream = suite.encrypt(new CloseShieldOutputStream(destinationStream), dataKey, header.iv);
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Stream cannot be encrypted with " + suite + ".", e);
+		}
 
-			tempInputStream.close();
-			destinationStream.close();
-		} catch (IOException e) {
-			logger.error("Encryption failed - Reason: {}", e.getLocalizedMessage());
-			throw new RuntimeException(e);
+		if (compressStream) {
+			// compressing in the same thread needs no pipe and only one
+			// buffer per stream
+			logger.debug("Compress InputStream.");
+			ZipOutputStream zipStream = new ZipOutputStream(tempOutputStream);
+			zipStream.setLevel(Deflater.BEST_COMPRESSION);
+			zipStream.putNextEntry(new ZipEntry("entry"));
+			tempOutputStream = zipStream;
 		}
+
+		long bytesCopied = StreamUtils.transfer(inStream, tempOutputStream);
+		tempOutputStream.close();
+
+		logger.debug("encryption done. copied {} plain bytes to the outputstream", bytesCopied);
+		return bytesCopied;
 	}
 }
@@ -0,0 +1,164 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs.cryption;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Header at the beginning of every encrypted stream. It contains the cipher
+ * suite, the data key of the stream wrapped by the master key, the
+ * fingerprint of that master key and the initial vector.
+ * <p>
+ * Layout: version (1 byte), cipher id (1 byte, since version 3), key
+ * fingerprint (4 bytes), length of the wrapped key (1 byte), wrapped key,
+ * length of the iv (1 byte), iv. Version 2 headers have no cipher id and
+ * belong to {@link CipherSuite#AES_CBC} streams. The length of the header only
+ * depends on the key size, so a header can be rewrapped in place.
+ */
+final class CryptoHeader {
+
+	/** Maximum length of a header in bytes. */
+	static final int MAX_LENGTH = 1 + 1 + 4 + 1 + 255 + 1 + 255;
+
+	/**
+	 * Version of the header format. Legacy streams start with the length of
+	 * the iv instead, which is never equal to a supported version.
+	 */
+	static final int VERSION = 3;
+
+	/** Version of headers without cipher id. */
+	private static final int VERSION_WITHOUT_CIPHER = 2;
+
+	/**
+	 * Returns whether the first byte of a stream is the version of a
+	 * supported header format.
+	 *
+	 * @param version
+	 *            the first byte of the stream
+	 * @return <code>true</code> if the header can be read
+	 */
+	static boolean isSupported(int version) {
+		return version == VERSION || version == VERSION_WITHOUT_CIPHER;
+	}
+
+	/**
+	 * Reads a header whose version byte has already been consumed.
+	 *
+	 * @param in
+	 *            stream positioned after the version byte
+	 * @param version
+	 *            the consumed version byte
+	 * @return the read header
+	 * @throws IOException
+	 *             if the header cannot be read
+	 */
+	static CryptoHeader read(DataInputStream in, int version) throws IOException {
+		CipherSuite suite = CipherSuite.AES_CBC;
+		if (version >= VERSION) {
+			int id = in.readUnsignedByte();
+			try {
+				suite = CipherSuite.byId(id);
+			} catch (IllegalArgumentException e) {
+				throw new IOException(e.getMessage(), e);
+			}
+		}
+		int keyFingerprint = in.readInt();
+		byte[] wrappedKey = new byte[in.readUnsignedByte()];
+		in.readFully(wrappedKey);
+		byte[] iv = new byte[in.readUnsignedByte()];
+		in.readFully(iv);
+		return new CryptoHeader(version, suite, keyFingerprint, wrappedKey, iv);
+	}
+
+	final byte[] iv;
+	final int keyFingerprint;
+	final CipherSuite suite;
+	final int version;
+	final byte[] wrappedKey;
+
+	/**
+	 * Constructor of a header in the current format.
+	 */
+	CryptoHeader(CipherSuite suite, int keyFingerprint, byte[] wrappedKey, byte[] iv) {
+		this(VERSION, suite, keyFingerprint, wrappedKey, iv);
+	}
+
+	private CryptoHeader(int version, CipherSuite suite, int keyFingerprint, byte[] wrappedKey, byte[] iv) {
+		this.version = version;
+		this.suite = suite;
+		this.keyFingerprint = keyFingerprint;
+		this.wrappedKey = wrappedKey;
+		this.iv = iv;
+	}
+
+	/**
+	 * Returns the length of this header in bytes.
+	 *
+	 * @return length of this header
+	 */
+	int length() {
+		return 1 + (version >= VERSION ? 1 : 0) + 4 + 1 + wrappedKey.length + 1 + iv.length;
+	}
+
+	/**
+	 * Returns a copy of this header whose data key is wrapped by the new
+	 * master key. The version is kept, so the length does not change.
+	 *
+	 * @param oldKey
+	 *            the master key which wrapped the data key
+	 * @param newKey
+	 *            the new master key
+	 * @return the rewrapped header
+	 */
+	CryptoHeader rewrap(SecretKey oldKey, SecretKey newKey) {
+		SecretKey dataKey = KeyManager.unwrapKey(oldKey, wrappedKey);
+		return new CryptoHeader(version, suite, KeyManager.fingerprint(newKey), KeyManager.wrapKey(newKey, dataKey), iv);
+	}
+
+	/**
+	 * Writes this header including the version byte.
+	 *
+	 * @param out
+	 *            destination of the header
+	 * @throws IOException
+	 *             if the header cannot be written
+	 */
+	void write(OutputStream out) throws IOException {
+		DataOutputStream dataOut = new DataOutputStream(out);
+		dataOut.writeByte(version);
+		if (version >= VERSION) {
+			dataOut.writeByte(suite.getId());
+		}
+		dataOut.writeInt(keyFingerprint);
+		dataOut.writeByte(wrappedKey.length);
+		dataOut.write(wrappedKey);
+		dataOut.writeByte(iv.length);
+		dataOut.write(iv);
+		dataOut.flush();
+	}
+}
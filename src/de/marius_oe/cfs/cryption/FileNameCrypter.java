@@ -0,0 +1,294 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs.cryption;
+
+import static de.marius_oe.cfs.configuration.Configuration.Key.NameCacheSize;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Base64;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.marius_oe.cfs.configuration.Configuration;
+
+/**
+ * Deterministic encryption of file and directory names. Every path component
+ * is encrypted on its own in a SIV-like construction: the synthetic iv is the
+ * truncated HMAC of the plain name and is used as the counter of an AES-CTR
+ * encryption. Equal names therefore always map to equal encrypted names,
+ * which allows lookups in an encrypted tree without a separate index.
+ * <p>
+ * Encrypted paths are cached in a LRU map, so repeated events in the same
+ * directories only cost a map lookup. A cache miss only encrypts the last
+ * path component because the parent path is resolved through the cache as
+ * well.
+ */
+public final class FileNameCrypter {
+
+	private static final String CIPHER_TRANSFORMATION = "AES/CTR/NoPadding";
+
+	private static FileNameCrypter instance;
+
+	private static final Logger logger = LoggerFactory.getLogger(FileNameCrypter.class);
+
+	private static final String MAC_ALGORITHM = "HmacSHA256";
+
+	/**
+	 * Maximum length of a plain name in bytes, so the encrypted name stays
+	 * within the limit of 255 characters of common file systems.
+	 */
+	public static final int MAX_NAME_LENGTH = 175;
+
+	/** Length of the synthetic iv in bytes. */
+	private static final int SIV_LENGTH = 16;
+
+	/**
+	 * Returns the singleton of this class.
+	 *
+	 * @return singleton of this class
+	 */
+	public static synchronized FileNameCrypter instance() {
+		if (instance == null) {
+			instance = new FileNameCrypter(KeyManager.instance().getNameKey(), Configuration.getInt(NameCacheSize));
+		}
+		return instance;
+	}
+
+	/** Cache of encrypted paths to plain paths. */
+	private final LruCache<Path, Path> decryptionCache;
+
+	/** Cache of plain paths to encrypted paths. */
+	private final LruCache<Path, Path> encryptionCache;
+
+	/** Key for the encryption of the names. */
+	private final SecretKey encryptionKey;
+
+	/** Key for the synthetic iv. */
+	private final SecretKey macKey;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param key
+	 *            the key the name keys are derived from
+	 * @param cacheSize
+	 *            the maximum number of cached paths per direction
+	 */
+	FileNameCrypter(SecretKey key, int cacheSize) {
+		byte[] keyBytes = key.getEncoded();
+		macKey = new SecretKeySpec(deriveKey(keyBytes, "cfs-name-mac", keyBytes.length), MAC_ALGORITHM);
+		encryptionKey = new SecretKeySpec(deriveKey(keyBytes, "cfs-name-enc", keyBytes.length), "AES");
+		encryptionCache = new LruCache<>(cacheSize);
+		decryptionCache = new LruCache<>(cacheSize);
+	}
+
+	/**
+	 * Derives a sub key from the given key.
+	 *
+	 * @param keyBytes
+	 *            the key to derive from
+	 * @param purpose
+	 *            label of the derived key
+	 * @param length
+	 *            length of the derived key in bytes
+	 * @return the derived key bytes
+	 */
+	private static byte[] deriveKey(byte[] keyBytes, String purpose, int length) {
+		try {
+			Mac mac = Mac.getInstance(MAC_ALGORITHM);
+			mac.init(new SecretKeySpec(keyBytes, MAC_ALGORITHM));
+			return Arrays.copyOf(mac.doFinal(purpose.getBytes(StandardCharsets.UTF_8)), length);
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Decrypts a name that was encrypted by {@link #encryptName(String)}.
+	 *
+	 * @param encryptedName
+	 *            the encrypted name
+	 * @return the plain name
+	 * @throws IllegalArgumentException
+	 *             if the name was not encrypted with the current key
+	 */
+	public String decryptName(String encryptedName) {
+		byte[] data = Base64.decodeBase64(encryptedName);
+		if (data.length < SIV_LENGTH) {
+			throw new IllegalArgumentException("Not an encrypted name: " + encryptedName);
+		}
+
+		byte[] siv = Arrays.copyOf(data, SIV_LENGTH);
+		byte[] plain = crypt(Cipher.DECRYPT_MODE, siv, Arrays.copyOfRange(data, SIV_LENGTH, data.length));
+
+		if (!MessageDigest.isEqual(siv, syntheticIv(plain))) {
+			throw new IllegalArgumentException("Name was not encrypted with the current key: " + encryptedName);
+		}
+		return new String(plain, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Decrypts a relative path that was encrypted by
+	 * {@link #encryptPath(Path)}.
+	 *
+	 * @param encryptedPath
+	 *            the encrypted relative path
+	 * @return the plain relative path
+	 */
+	public Path decryptPath(Path encryptedPath) {
+		return translate(encryptedPath, decryptionCache, false);
+	}
+
+	/**
+	 * Encrypts the given name. The result only contains characters which are
+	 * valid in file names (URL-safe Base64 without padding). Note that the
+	 * encrypted name is about 4/3 of the plain name plus 22 characters long,
+	 * so plain names are limited to {@link #MAX_NAME_LENGTH} bytes.
+	 *
+	 * @param name
+	 *            the plain name
+	 * @return the encrypted name
+	 * @throws IllegalArgumentException
+	 *             if the name is too long to be encrypted
+	 */
+	public String encryptName(String name) {
+		byte[] plain = name.getBytes(StandardCharsets.UTF_8);
+		if (plain.length > MAX_NAME_LENGTH) {
+			throw new IllegalArgumentException("Name is longer than " + MAX_NAME_LENGTH + " bytes and cannot be encrypted: " + name);
+		}
+		byte[] siv = syntheticIv(plain);
+		byte[] encrypted = crypt(Cipher.ENCRYPT_MODE, siv, plain);
+
+		byte[] data = Arrays.copyOf(siv, SIV_LENGTH + encrypted.length);
+		System.arraycopy(encrypted, 0, data, SIV_LENGTH, encrypted.length);
+		return Base64.encodeBase64URLSafeString(data);
+	}
+
+	/**
+	 * Encrypts every component of the given relative path.
+	 *
+	 * @param path
+	 *            the plain relative path
+	 * @return the encrypted relative path
+	 */
+	public Path encryptPath(Path path) {
+		return translate(path, encryptionCache, true);
+	}
+
+	/**
+	 * Runs the cipher on the given data.
+	 */
+	private byte[] crypt(int mode, byte[] siv, byte[] data) {
+		try {
+			Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
+			cipher.init(mode, encryptionKey, new IvParameterSpec(siv));
+			return cipher.doFinal(data);
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Calculates the synthetic iv of the given plain name.
+	 */
+	private byte[] syntheticIv(byte[] plain) {
+		try {
+			Mac mac = Mac.getInstance(MAC_ALGORITHM);
+			mac.init(macKey);
+			return Arrays.copyOf(mac.doFinal(plain), SIV_LENGTH);
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Translates the given path component by component. The parent path is
+	 * resolved through the cache, so only the last component has to be
+	 * translated on a cache miss.
+	 */
+	private Path translate(Path path, LruCache<Path, Path> cache, boolean encrypt) {
+		if (path.isAbsolute()) {
+			throw new IllegalArgumentException("Only relative paths can be translated: " + path);
+		}
+
+		Path result = cache.get(path);
+		if (result != null) {
+			return result;
+		}
+
+		String name = path.getFileName().toString();
+		String translatedName = encrypt ? encryptName(name) : decryptName(name);
+
+		Path parent = path.getParent();
+		if (parent == null) {
+			result = path.getFileSystem().getPath(translatedName);
+		} else {
+			result = translate(parent, cache, encrypt).resolve(translatedName);
+		}
+
+		logger.trace("Translated path {} to {}", path, result);
+		cache.put(path, result);
+		return result;
+	}
+
+	/**
+	 * Synchronized map which drops the least recently used entry when it
+	 * exceeds its capacity.
+	 */
+	private static class LruCache<K, V> {
+
+		private final Map<K, V> map;
+
+		LruCache(final int capacity) {
+			map = new LinkedHashMap<K, V>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+					return size() > capacity;
+				}
+			};
+		}
+
+		synchronized V get(K key) {
+			return map.get(key);
+		}
+
+		synchronized void put(K key, V value) {
+			map.put(key, value);
+		}
+	}
+}
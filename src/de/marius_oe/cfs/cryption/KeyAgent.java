@@ -0,0 +1,242 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs.cryption;
+
+import static de.marius_oe.cfs.configuration.Configuration.Key.AgentPort;
+import static de.marius_oe.cfs.configuration.Configuration.Key.AgentTimeout;
+import static de.marius_oe.cfs.configuration.Configuration.Key.AgentTokenFile;
+import static de.marius_oe.cfs.configuration.Configuration.Key.KdfFile;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.marius_oe.cfs.configuration.Configuration;
+import de.marius_oe.cfs.util.LoopbackToken;
+
+/**
+ * Local agent which holds the derived master key in memory, so short-lived
+ * invocations don't have to run the slow key derivation again. The agent
+ * listens on the loopback interface and only answers clients that present the
+ * random token from the agent-token-file, which is only readable by the
+ * owner. The key is wiped and the agent stops when it has not been used for
+ * the configured timeout.
+ */
+public final class KeyAgent implements Runnable {
+
+	private static final String COMMAND_KEY = "key";
+	private static final String COMMAND_STOP = "stop";
+
+	private static final int CONNECT_TIMEOUT = 500;
+
+	private static final Logger logger = LoggerFactory.getLogger(KeyAgent.class);
+
+	private static final int STATUS_DENIED = 0;
+	private static final int STATUS_OK = 1;
+
+	/**
+	 * Requests the master key from a running agent. The key is only accepted
+	 * if it matches the check value of the kdf-file, so a stale agent or a
+	 * foreign service on the agent port cannot hand out a wrong key.
+	 *
+	 * @return the master key or <code>null</code> if no agent is running or
+	 *         the key of the agent does not match the kdf-file
+	 */
+	public static SecretKey requestKey() {
+		return requestKey(Paths.get(Configuration.get(KdfFile)));
+	}
+
+	/**
+	 * Requests the master key from a running agent and verifies it against
+	 * the given kdf-file.
+	 */
+	static SecretKey requestKey(Path kdfFile) {
+		try {
+			Socket socket = send(COMMAND_KEY);
+			if (socket == null) {
+				return null;
+			}
+			try (DataInputStream in = new DataInputStream(socket.getInputStream())) {
+				if (in.readUnsignedByte() != STATUS_OK) {
+					logger.warn("Key agent denied the request.");
+					return null;
+				}
+				byte[] keyBytes = new byte[in.readUnsignedShort()];
+				in.readFully(keyBytes);
+				SecretKey key = new SecretKeySpec(keyBytes, in.readUTF());
+				Arrays.fill(keyBytes, (byte) 0);
+
+				if (!KeyDerivation.verifyKey(key, kdfFile)) {
+					logger.warn("Key of the key agent does not match the kdf-file {} and is ignored.", kdfFile);
+					return null;
+				}
+				logger.debug("Received key from agent.");
+				return key;
+			} finally {
+				socket.close();
+			}
+		} catch (IOException e) {
+			logger.debug("Key agent not available - Reason: {}", e.getLocalizedMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Connects to the agent and sends the given command.
+	 *
+	 * @return the connected socket or <code>null</code> if no agent is running
+	 */
+	private static Socket send(String command) throws IOException {
+		return LoopbackToken.connect(tokenFile(), Configuration.getInt(AgentPort), CONNECT_TIMEOUT, command);
+	}
+
+	/**
+	 * Stops a running agent.
+	 *
+	 * @return <code>true</code> if an agent was running
+	 */
+	public static boolean stopAgent() {
+		try {
+			Socket socket = send(COMMAND_STOP);
+			if (socket == null) {
+				return false;
+			}
+			socket.close();
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private static Path tokenFile() {
+		return Paths.get(Configuration.get(AgentTokenFile));
+	}
+
+	private final String algorithm;
+
+	private final byte[] keyBytes;
+
+	private volatile boolean running = true;
+
+	private final long timeout;
+
+	private final LoopbackToken token;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param key
+	 *            the key which is handed out by the agent
+	 */
+	public KeyAgent(SecretKey key) {
+		keyBytes = key.getEncoded();
+		algorithm = key.getAlgorithm();
+		timeout = TimeUnit.SECONDS.toMillis(Configuration.getInt(AgentTimeout));
+		token = new LoopbackToken(tokenFile());
+	}
+
+	/**
+	 * Handles a single client connection.
+	 *
+	 * @return <code>true</code> if the client requested the key
+	 */
+	private boolean handle(Socket socket) throws IOException {
+		socket.setSoTimeout(CONNECT_TIMEOUT);
+		BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+		DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+
+		String clientToken = in.readLine();
+		String command = in.readLine();
+		if (!token.matches(clientToken)) {
+			logger.warn("Rejected key request with invalid token.");
+			out.writeByte(STATUS_DENIED);
+			return false;
+		}
+
+		if (COMMAND_STOP.equals(command)) {
+			logger.info("Key agent has been stopped by a client.");
+			running = false;
+			return false;
+		}
+
+		out.writeByte(STATUS_OK);
+		out.writeShort(keyBytes.length);
+		out.write(keyBytes);
+		out.writeUTF(algorithm);
+		out.flush();
+		return true;
+	}
+
+	@Override
+	public void run() {
+		try (ServerSocket serverSocket = new ServerSocket()) {
+			serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), Configuration.getInt(AgentPort)));
+			token.write();
+			logger.info("Key agent listening on port {}, timeout {} s.", serverSocket.getLocalPort(), TimeUnit.MILLISECONDS.toSeconds(timeout));
+
+			long lastUse = System.currentTimeMillis();
+			while (running) {
+				long remaining = lastUse + timeout - System.currentTimeMillis();
+				if (remaining <= 0) {
+					logger.info("Key agent timed out.");
+					break;
+				}
+
+				serverSocket.setSoTimeout((int) Math.min(remaining, Integer.MAX_VALUE));
+				try (Socket socket = serverSocket.accept()) {
+					if (handle(socket)) {
+						lastUse = System.currentTimeMillis();
+					}
+				} catch (SocketTimeoutException e) {
+					continue;
+				} catch (IOException e) {
+					logger.debug("Key request failed - Reason: {}", e.getLocalizedMessage());
+				}
+			}
+		} catch (IOException e) {
+			logger.error("Key agent cannot be started - Reason: {}", e.getLocalizedMessage());
+			throw new RuntimeException(e);
+		} finally {
+			Arrays.fill(keyBytes, (byte) 0);
+			token.delete();
+		}
+	}
+}
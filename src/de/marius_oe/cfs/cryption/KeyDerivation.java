@@ -0,0 +1,281 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs.cryption;
+
+import static de.marius_oe.cfs.configuration.Configuration.Key.Algorithm;
+import static de.marius_oe.cfs.configuration.Configuration.Key.KdfFile;
+import static de.marius_oe.cfs.configuration.Configuration.Key.KdfIterations;
+import static de.marius_oe.cfs.configuration.Configuration.Key.KeySize;
+
+import java.io.Console;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Properties;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.marius_oe.cfs.configuration.Configuration;
+
+/**
+ * Derives the master key from a passphrase using PBKDF2. The salt, the
+ * iteration count and a check value to detect wrong passphrases are stored in
+ * the kdf-file. The iteration count of new kdf-files is taken from the
+ * configuration, existing files keep the count they have been created with.
+ */
+public final class KeyDerivation {
+
+	/** Environment variable which may contain the passphrase. */
+	public static final String PASSPHRASE_VARIABLE = "CFS_PASSPHRASE";
+
+	private static final String CHECK_LABEL = "cfs-passphrase-check";
+
+	private static final String KDF_ALGORITHM = "PBKDF2WithHmacSHA256";
+
+	private static final Logger logger = LoggerFactory.getLogger(KeyDerivation.class);
+
+	private static final String PROPERTY_CHECK = "check";
+	private static final String PROPERTY_ITERATIONS = "iterations";
+	private static final String PROPERTY_SALT = "salt";
+
+	private static final int SALT_LENGTH = 16;
+
+	/**
+	 * Calculates the check value of the given key.
+	 */
+	private static String checkValue(SecretKey key) throws GeneralSecurityException {
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec(key.getEncoded(), "HmacSHA256"));
+		return Hex.encodeHexString(mac.doFinal(CHECK_LABEL.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	/**
+	 * Creates a new kdf-file with a random salt and derives the master key
+	 * from the given passphrase. An existing kdf-file is replaced.
+	 *
+	 * @param passphrase
+	 *            the passphrase
+	 * @return the derived master key
+	 */
+	public static SecretKey createKey(char[] passphrase) {
+		return createKey(passphrase, Paths.get(Configuration.get(KdfFile)));
+	}
+
+	/**
+	 * Creates the given kdf-file with a random salt and derives the master
+	 * key from the given passphrase.
+	 */
+	static SecretKey createKey(char[] passphrase, Path kdfFile) {
+		byte[] salt = new byte[SALT_LENGTH];
+		new SecureRandom().nextBytes(salt);
+		int iterations = Configuration.getInt(KdfIterations);
+
+		logger.info("Creating kdf-file {} with {} iterations.", kdfFile, iterations);
+		try {
+			SecretKey key = derive(passphrase, salt, iterations);
+
+			Properties properties = new Properties();
+			properties.setProperty(PROPERTY_SALT, Hex.encodeHexString(salt));
+			properties.setProperty(PROPERTY_ITERATIONS, Integer.toString(iterations));
+			properties.setProperty(PROPERTY_CHECK, checkValue(key));
+
+			try (OutputStream out = Files.newOutputStream(kdfFile)) {
+				properties.store(out, "Parameters of the passphrase key derivation");
+			}
+			return key;
+		} catch (GeneralSecurityException | IOException e) {
+			logger.error("Kdf-file cannot be created - Reason: {}", e.getLocalizedMessage());
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Derives a key from the passphrase.
+	 */
+	private static SecretKey derive(char[] passphrase, byte[] salt, int iterations) throws GeneralSecurityException {
+		long start = System.nanoTime();
+		PBEKeySpec keySpec = new PBEKeySpec(passphrase, salt, iterations, Configuration.getInt(KeySize));
+		try {
+			byte[] keyBytes = SecretKeyFactory.getInstance(KDF_ALGORITHM).generateSecret(keySpec).getEncoded();
+			logger.debug("Key derivation took {} ms.", (System.nanoTime() - start) / 1000000);
+			return new SecretKeySpec(keyBytes, Configuration.get(Algorithm));
+		} finally {
+			keySpec.clearPassword();
+		}
+	}
+
+	/**
+	 * Derives the master key from the given passphrase using the parameters
+	 * of the kdf-file. If no kdf-file exists, a new one is created.
+	 *
+	 * @param passphrase
+	 *            the passphrase
+	 * @return the derived master key
+	 * @throws IllegalArgumentException
+	 *             if the passphrase is wrong
+	 */
+	public static SecretKey deriveKey(char[] passphrase) {
+		return deriveKey(passphrase, Paths.get(Configuration.get(KdfFile)));
+	}
+
+	/**
+	 * Derives the master key from the given passphrase using the parameters
+	 * of the given kdf-file.
+	 */
+	static SecretKey deriveKey(char[] passphrase, Path kdfFile) {
+		Properties properties = loadProperties(kdfFile);
+		if (properties == null) {
+			logger.info("Kdf-file {} does not exists. A new one will be created.", kdfFile);
+			return createKey(passphrase, kdfFile);
+		}
+
+		try {
+			byte[] salt = Hex.decodeHex(properties.getProperty(PROPERTY_SALT).toCharArray());
+			int iterations = Integer.parseInt(properties.getProperty(PROPERTY_ITERATIONS));
+			SecretKey key = derive(passphrase, salt, iterations);
+
+			if (!matchesCheckValue(properties, key)) {
+				throw new IllegalArgumentException("Wrong passphrase.");
+			}
+			return key;
+		} catch (GeneralSecurityException | DecoderException e) {
+			logger.error("Key cannot be derived - Reason: {}", e.getLocalizedMessage());
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Loads the given kdf-file.
+	 *
+	 * @return the parameters or <code>null</code> if the file does not exist
+	 */
+	private static Properties loadProperties(Path kdfFile) {
+		Properties properties = new Properties();
+		try (InputStream in = Files.newInputStream(kdfFile)) {
+			properties.load(in);
+			return properties;
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException e) {
+			logger.error("Kdf-file {} cannot be read.", kdfFile);
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Returns whether the check value of the given key matches the one of the
+	 * kdf-file.
+	 */
+	private static boolean matchesCheckValue(Properties properties, SecretKey key) throws GeneralSecurityException {
+		byte[] expected = properties.getProperty(PROPERTY_CHECK).getBytes(StandardCharsets.US_ASCII);
+		return MessageDigest.isEqual(expected, checkValue(key).getBytes(StandardCharsets.US_ASCII));
+	}
+
+	/**
+	 * Reads the passphrase from the environment variable
+	 * {@value #PASSPHRASE_VARIABLE} or from the console.
+	 *
+	 * @param prompt
+	 *            the prompt shown on the console
+	 * @return the passphrase
+	 */
+	public static char[] readPassphrase(String prompt) {
+		String passphrase = System.getenv(PASSPHRASE_VARIABLE);
+		if (passphrase != null) {
+			return passphrase.toCharArray();
+		}
+
+		Console console = System.console();
+		if (console == null) {
+			throw new IllegalStateException("No console available to read the passphrase. Set " + PASSPHRASE_VARIABLE + ".");
+		}
+		char[] input = console.readPassword("%s: ", prompt);
+		if (input == null || input.length == 0) {
+			throw new IllegalStateException("No passphrase entered.");
+		}
+		return input;
+	}
+
+	/**
+	 * Returns whether the given key has been derived with the parameters of
+	 * the kdf-file, e.g. to verify a key received from the {@link KeyAgent}.
+	 *
+	 * @param key
+	 *            the key to verify
+	 * @return <code>true</code> if the check value of the key matches
+	 */
+	public static boolean verifyKey(SecretKey key) {
+		return verifyKey(key, Paths.get(Configuration.get(KdfFile)));
+	}
+
+	/**
+	 * Returns whether the given key matches the check value of the given
+	 * kdf-file. A missing kdf-file matches no key.
+	 */
+	static boolean verifyKey(SecretKey key, Path kdfFile) {
+		Properties properties = loadProperties(kdfFile);
+		if (properties == null) {
+			return false;
+		}
+		try {
+			return matchesCheckValue(properties, key);
+		} catch (GeneralSecurityException e) {
+			logger.warn("Key cannot be verified - Reason: {}", e.getLocalizedMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Clears the given passphrase.
+	 *
+	 * @param passphrase
+	 *            the passphrase to clear
+	 */
+	public static void wipe(char[] passphrase) {
+		Arrays.fill(passphrase, '\0');
+	}
+
+	/**
+	 * Hidden constructor.
+	 */
+	private KeyDerivation() {
+	}
+}
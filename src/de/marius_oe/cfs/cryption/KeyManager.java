@@ -23,15 +23,27 @@
 package de.marius_oe.cfs.cryption;
 
 import static de.marius_oe.cfs.configuration.Configuration.Key.Algorithm;
+import static de.marius_oe.cfs.configuration.Configuration.Key.KdfFile;
 import static de.marius_oe.cfs.configuration.Configuration.Key.KeySize;
+import static de.marius_oe.cfs.configuration.Configuration.Key.KeySource;
+import static de.marius_oe.cfs.configuration.Configuration.Key.NameKeyFile;
 import static de.marius_oe.cfs.configuration.Configuration.Key.SecretKeyFile;
 
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 
+import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
@@ -43,6 +55,16 @@ import de.marius_oe.cfs.configuration.Configuration;
 
 /**
  * Class to manage the keys used for decryption and encryption.
+ * <p>
+ * The secret key loaded from the key-file is the master key. It is never used
+ * to encrypt data directly: every file gets its own data key which is wrapped
+ * by the master key and stored in the header of the encrypted file. Rotating
+ * the master key therefore only requires to rewrap the headers (see
+ * {@link KeyRotator}).
+ * <p>
+ * Depending on the configured key source, the master key is either read from
+ * the key-file or derived from a passphrase (see {@link KeyDerivation}). A
+ * derived key is requested from a running {@link KeyAgent} first.
  *
  * @author Marius
  *
@@ -51,8 +73,34 @@ public final class KeyManager {
 
 	private static KeyManager instance;
 
+	/** Key source which derives the master key from a passphrase. */
+	private static final String KEY_SOURCE_PASSPHRASE = "passphrase";
+
 	private static final Logger logger = LoggerFactory.getLogger(KeyManager.class);
 
+	/** Suffix of the file that keeps the previous master key during a rotation. */
+	private static final String PREVIOUS_KEY_SUFFIX = ".previous";
+
+	/** Algorithm to wrap data keys with the master key. */
+	private static final String WRAP_ALGORITHM = "AESWrap";
+
+	/**
+	 * Calculates the fingerprint of the given master key. The fingerprint is
+	 * stored next to wrapped keys to identify the key that wrapped them.
+	 *
+	 * @param key
+	 *            the master key
+	 * @return fingerprint of the key
+	 */
+	public static int fingerprint(SecretKey key) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getEncoded());
+			return ByteBuffer.wrap(digest).getInt();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	/**
 	 * Returns the singleton of this class.
 	 *
@@ -65,6 +113,65 @@ public final class KeyManager {
 		return instance;
 	}
 
+	/**
+	 * Returns whether the master key is derived from a passphrase.
+	 */
+	private static boolean isPassphraseSource() {
+		return KEY_SOURCE_PASSPHRASE.equals(Configuration.get(KeySource));
+	}
+
+	/**
+	 * Unwraps a key which has been wrapped by {@link #wrapKey(SecretKey, SecretKey)}.
+	 *
+	 * @param masterKey
+	 *            the key that was used to wrap the key
+	 * @param wrappedKey
+	 *            the wrapped key
+	 * @return the unwrapped key
+	 */
+	public static SecretKey unwrapKey(SecretKey masterKey, byte[] wrappedKey) {
+		try {
+			Cipher cipher = Cipher.getInstance(WRAP_ALGORITHM);
+			cipher.init(Cipher.UNWRAP_MODE, masterKey);
+			return (SecretKey) cipher.unwrap(wrappedKey, Configuration.get(Algorithm), Cipher.SECRET_KEY);
+		} catch (GeneralSecurityException e) {
+			logger.error("Key cannot be unwrapped - Reason: {}", e.getLocalizedMessage());
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Wraps the given key with the master key.
+	 *
+	 * @param masterKey
+	 *            the key to wrap with
+	 * @param key
+	 *            the key to wrap
+	 * @return the wrapped key
+	 */
+	public static byte[] wrapKey(SecretKey masterKey, SecretKey key) {
+		try {
+			Cipher cipher = Cipher.getInstance(WRAP_ALGORITHM);
+			cipher.init(Cipher.WRAP_MODE, masterKey);
+			return cipher.wrap(key);
+		} catch (GeneralSecurityException e) {
+			logger.error("Key cannot be wrapped - Reason: {}", e.getLocalizedMessage());
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Writes the given bytes atomically into the given file.
+	 */
+	private static void writeKeyFile(Path file, byte[] content) throws IOException {
+		Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+		Files.write(tempFile, content);
+		Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/** Key for the encryption of file names. */
+	private SecretKey nameKey;
+
 	/** Currently loaded secret key. */
 	private SecretKey secretKey;
 
@@ -74,6 +181,29 @@ public final class KeyManager {
 	private KeyManager() {
 	}
 
+	/**
+	 * Deletes the previous master key after the headers of all encrypted
+	 * files have been rewrapped with the current one.
+	 */
+	public synchronized void completeRotation() {
+		try {
+			Files.deleteIfExists(previousKeyFile());
+		} catch (IOException e) {
+			logger.error("Previous key-file cannot be deleted - Reason: {}", e.getLocalizedMessage());
+			throw new RuntimeException(e);
+		}
+		logger.info("Key rotation completed.");
+	}
+
+	/**
+	 * Generates a new data key which is used to encrypt a single file.
+	 *
+	 * @return a new random key
+	 */
+	public SecretKey generateDataKey() {
+		return generateKey();
+	}
+
 	private SecretKey generateKey() {
 		logger.debug("Generating secret key with algorithm {} and key-size {}.", Configuration.get(Algorithm), Configuration.getInt(KeySize));
 		try {
@@ -87,22 +217,65 @@ public final class KeyManager {
 	}
 
 	/**
-	 * Returns the key for de- and encryption.
+	 * Returns the master key.
 	 *
 	 * @return the secret key
 	 */
-	public SecretKey getKey() {
+	public synchronized SecretKey getKey() {
 		if (secretKey == null) {
 			loadKey();
 		}
 		return secretKey;
 	}
 
+	/**
+	 * Returns the key for the encryption of file names. The name key is stored
+	 * wrapped by the master key, so encrypted names survive a key rotation.
+	 *
+	 * @return the name key
+	 */
+	public synchronized SecretKey getNameKey() {
+		if (nameKey == null) {
+			loadNameKey();
+		}
+		return nameKey;
+	}
+
+	/**
+	 * Returns the master key which was replaced by the last call of
+	 * {@link #rotateKey()}. It is kept wrapped by the current master key until
+	 * all headers have been rewrapped. A previous key which is wrapped by
+	 * another key belongs to a rotation which has been interrupted before the
+	 * new key was stored, and is ignored.
+	 *
+	 * @return the previous master key or <code>null</code> if there is none
+	 */
+	public SecretKey getPreviousKey() {
+		try {
+			ByteBuffer content = ByteBuffer.wrap(Files.readAllBytes(previousKeyFile()));
+			if (content.getInt() != fingerprint(getKey())) {
+				logger.warn("Ignoring previous key-file of an interrupted rotation.");
+				return null;
+			}
+			return unwrapKey(getKey(), Arrays.copyOfRange(content.array(), content.position(), content.limit()));
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException e) {
+			logger.error("Previous key-file cannot be read.");
+			throw new RuntimeException(e);
+		}
+	}
+
 	/**
 	 * Loads the secret key from the key-file. If no key-file is present, a new
 	 * key is generated and stored in the specified key-file.
 	 */
 	private void loadKey() {
+		if (isPassphraseSource()) {
+			loadPassphraseKey();
+			return;
+		}
+
 		logger.debug("Loading secret key.");
 		try {
 			byte[] keyBytes = new byte[Configuration.getInt(KeySize) / 8];
@@ -124,16 +297,149 @@ public final class KeyManager {
 		}
 	}
 
+	/**
+	 * Loads the name key from the name-key-file. If no name-key-file is
+	 * present, a new key is generated and stored. A name key which is still
+	 * wrapped by the previous master key, because a rotation has been
+	 * interrupted, is rewrapped with the current one.
+	 */
+	private void loadNameKey() {
+		logger.debug("Loading name key.");
+		try {
+			ByteBuffer content = ByteBuffer.wrap(Files.readAllBytes(Paths.get(Configuration.get(NameKeyFile))));
+			int keyFingerprint = content.getInt();
+			byte[] wrappedKey = Arrays.copyOfRange(content.array(), content.position(), content.limit());
+			if (keyFingerprint == fingerprint(getKey())) {
+				nameKey = unwrapKey(getKey(), wrappedKey);
+				return;
+			}
+
+			SecretKey previousKey = getPreviousKey();
+			if (previousKey == null || keyFingerprint != fingerprint(previousKey)) {
+				throw new IllegalStateException("Name key has not been wrapped by the current master key.");
+			}
+			logger.info("Name key is still wrapped by the previous master key and will be rewrapped.");
+			nameKey = unwrapKey(previousKey, wrappedKey);
+			storeNameKey();
+		} catch (NoSuchFileException e) {
+			logger.info("Name-key-file {} does not exists. A new key will be generated.", Configuration.get(NameKeyFile));
+			nameKey = generateKey();
+			storeNameKey();
+		} catch (IOException e) {
+			logger.error("Name-key-file {} cannot be read.", Configuration.get(NameKeyFile));
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Returns the file keeping the previous master key during a rotation.
+	 */
+	private static Path previousKeyFile() {
+		return Paths.get(Configuration.get(SecretKeyFile) + PREVIOUS_KEY_SUFFIX);
+	}
+
+	/**
+	 * Requests the master key from the key agent. If no agent is running or
+	 * its key does not match the kdf-file, the key is derived from the
+	 * passphrase.
+	 */
+	private void loadPassphraseKey() {
+		logger.debug("Requesting master key from key agent.");
+		secretKey = KeyAgent.requestKey();
+		if (secretKey != null) {
+			return;
+		}
+
+		char[] passphrase = KeyDerivation.readPassphrase("Passphrase");
+		try {
+			secretKey = KeyDerivation.deriveKey(passphrase);
+		} finally {
+			KeyDerivation.wipe(passphrase);
+		}
+	}
+
+	/**
+	 * Replaces the master key by a new one. If the key is derived from a
+	 * passphrase, the new key is derived from a new passphrase and salt and a
+	 * running key agent is stopped. The name key is rewrapped
+	 * immediately, the previous master key is kept wrapped by the new key
+	 * until the headers of all encrypted files have been rewrapped by the
+	 * {@link KeyRotator}. It is stored before the new key replaces the old
+	 * one, so an interruption never loses the key of existing files.
+	 *
+	 * @return the previous master key
+	 * @throws IllegalStateException
+	 *             if the previous rotation has not been completed by
+	 *             {@link #completeRotation()}
+	 */
+	public synchronized SecretKey rotateKey() {
+		if (getPreviousKey() != null) {
+			throw new IllegalStateException("The previous key rotation has not been completed yet.");
+		}
+
+		SecretKey previousKey = getKey();
+		getNameKey();
+
+		logger.info("Rotating master key {}.", Integer.toHexString(fingerprint(previousKey)));
+		SecretKey newKey;
+		Path newKdfFile = null;
+		if (isPassphraseSource()) {
+			Path kdfFile = Paths.get(Configuration.get(KdfFile));
+			newKdfFile = kdfFile.resolveSibling(kdfFile.getFileName() + ".new");
+			char[] passphrase = KeyDerivation.readPassphrase("New passphrase");
+			try {
+				newKey = KeyDerivation.createKey(passphrase, newKdfFile);
+			} finally {
+				KeyDerivation.wipe(passphrase);
+			}
+		} else {
+			newKey = generateKey();
+		}
+
+		byte[] wrappedKey = wrapKey(newKey, previousKey);
+		ByteBuffer content = ByteBuffer.allocate(4 + wrappedKey.length);
+		content.putInt(fingerprint(newKey)).put(wrappedKey);
+		try {
+			writeKeyFile(previousKeyFile(), content.array());
+			if (newKdfFile != null) {
+				Files.move(newKdfFile, Paths.get(Configuration.get(KdfFile)), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				KeyAgent.stopAgent();
+			} else {
+				writeKeyFile(Paths.get(Configuration.get(SecretKeyFile)), newKey.getEncoded());
+			}
+			secretKey = newKey;
+		} catch (IOException e) {
+			logger.error("Cannot store the new key - Reason: {}", e.getLocalizedMessage());
+			throw new RuntimeException(e);
+		}
+		storeNameKey();
+		return previousKey;
+	}
+
+	/**
+	 * Stores the current name key wrapped by the master key in the file
+	 * system.
+	 */
+	private void storeNameKey() {
+		logger.info("Writing name key in file {}", Configuration.get(NameKeyFile));
+		byte[] wrappedKey = wrapKey(getKey(), nameKey);
+		ByteBuffer content = ByteBuffer.allocate(4 + wrappedKey.length);
+		content.putInt(fingerprint(getKey())).put(wrappedKey);
+		try {
+			writeKeyFile(Paths.get(Configuration.get(NameKeyFile)), content.array());
+		} catch (IOException e) {
+			logger.info("Cannot write name key in file. Reason: {}", e.getLocalizedMessage());
+			throw new RuntimeException(e);
+		}
+	}
+
 	/**
 	 * Stores the current secretKey in the file system.
 	 */
 	private void storeSecretKey() {
 		logger.info("Writing secretKey in file {}", Configuration.get(SecretKeyFile));
 		try {
-			FileOutputStream fos = new FileOutputStream(Configuration.get(SecretKeyFile), false);
-			fos.write(secretKey.getEncoded());
-			fos.flush();
-			fos.close();
+			writeKeyFile(Paths.get(Configuration.get(SecretKeyFile)), secretKey.getEncoded());
 		} catch (IOException e) {
 			logger.info("Cannot write secretKey in file. Reason: {}", e.getLocalizedMessage());
 			throw new RuntimeException(e);
@@ -0,0 +1,272 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs.cryption;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.crypto.SecretKey;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Rewraps the data keys of encrypted files after the master key has been
+ * rotated by {@link KeyManager#rotateKey()}. Only the headers of the files
+ * are rewritten in place, the encrypted data is never touched. Files in the
+ * legacy format, which is encrypted by the master key itself, are encrypted
+ * again in the current format. Files which are not encrypted by this
+ * application are skipped.
+ */
+public final class KeyRotator {
+
+	private static final Logger logger = LoggerFactory.getLogger(KeyRotator.class);
+
+	/** Suffix of files which are still being written. */
+	private static final String TEMP_SUFFIX = ".part";
+
+	/** Block and iv length of the legacy AES-CBC format. */
+	private static final int LEGACY_BLOCK_SIZE = 16;
+
+	/**
+	 * Returns whether the file may be in the legacy format: the length of the
+	 * iv, the iv and at least one block of data.
+	 */
+	private static boolean isLegacy(int firstByte, long size) {
+		long dataSize = size - 1 - LEGACY_BLOCK_SIZE;
+		return firstByte == LEGACY_BLOCK_SIZE && dataSize > 0 && dataSize % LEGACY_BLOCK_SIZE == 0;
+	}
+
+	/**
+	 * Encrypts a legacy file again in the current format with a data key
+	 * wrapped by the new master key. The file is replaced atomically.
+	 *
+	 * @return <code>false</code> if the file cannot be decrypted with the
+	 *         previous master key, i.e. it is no legacy file
+	 */
+	private static boolean reencryptLegacy(Path file, SecretKey oldKey, SecretKey newKey) throws IOException {
+		Path tempFile = file.resolveSibling(file.getFileName() + TEMP_SUFFIX);
+		try {
+			try (InputStream in = Files.newInputStream(file); OutputStream out = Files.newOutputStream(tempFile)) {
+				byte[] iv = new byte[in.read()];
+				IOUtils.readFully(in, iv);
+				InputStream plain = CipherSuite.AES_CBC.decrypt(in, oldKey, iv);
+				// the plain data keeps its compression, it is not touched
+				Crypter.encryptStream(plain, out, false, newKey);
+			} catch (GeneralSecurityException e) {
+				logger.warn("{} cannot be decrypted as a legacy file and is skipped - Reason: {}", file, e.getLocalizedMessage());
+				return false;
+			} catch (IOException e) {
+				// a wrong padding means the file was never readable with this key
+				if (!(e.getCause() instanceof GeneralSecurityException)) {
+					throw e;
+				}
+				logger.warn("{} cannot be decrypted as a legacy file and is skipped - Reason: {}", file, e.getLocalizedMessage());
+				return false;
+			}
+			Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			logger.info("{} has been encrypted again in the current format.", file);
+			return true;
+		} finally {
+			Files.deleteIfExists(tempFile);
+		}
+	}
+
+	/**
+	 * Rotates the master key and rewraps the headers of all files in the
+	 * given directory trees. If a previous rotation has been interrupted, it
+	 * is resumed instead of rotating again. The previous key is deleted once
+	 * all headers have been rewrapped.
+	 *
+	 * @param roots
+	 *            directories containing the encrypted files
+	 * @param threads
+	 *            number of files which are rewrapped in parallel
+	 * @return number of rewrapped files
+	 * @throws IOException
+	 *             if a directory tree cannot be read
+	 */
+	public static int rotate(List<Path> roots, int threads) throws IOException {
+		KeyManager keyManager = KeyManager.instance();
+		SecretKey previousKey = keyManager.getPreviousKey();
+		if (previousKey == null) {
+			previousKey = keyManager.rotateKey();
+		} else {
+			logger.info("Resuming the rotation of master key {}.", Integer.toHexString(KeyManager.fingerprint(previousKey)));
+		}
+
+		int rewrapped = 0;
+		for (Path root : roots) {
+			rewrapped += rewrapAll(root, previousKey, keyManager.getKey(), threads);
+		}
+		keyManager.completeRotation();
+		return rewrapped;
+	}
+
+	/**
+	 * Rewraps the headers of all files in the given directory tree. Files
+	 * whose header is already wrapped by the new key are skipped, so an
+	 * interrupted rotation can be resumed.
+	 *
+	 * @param root
+	 *            directory containing the encrypted files
+	 * @param oldKey
+	 *            the previous master key
+	 * @param newKey
+	 *            the new master key
+	 * @param threads
+	 *            number of files which are rewrapped in parallel
+	 * @return number of rewrapped files
+	 * @throws IOException
+	 *             if the directory tree cannot be read
+	 */
+	public static int rewrapAll(Path root, SecretKey oldKey, SecretKey newKey, int threads) throws IOException {
+		logger.info("Rewrapping headers in {} with {} threads.", root, threads);
+
+		List<Path> files;
+		try (Stream<Path> stream = Files.walk(root)) {
+			files = stream.filter(Files::isRegularFile).filter(file -> !file.getFileName().toString().endsWith(TEMP_SUFFIX))
+					.collect(Collectors.toList());
+		}
+
+		AtomicInteger rewrapped = new AtomicInteger();
+		AtomicInteger failed = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		for (Path file : files) {
+			executor.execute(() -> {
+				try {
+					if (rewrap(file, oldKey, newKey)) {
+						rewrapped.incrementAndGet();
+					}
+				} catch (IOException | RuntimeException e) {
+					logger.error("Header of {} cannot be rewrapped - Reason: {}", file, e.getLocalizedMessage());
+					failed.incrementAndGet();
+				}
+			});
+		}
+
+		executor.shutdown();
+		try {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+
+		if (failed.get() > 0) {
+			throw new RuntimeException(failed.get() + " headers cannot be rewrapped. Keep the previous key and retry.");
+		}
+
+		logger.info("Rewrapped {} of {} headers.", rewrapped.get(), files.size());
+		return rewrapped.get();
+	}
+
+	/**
+	 * Rewraps the header of a single file in place. A legacy file is
+	 * encrypted again instead. Files whose header cannot be read or whose
+	 * data key is wrapped by an unknown master key are skipped.
+	 *
+	 * @param file
+	 *            the encrypted file
+	 * @param oldKey
+	 *            the previous master key
+	 * @param newKey
+	 *            the new master key
+	 * @return <code>true</code> if the file has been rewritten
+	 * @throws IOException
+	 *             if the file cannot be read or written
+	 */
+	public static boolean rewrap(Path file, SecretKey oldKey, SecretKey newKey) throws IOException {
+		boolean legacy = false;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+			int version = in.read();
+			if (!CryptoHeader.isSupported(version)) {
+				legacy = isLegacy(version, channel.size());
+				if (!legacy) {
+					logger.warn("{} is not encrypted by this application and is skipped.", file);
+					return false;
+				}
+			} else {
+				CryptoHeader header;
+				try {
+					header = CryptoHeader.read(in, version);
+				} catch (IOException e) {
+					logger.warn("Header of {} cannot be read, the file is skipped - Reason: {}", file, e.getLocalizedMessage());
+					return false;
+				}
+				if (header.keyFingerprint == KeyManager.fingerprint(newKey)) {
+					return false;
+				}
+				if (header.keyFingerprint != KeyManager.fingerprint(oldKey)) {
+					logger.warn("Data key of {} has been wrapped by an unknown master key, the file is skipped.", file);
+					return false;
+				}
+				return rewrapInPlace(channel, header, oldKey, newKey);
+			}
+		}
+		return legacy && reencryptLegacy(file, oldKey, newKey);
+	}
+
+	/**
+	 * Writes the rewrapped header over the current one.
+	 */
+	private static boolean rewrapInPlace(FileChannel channel, CryptoHeader header, SecretKey oldKey, SecretKey newKey) throws IOException {
+		CryptoHeader newHeader = header.rewrap(oldKey, newKey);
+		if (newHeader.length() != header.length()) {
+			throw new IOException("Header length has changed, the header cannot be rewritten in place.");
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(newHeader.length());
+		newHeader.write(out);
+		channel.write(ByteBuffer.wrap(out.toByteArray()), 0);
+		channel.force(false);
+		return true;
+	}
+
+	/**
+	 * Hidden constructor.
+	 */
+	private KeyRotator() {
+	}
+}
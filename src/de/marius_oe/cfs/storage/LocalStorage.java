@@ -0,0 +1,293 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.UnaryOperator;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.marius_oe.cfs.cryption.AsyncCrypter;
+import de.marius_oe.cfs.cryption.CryptResult;
+import de.marius_oe.cfs.cryption.FileNameCrypter;
+
+/**
+ * Stores encrypted files with encrypted names below a target folder, e.g. a
+ * folder which is synchronized by a cloud client. A stored file is replaced
+ * atomically, so the target folder never contains partially written files.
+ * The files are encrypted by an {@link AsyncCrypter} and moved into place on
+ * its executor.
+ */
+public final class LocalStorage {
+
+	private static final Logger logger = LoggerFactory.getLogger(LocalStorage.class);
+
+	/** Suffix of files which are being written. */
+	private static final String TEMP_SUFFIX = ".part";
+
+	private final AsyncCrypter crypter;
+
+	private final Path root;
+
+	/**
+	 * Constructor using a crypter with the shared pool.
+	 *
+	 * @param root
+	 *            the target folder
+	 */
+	public LocalStorage(Path root) {
+		this(root, new AsyncCrypter());
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param root
+	 *            the target folder
+	 * @param crypter
+	 *            the crypter encrypting the stored files
+	 */
+	public LocalStorage(Path root, AsyncCrypter crypter) {
+		this.root = root.toAbsolutePath();
+		this.crypter = crypter;
+	}
+
+	/**
+	 * Deletes the stored file of the given plain path. If the path is a
+	 * directory, it is deleted with all its entries.
+	 *
+	 * @param path
+	 *            the plain relative path
+	 * @return <code>true</code> if a file has been deleted
+	 * @throws IOException
+	 *             if the file cannot be deleted
+	 */
+	public boolean delete(Path path) throws IOException {
+		Path target = resolve(path);
+		boolean deleted;
+		if (Files.isDirectory(target, LinkOption.NOFOLLOW_LINKS)) {
+			FileUtils.deleteDirectory(target.toFile());
+			deleted = true;
+		} else {
+			deleted = Files.deleteIfExists(target);
+		}
+		if (deleted) {
+			logger.debug("Deleted {} from the storage.", path);
+		}
+		return deleted;
+	}
+
+	/**
+	 * Returns the target folder.
+	 *
+	 * @return the absolute target folder
+	 */
+	public Path getRoot() {
+		return root;
+	}
+
+	/**
+	 * Returns the plain path of a file in the target folder.
+	 *
+	 * @param file
+	 *            the stored file
+	 * @return the plain relative path
+	 * @throws IllegalArgumentException
+	 *             if the name of the file has not been encrypted, e.g. a
+	 *             temporary file
+	 */
+	public Path relativize(Path file) {
+		return FileNameCrypter.instance().decryptPath(root.relativize(file.toAbsolutePath()));
+	}
+
+	/**
+	 * Returns the file the given plain path is stored in.
+	 *
+	 * @param path
+	 *            the plain relative path
+	 * @return the file with the encrypted path
+	 */
+	public Path resolve(Path path) {
+		return root.resolve(FileNameCrypter.instance().encryptPath(path));
+	}
+
+	/**
+	 * Encrypts the given stream into the file of the given plain path,
+	 * replacing an earlier version. The stream is closed. The method blocks
+	 * until the file is stored, an interruption cancels the encryption.
+	 *
+	 * @param path
+	 *            the plain relative path
+	 * @param inStream
+	 *            the plain content
+	 * @param compress
+	 *            whether the content is compressed before encryption
+	 * @throws IOException
+	 *             if the file cannot be written
+	 */
+	public void store(Path path, InputStream inStream, boolean compress) throws IOException {
+		store(path, inStream, compress, UnaryOperator.identity());
+	}
+
+	/**
+	 * Encrypts the given stream into the file of the given plain path like
+	 * {@link #store(Path, InputStream, boolean)}, writing the encrypted
+	 * content through the given filter, e.g. to throttle the writes.
+	 *
+	 * @param path
+	 *            the plain relative path
+	 * @param inStream
+	 *            the plain content
+	 * @param compress
+	 *            whether the content is compressed before encryption
+	 * @param outFilter
+	 *            wraps the stream of the stored file
+	 * @throws IOException
+	 *             if the file cannot be written
+	 */
+	public void store(Path path, InputStream inStream, boolean compress, UnaryOperator<OutputStream> outFilter) throws IOException {
+		CompletableFuture<CryptResult> future = storeAsync(path, inStream, compress, outFilter);
+		try {
+			future.get();
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while storing " + path + ".");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * Encrypts the given stream into a temporary file and moves it to the file
+	 * of the given plain path once the encryption is done. The stream is
+	 * closed. Cancelling the future aborts the encryption and removes the
+	 * temporary file.
+	 *
+	 * @param path
+	 *            the plain relative path
+	 * @param inStream
+	 *            the plain content
+	 * @param compress
+	 *            whether the content is compressed before encryption
+	 * @return future of the encryption result, completed when the file has
+	 *         been moved into place
+	 */
+	public CompletableFuture<CryptResult> storeAsync(Path path, InputStream inStream, boolean compress) {
+		return storeAsync(path, inStream, compress, UnaryOperator.identity());
+	}
+
+	/**
+	 * Encrypts the given stream like
+	 * {@link #storeAsync(Path, InputStream, boolean)}, writing the encrypted
+	 * content through the given filter.
+	 *
+	 * @param path
+	 *            the plain relative path
+	 * @param inStream
+	 *            the plain content
+	 * @param compress
+	 *            whether the content is compressed before encryption
+	 * @param outFilter
+	 *            wraps the stream of the temporary file
+	 * @return future of the encryption result, completed when the file has
+	 *         been moved into place
+	 */
+	public CompletableFuture<CryptResult> storeAsync(Path path, InputStream inStream, boolean compress,
+			UnaryOperator<OutputStream> outFilter) {
+		CompletableFuture<CryptResult> stored = new CompletableFuture<>();
+		Path target = resolve(path);
+		Path tempFile = target.resolveSibling(target.getFileName() + TEMP_SUFFIX);
+
+		OutputStream outStream;
+		try {
+			Files.createDirectories(target.getParent());
+			outStream = outFilter.apply(Files.newOutputStream(tempFile));
+		} catch (IOException e) {
+			closeQuietly(inStream);
+			stored.completeExceptionally(e);
+			return stored;
+		}
+
+		CompletableFuture<CryptResult> encryption = crypter.encrypt(inStream, outStream, compress);
+		encryption.whenCompleteAsync((result, cause) -> {
+			Throwable failure = cause;
+			try {
+				try {
+					outStream.close();
+				} finally {
+					inStream.close();
+				}
+				if (failure == null) {
+					Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				}
+			} catch (IOException e) {
+				if (failure == null) {
+					failure = e;
+				}
+			}
+
+			try {
+				Files.deleteIfExists(tempFile);
+			} catch (IOException e) {
+				logger.warn("{} cannot be deleted - Reason: {}", tempFile, e.getLocalizedMessage());
+			}
+
+			if (failure == null) {
+				logger.debug("Stored {} as {}.", path, target);
+				stored.complete(result);
+			} else {
+				stored.completeExceptionally(failure);
+			}
+		}, crypter.getExecutor());
+
+		stored.whenComplete((result, cause) -> {
+			if (stored.isCancelled()) {
+				encryption.cancel(true);
+			}
+		});
+		return stored;
+	}
+
+	private static void closeQuietly(InputStream inStream) {
+		try {
+			inStream.close();
+		} catch (IOException e) {
+			logger.debug("Stream cannot be closed - Reason: {}", e.getLocalizedMessage());
+		}
+	}
+}
@@ -0,0 +1,362 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.marius_oe.cfs.cryption.AsyncCrypter;
+import de.marius_oe.cfs.cryption.CryptResult;
+
+/**
+ * Size-bounded local cache of encrypted objects in front of an
+ * {@link IObjectSource}. Objects are stored as fetched, so they stay
+ * encrypted at rest, and are decrypted by the {@link AsyncCrypter} when they
+ * are read.
+ * <p>
+ * Concurrent requests of an object which is not cached share a single fetch.
+ * When the cache exceeds its size, the least recently used objects are
+ * removed. The index is kept in memory and rebuilt from the cache directory
+ * on startup, ordered by the modification times which are updated on every
+ * hit.
+ */
+public final class ObjectCache {
+
+	/** Object ids without dots, so they name neither a folder nor a temporary file. */
+	private static final Pattern ID_PATTERN = Pattern.compile("[A-Za-z0-9_-]+");
+
+	private static final Logger logger = LoggerFactory.getLogger(ObjectCache.class);
+
+	/** Number of times an object is fetched again when it has been evicted before it was opened. */
+	private static final int READ_ATTEMPTS = 3;
+
+	/** Suffix of objects which are being fetched. */
+	private static final String TEMP_SUFFIX = ".part";
+
+	private final AsyncCrypter crypter;
+
+	private final Path directory;
+
+	private final Executor executor;
+
+	/** Running fetches by object id. */
+	private final Map<String, CompletableFuture<Path>> fetches = new ConcurrentHashMap<>();
+
+	/** Sizes of the cached objects in access order, guarded by itself. */
+	private final LinkedHashMap<String, Long> index = new LinkedHashMap<>(16, 0.75f, true);
+
+	private final long maxSize;
+
+	private final IObjectSource source;
+
+	/** Total size of the cached objects, guarded by the index. */
+	private long totalSize;
+
+	/**
+	 * Constructor. Builds the index from the objects in the cache directory.
+	 *
+	 * @param directory
+	 *            the cache directory
+	 * @param maxSize
+	 *            the maximum total size of the cached objects in bytes
+	 * @param source
+	 *            the source of objects which are not cached
+	 * @param executor
+	 *            the executor fetching and decrypting objects
+	 * @throws IOException
+	 *             if the cache directory cannot be read
+	 */
+	public ObjectCache(Path directory, long maxSize, IObjectSource source, Executor executor) throws IOException {
+		this.directory = directory;
+		this.maxSize = maxSize;
+		this.source = source;
+		this.executor = executor;
+		this.crypter = new AsyncCrypter(executor);
+
+		Files.createDirectories(directory);
+		loadIndex();
+	}
+
+	private void checkId(String id) {
+		if (!ID_PATTERN.matcher(id).matches()) {
+			throw new IllegalArgumentException("Invalid object id: " + id);
+		}
+	}
+
+	/**
+	 * Removes least recently used objects until the cache fits its size. The
+	 * given object is kept.
+	 */
+	private void evict(String keep) {
+		List<String> evicted = new ArrayList<>();
+		synchronized (index) {
+			Iterator<Map.Entry<String, Long>> iterator = index.entrySet().iterator();
+			while (totalSize > maxSize && iterator.hasNext()) {
+				Map.Entry<String, Long> entry = iterator.next();
+				if (!entry.getKey().equals(keep)) {
+					totalSize -= entry.getValue();
+					evicted.add(entry.getKey());
+					iterator.remove();
+				}
+			}
+		}
+
+		for (String id : evicted) {
+			try {
+				Files.deleteIfExists(directory.resolve(id));
+				logger.debug("Evicted object {} from the cache.", id);
+			} catch (IOException e) {
+				logger.warn("Evicted object {} cannot be deleted - Reason: {}", id, e.getLocalizedMessage());
+			}
+		}
+	}
+
+	/**
+	 * Fetches the object from the source into the cache.
+	 */
+	private Path fetch(String id) {
+		Path file = directory.resolve(id);
+		Path tempFile = directory.resolve(id + TEMP_SUFFIX);
+		try {
+			try (InputStream in = source.open(id)) {
+				Files.copy(in, tempFile, StandardCopyOption.REPLACE_EXISTING);
+			}
+			Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			long size = Files.size(file);
+
+			synchronized (index) {
+				Long previous = index.put(id, size);
+				totalSize += size - (previous == null ? 0 : previous);
+			}
+			logger.debug("Fetched object {} with {} bytes into the cache.", id, size);
+			evict(id);
+			return file;
+		} catch (IOException e) {
+			try {
+				Files.deleteIfExists(tempFile);
+			} catch (IOException suppressed) {
+				e.addSuppressed(suppressed);
+			}
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Returns the cached file of the object, fetching it from the source if
+	 * it is not cached. Concurrent calls for the same object share one fetch.
+	 *
+	 * @param id
+	 *            the id of the object
+	 * @return future of the encrypted file in the cache
+	 */
+	public CompletableFuture<Path> get(String id) {
+		checkId(id);
+		if (isCached(id)) {
+			return hit(id);
+		}
+
+		CompletableFuture<Path> fetch = new CompletableFuture<>();
+		CompletableFuture<Path> running = fetches.putIfAbsent(id, fetch);
+		if (running != null) {
+			return running;
+		}
+		if (isCached(id)) {
+			// another fetch has finished in the meantime
+			fetches.remove(id, fetch);
+			return hit(id);
+		}
+
+		executor.execute(() -> {
+			try {
+				fetch.complete(fetch(id));
+			} catch (RuntimeException e) {
+				fetch.completeExceptionally(e instanceof UncheckedIOException ? e.getCause() : e);
+			} finally {
+				fetches.remove(id, fetch);
+			}
+		});
+		return fetch;
+	}
+
+	/**
+	 * Returns the total size of the cached objects.
+	 *
+	 * @return the size in bytes
+	 */
+	public long getSize() {
+		synchronized (index) {
+			return totalSize;
+		}
+	}
+
+	/**
+	 * Returns the file of a cached object and marks it as recently used.
+	 */
+	private CompletableFuture<Path> hit(String id) {
+		synchronized (index) {
+			index.get(id);
+		}
+		Path file = directory.resolve(id);
+		touch(file);
+		return CompletableFuture.completedFuture(file);
+	}
+
+	/**
+	 * Returns whether the object is cached. A cached object may be evicted
+	 * at any time.
+	 *
+	 * @param id
+	 *            the id of the object
+	 * @return <code>true</code> if the object is cached
+	 */
+	public boolean isCached(String id) {
+		synchronized (index) {
+			return index.containsKey(id);
+		}
+	}
+
+	/**
+	 * Builds the index from the cache directory and removes incomplete
+	 * objects of an earlier run.
+	 */
+	private void loadIndex() throws IOException {
+		List<Path> files = new ArrayList<>();
+		Map<Path, BasicFileAttributes> attributes = new LinkedHashMap<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+			for (Path file : stream) {
+				String name = file.getFileName().toString();
+				if (name.endsWith(TEMP_SUFFIX)) {
+					Files.deleteIfExists(file);
+				} else if (!ID_PATTERN.matcher(name).matches()) {
+					logger.debug("{} is no cached object.", file);
+				} else if (Files.isRegularFile(file)) {
+					files.add(file);
+					attributes.put(file, Files.readAttributes(file, BasicFileAttributes.class));
+				}
+			}
+		}
+
+		files.sort(Comparator.comparing(file -> attributes.get(file).lastModifiedTime()));
+		synchronized (index) {
+			for (Path file : files) {
+				long size = attributes.get(file).size();
+				index.put(file.getFileName().toString(), size);
+				totalSize += size;
+			}
+		}
+		logger.debug("Loaded {} cached objects with {} bytes.", files.size(), totalSize);
+		evict(null);
+	}
+
+	/**
+	 * Decrypts the object into the given stream, fetching it from the source
+	 * if it is not cached. An object which is evicted before its file is
+	 * opened is fetched again. The stream is not closed.
+	 *
+	 * @param id
+	 *            the id of the object
+	 * @param destinationStream
+	 *            stream for the decrypted data
+	 * @param compressed
+	 *            whether the object was compressed before encryption
+	 * @return future of the decryption result
+	 */
+	public CompletableFuture<CryptResult> read(String id, OutputStream destinationStream, boolean compressed) {
+		return read(id, destinationStream, compressed, READ_ATTEMPTS);
+	}
+
+	private CompletableFuture<CryptResult> read(String id, OutputStream destinationStream, boolean compressed, int attempts) {
+		return get(id).thenCompose(file -> {
+			InputStream in;
+			try {
+				in = Files.newInputStream(file);
+			} catch (NoSuchFileException e) {
+				if (attempts > 1) {
+					// evicted after the lookup, treated as a miss
+					logger.debug("Cached object {} has been evicted before it was read.", id);
+					remove(id);
+					return read(id, destinationStream, compressed, attempts - 1);
+				}
+				CompletableFuture<CryptResult> failed = new CompletableFuture<>();
+				failed.completeExceptionally(e);
+				return failed;
+			} catch (IOException e) {
+				CompletableFuture<CryptResult> failed = new CompletableFuture<>();
+				failed.completeExceptionally(e);
+				return failed;
+			}
+			return crypter.decrypt(in, destinationStream, compressed).whenComplete((result, cause) -> {
+				try {
+					in.close();
+				} catch (IOException e) {
+					logger.warn("Cached object {} cannot be closed - Reason: {}", id, e.getLocalizedMessage());
+				}
+			});
+		});
+	}
+
+	/**
+	 * Removes the object from the index.
+	 */
+	private void remove(String id) {
+		synchronized (index) {
+			Long size = index.remove(id);
+			if (size != null) {
+				totalSize -= size;
+			}
+		}
+	}
+
+	/**
+	 * Marks the file as recently used for the next startup.
+	 */
+	private void touch(Path file) {
+		try {
+			Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+		} catch (IOException e) {
+			logger.debug("Access time of {} cannot be updated - Reason: {}", file, e.getLocalizedMessage());
+		}
+	}
+}
@@ -0,0 +1,733 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.GeneralSecurityException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.marius_oe.cfs.cryption.Crypter;
+import de.marius_oe.cfs.util.BufferPool;
+import de.marius_oe.cfs.util.file.IgnoreMatcher;
+
+/**
+ * Versioned history of sync folders. A snapshot is a tree of encrypted,
+ * content-addressed objects: files are stored by their content and
+ * directories as the sorted list of their entries. The id of an object is a
+ * keyed HMAC of its plain content, so equal content is stored only once and
+ * a directory whose entries are unchanged keeps its id. A new snapshot
+ * therefore writes only the changed files and the directories on their
+ * paths, and shares all unchanged subtrees with the earlier snapshots. Files
+ * whose size and modification time match the latest snapshot are not read
+ * at all.
+ * <p>
+ * Objects which are no longer referenced by a snapshot are removed by
+ * {@link #collectGarbage()}. Its mark phase walks the snapshots in parallel
+ * and visits every shared subtree once, while new snapshots can be created.
+ * Objects written after the collection has started are never removed.
+ */
+public final class SnapshotStore {
+
+	/** Entry of a directory object. */
+	static final class Entry {
+
+		final boolean directory;
+		final String id;
+		final long modified;
+		final String name;
+		final long size;
+
+		Entry(String name, boolean directory, long size, long modified, String id) {
+			this.name = name;
+			this.directory = directory;
+			this.size = size;
+			this.modified = modified;
+			this.id = id;
+		}
+	}
+
+	/**
+	 * Input stream which feeds every byte it reads into a MAC.
+	 */
+	private static final class MacInputStream extends FilterInputStream {
+
+		private final Mac mac;
+
+		MacInputStream(InputStream in, Mac mac) {
+			super(in);
+			this.mac = mac;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				mac.update((byte) b);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if (read > 0) {
+				mac.update(b, off, read);
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			throw new IOException("Skipping would leave bytes out of the MAC.");
+		}
+	}
+
+	/**
+	 * Output stream which feeds every byte it writes into a MAC.
+	 */
+	private static final class MacOutputStream extends FilterOutputStream {
+
+		private final Mac mac;
+
+		MacOutputStream(OutputStream out, Mac mac) {
+			super(out);
+			this.mac = mac;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			mac.update(b, off, len);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			mac.update((byte) b);
+		}
+	}
+
+	/**
+	 * Marks a directory object and, in parallel, all objects below it which
+	 * have not been marked yet.
+	 */
+	private final class MarkTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final String id;
+
+		private final Set<String> marked;
+
+		MarkTask(String id, Set<String> marked) {
+			this.id = id;
+			this.marked = marked;
+		}
+
+		@Override
+		protected void compute() {
+			List<Entry> entries;
+			try {
+				entries = readTree(id);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+
+			List<MarkTask> subtasks = new ArrayList<>();
+			for (Entry entry : entries) {
+				// a subtree which has been marked before is shared and not walked again
+				if (marked.add(entry.id) && entry.directory) {
+					subtasks.add(new MarkTask(entry.id, marked));
+				}
+			}
+			invokeAll(subtasks);
+		}
+	}
+
+	private static final Logger logger = LoggerFactory.getLogger(SnapshotStore.class);
+
+	private static final String MAC_ALGORITHM = "HmacSHA256";
+
+	/**
+	 * Resolution of file modification times on the coarsest file systems in
+	 * milliseconds.
+	 */
+	private static final long MTIME_RESOLUTION = 2000;
+
+	private static final DateTimeFormatter NAME_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmssSSS").withZone(ZoneOffset.UTC);
+
+	private static final Pattern NAME_PATTERN = Pattern.compile("\\d{8}T\\d{9}");
+
+	/** Suffix of objects which are being written. */
+	private static final String TEMP_SUFFIX = ".part";
+
+	private static final byte TYPE_DIRECTORY = 'd';
+
+	private static final byte TYPE_FILE = 'f';
+
+	private static IOException unwrap(RuntimeException e) {
+		if (e.getCause() instanceof IOException) {
+			return (IOException) e.getCause();
+		}
+		throw e;
+	}
+
+	/**
+	 * Guards the start of a garbage collection: snapshots are created under
+	 * the read lock, a collection holds the write lock while it lists the
+	 * snapshots. Every snapshot is thereby either listed or has been started
+	 * after the collection.
+	 */
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/** Key of the object ids. */
+	private final SecretKey macKey;
+
+	private final Path objectFolder;
+
+	private final ForkJoinPool pool;
+
+	private final Path snapshotFolder;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param root
+	 *            the folder of the snapshots and objects
+	 * @param key
+	 *            the key the object ids are derived from, which must not
+	 *            change between snapshots
+	 * @param pool
+	 *            the pool marking the objects during a garbage collection
+	 * @throws IOException
+	 *             if the folders cannot be created
+	 */
+	public SnapshotStore(Path root, SecretKey key, ForkJoinPool pool) throws IOException {
+		this.objectFolder = root.resolve("objects");
+		this.snapshotFolder = root.resolve("snapshots");
+		this.pool = pool;
+		try {
+			Mac mac = Mac.getInstance(MAC_ALGORITHM);
+			mac.init(new SecretKeySpec(key.getEncoded(), MAC_ALGORITHM));
+			macKey = new SecretKeySpec(mac.doFinal("cfs-object-id".getBytes(StandardCharsets.UTF_8)), MAC_ALGORITHM);
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException(e);
+		}
+
+		Files.createDirectories(objectFolder);
+		Files.createDirectories(snapshotFolder);
+	}
+
+	/**
+	 * Removes all objects which are not referenced by a snapshot and have
+	 * not been written or reused since the collection has started.
+	 *
+	 * @return the number of removed objects
+	 * @throws IOException
+	 *             if a snapshot cannot be read, in which case nothing is
+	 *             removed
+	 */
+	public int collectGarbage() throws IOException {
+		long startTime;
+		List<String> roots = new ArrayList<>();
+		lock.writeLock().lock();
+		try {
+			startTime = System.currentTimeMillis();
+			for (String snapshot : list()) {
+				roots.add(readRoot(snapshot));
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+
+		Set<String> marked = ConcurrentHashMap.newKeySet();
+		List<ForkJoinTask<Void>> tasks = new ArrayList<>();
+		for (String root : roots) {
+			if (marked.add(root)) {
+				tasks.add(pool.submit(new MarkTask(root, marked)));
+			}
+		}
+		try {
+			for (ForkJoinTask<Void> task : tasks) {
+				task.join();
+			}
+		} catch (RuntimeException e) {
+			for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+				if (cause instanceof IOException) {
+					throw (IOException) cause;
+				}
+			}
+			throw e;
+		}
+
+		long keepAfter = startTime - MTIME_RESOLUTION;
+		AtomicInteger removed = new AtomicInteger();
+		Files.walkFileTree(objectFolder, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+				String name = file.getFileName().toString();
+				boolean garbage = name.endsWith(TEMP_SUFFIX) || !marked.contains(name);
+				// the time is read again as the object may have been reused meanwhile
+				if (garbage && attributes.lastModifiedTime().toMillis() < keepAfter && Files.getLastModifiedTime(file).toMillis() < keepAfter
+						&& Files.deleteIfExists(file)) {
+					removed.incrementAndGet();
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+
+		logger.info("Marked {} objects of {} snapshots in {} ms, removed {} objects.", marked.size(), roots.size(),
+				System.currentTimeMillis() - startTime, removed.get());
+		return removed.get();
+	}
+
+	private String computeId(byte type, InputStream inStream) throws IOException {
+		Mac mac = createMac(type);
+		BufferPool bufferPool = BufferPool.shared();
+		byte[] buffer;
+		try {
+			buffer = bufferPool.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a buffer.");
+		}
+		try {
+			int read;
+			while ((read = inStream.read(buffer)) >= 0) {
+				mac.update(buffer, 0, read);
+			}
+		} finally {
+			bufferPool.release(buffer);
+		}
+		return Hex.encodeHexString(mac.doFinal());
+	}
+
+	/**
+	 * Creates a snapshot of the given folders. Each folder is stored under
+	 * its name, the ignored files are left out.
+	 *
+	 * @param folders
+	 *            the folders and their ignore matchers
+	 * @return the name of the new snapshot
+	 * @throws IOException
+	 *             if a folder cannot be read or an object cannot be written
+	 */
+	public String create(Map<Path, IgnoreMatcher> folders) throws IOException {
+		lock.readLock().lock();
+		try {
+			long startTime = System.currentTimeMillis();
+			String latest = getLatest();
+			String previousRoot = latest == null ? null : readRoot(latest);
+			Map<String, Entry> previous = previousRoot == null ? Collections.<String, Entry> emptyMap() : index(readTree(previousRoot));
+
+			List<Entry> entries = new ArrayList<>();
+			for (Map.Entry<Path, IgnoreMatcher> folder : folders.entrySet()) {
+				String name = folder.getKey().getFileName().toString();
+				if (entries.stream().anyMatch(entry -> entry.name.equals(name))) {
+					throw new IllegalArgumentException("Several folders are named " + name);
+				}
+				Entry old = previous.get(name);
+				String id = storeDirectory(folder.getKey(), folder.getValue(), old != null && old.directory ? old.id : null);
+				entries.add(new Entry(name, true, 0, 0, id));
+			}
+
+			String snapshot = writeSnapshot(storeTree(entries, previousRoot));
+			logger.info("Created snapshot {} in {} ms.", snapshot, System.currentTimeMillis() - startTime);
+			return snapshot;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private Mac createMac(byte type) {
+		try {
+			Mac mac = Mac.getInstance(MAC_ALGORITHM);
+			mac.init(macKey);
+			mac.update(type);
+			return mac;
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Deletes a snapshot. Its objects are removed by the next garbage
+	 * collection unless other snapshots share them.
+	 *
+	 * @param snapshot
+	 *            the name of the snapshot
+	 * @return <code>true</code> if the snapshot has been deleted
+	 * @throws IOException
+	 *             if the snapshot cannot be deleted
+	 */
+	public boolean delete(String snapshot) throws IOException {
+		return Files.deleteIfExists(snapshotFile(snapshot));
+	}
+
+	/**
+	 * Returns the name of the latest snapshot.
+	 *
+	 * @return the name or <code>null</code> if there is no snapshot
+	 * @throws IOException
+	 *             if the snapshots cannot be listed
+	 */
+	public String getLatest() throws IOException {
+		List<String> snapshots = list();
+		return snapshots.isEmpty() ? null : snapshots.get(snapshots.size() - 1);
+	}
+
+	/**
+	 * Returns the folder of the encrypted objects.
+	 *
+	 * @return the object folder
+	 */
+	public Path getObjectFolder() {
+		return objectFolder;
+	}
+
+	private static Map<String, Entry> index(List<Entry> entries) {
+		Map<String, Entry> index = new HashMap<>();
+		for (Entry entry : entries) {
+			index.put(entry.name, entry);
+		}
+		return index;
+	}
+
+	/**
+	 * Returns the names of all snapshots, oldest first.
+	 *
+	 * @return the names of the snapshots
+	 * @throws IOException
+	 *             if the snapshots cannot be listed
+	 */
+	public List<String> list() throws IOException {
+		try (Stream<Path> files = Files.list(snapshotFolder)) {
+			return files.map(file -> file.getFileName().toString()).filter(name -> NAME_PATTERN.matcher(name).matches()).sorted()
+					.collect(Collectors.toList());
+		}
+	}
+
+	private Path objectFile(String id) {
+		return objectFolder.resolve(id.substring(0, 2)).resolve(id);
+	}
+
+	/**
+	 * Deletes the oldest snapshots until the given number is left.
+	 *
+	 * @param keep
+	 *            the number of snapshots to keep, the latest one is always
+	 *            kept
+	 * @return the number of deleted snapshots
+	 * @throws IOException
+	 *             if a snapshot cannot be deleted
+	 */
+	public int prune(int keep) throws IOException {
+		List<String> snapshots = list();
+		int count = Math.max(0, snapshots.size() - Math.max(1, keep));
+		for (String snapshot : snapshots.subList(0, count)) {
+			delete(snapshot);
+		}
+		if (count > 0) {
+			logger.info("Deleted {} old snapshots.", count);
+		}
+		return count;
+	}
+
+	private String readRoot(String snapshot) throws IOException {
+		return new String(Files.readAllBytes(snapshotFile(snapshot)), StandardCharsets.US_ASCII).trim();
+	}
+
+	/**
+	 * Reads and verifies a directory object.
+	 */
+	List<Entry> readTree(String id) throws IOException {
+		ByteArrayOutputStream plain = new ByteArrayOutputStream();
+		try {
+			Crypter.decrypt(Files.newInputStream(objectFile(id)), plain, true);
+		} catch (RuntimeException e) {
+			throw unwrap(e);
+		}
+		byte[] bytes = plain.toByteArray();
+		if (!id.equals(computeId(TYPE_DIRECTORY, new ByteArrayInputStream(bytes)))) {
+			throw new IOException("Object " + id + " is corrupted.");
+		}
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		int count = in.readInt();
+		List<Entry> entries = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			boolean directory = in.readByte() == TYPE_DIRECTORY;
+			String name = in.readUTF();
+			entries.add(new Entry(name, directory, in.readLong(), in.readLong(), in.readUTF()));
+		}
+		return entries;
+	}
+
+	/**
+	 * Restores a snapshot into the given folder. Each snapshotted folder
+	 * becomes a subfolder, existing files are overwritten.
+	 *
+	 * @param snapshot
+	 *            the name of the snapshot
+	 * @param target
+	 *            the folder to restore into
+	 * @throws IOException
+	 *             if the snapshot cannot be read or a file cannot be written
+	 */
+	public void restore(String snapshot, Path target) throws IOException {
+		restoreDirectory(readTree(readRoot(snapshot)), target);
+		logger.info("Restored snapshot {} into {}.", snapshot, target);
+	}
+
+	private void restoreDirectory(List<Entry> entries, Path target) throws IOException {
+		Files.createDirectories(target);
+		for (Entry entry : entries) {
+			String name = entry.name;
+			if (name.isEmpty() || name.equals(".") || name.equals("..") || name.indexOf('/') >= 0 || name.indexOf('\\') >= 0
+					|| name.indexOf('\0') >= 0) {
+				throw new IOException("Invalid name in snapshot: " + name);
+			}
+			Path path = target.resolve(name);
+			if (!target.equals(path.getParent())) {
+				throw new IOException("Invalid name in snapshot: " + name);
+			}
+
+			if (entry.directory) {
+				restoreDirectory(readTree(entry.id), path);
+			} else {
+				restoreFile(entry, path);
+			}
+		}
+	}
+
+	/**
+	 * Decrypts and verifies a file object. An existing file is only replaced
+	 * if the content matches the id of the object.
+	 */
+	private void restoreFile(Entry entry, Path path) throws IOException {
+		Mac mac = createMac(TYPE_FILE);
+		Path tempFile = Files.createTempFile(path.getParent(), "restore", TEMP_SUFFIX);
+		try {
+			try (OutputStream outStream = new MacOutputStream(Files.newOutputStream(tempFile), mac)) {
+				Crypter.decrypt(Files.newInputStream(objectFile(entry.id)), outStream, true);
+			} catch (RuntimeException e) {
+				throw unwrap(e);
+			}
+			if (!entry.id.equals(Hex.encodeHexString(mac.doFinal()))) {
+				throw new IOException("Object " + entry.id + " is corrupted.");
+			}
+
+			Files.setLastModifiedTime(tempFile, FileTime.fromMillis(entry.modified));
+			Files.move(tempFile, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tempFile);
+		}
+	}
+
+	/**
+	 * Marks an existing object as recently used, so a running garbage
+	 * collection keeps it although the snapshots it has listed do not
+	 * reference it. Objects of the latest snapshot need no mark.
+	 *
+	 * @return <code>false</code> if the object does not exist
+	 */
+	private boolean reuse(String id) throws IOException {
+		try {
+			Files.setLastModifiedTime(objectFile(id), FileTime.fromMillis(System.currentTimeMillis()));
+			return true;
+		} catch (NoSuchFileException e) {
+			return false;
+		}
+	}
+
+	private Path snapshotFile(String snapshot) {
+		if (!NAME_PATTERN.matcher(snapshot).matches()) {
+			throw new IllegalArgumentException("Invalid snapshot name: " + snapshot);
+		}
+		return snapshotFolder.resolve(snapshot);
+	}
+
+	/**
+	 * Stores the given folder and returns the id of its directory object.
+	 * Subtrees are read against the previous version of the folder.
+	 */
+	private String storeDirectory(Path folder, IgnoreMatcher matcher, String previousId) throws IOException {
+		Map<String, Entry> previous = previousId == null ? Collections.<String, Entry> emptyMap() : index(readTree(previousId));
+
+		List<Entry> entries = new ArrayList<>();
+		try (DirectoryStream<Path> children = Files.newDirectoryStream(folder)) {
+			for (Path child : children) {
+				String name = child.getFileName().toString();
+				Entry old = previous.get(name);
+				try {
+					BasicFileAttributes attributes = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+					if (attributes.isDirectory()) {
+						if (!matcher.isIgnored(child, true)) {
+							String id = storeDirectory(child, matcher, old != null && old.directory ? old.id : null);
+							entries.add(new Entry(name, true, 0, 0, id));
+						}
+					} else if (attributes.isRegularFile() && !matcher.isIgnored(child, false)) {
+						long modified = attributes.lastModifiedTime().toMillis();
+						boolean unchanged = old != null && !old.directory && old.size == attributes.size() && old.modified == modified;
+						String id = unchanged ? old.id : storeFile(child, old != null ? old.id : null);
+						entries.add(new Entry(name, false, attributes.size(), modified, id));
+					}
+				} catch (NoSuchFileException e) {
+					logger.debug("{} has been deleted while creating the snapshot.", child);
+				}
+			}
+		}
+		return storeTree(entries, previousId);
+	}
+
+	/**
+	 * Stores the given file unless an object with the same content exists.
+	 */
+	private String storeFile(Path file, String previousId) throws IOException {
+		String id;
+		try (InputStream in = Files.newInputStream(file)) {
+			id = computeId(TYPE_FILE, in);
+		}
+		if (id.equals(previousId) || reuse(id)) {
+			return id;
+		}
+		// the id of the written object is computed again, in case the file has changed
+		return writeObject(TYPE_FILE, Files.newInputStream(file));
+	}
+
+	private String storeTree(List<Entry> entries, String previousId) throws IOException {
+		entries.sort(Comparator.comparing(entry -> entry.name));
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(entries.size());
+		for (Entry entry : entries) {
+			out.writeByte(entry.directory ? TYPE_DIRECTORY : TYPE_FILE);
+			out.writeUTF(entry.name);
+			out.writeLong(entry.size);
+			out.writeLong(entry.modified);
+			out.writeUTF(entry.id);
+		}
+		out.flush();
+
+		String id = computeId(TYPE_DIRECTORY, new ByteArrayInputStream(bytes.toByteArray()));
+		if (id.equals(previousId) || reuse(id)) {
+			return id;
+		}
+		return writeObject(TYPE_DIRECTORY, new ByteArrayInputStream(bytes.toByteArray()));
+	}
+
+	/**
+	 * Encrypts the stream into a new object and returns its id. The stream is
+	 * closed.
+	 */
+	private String writeObject(byte type, InputStream inStream) throws IOException {
+		Mac mac = createMac(type);
+		Path tempFile = Files.createTempFile(objectFolder, "object", TEMP_SUFFIX);
+		try {
+			OutputStream outStream = Files.newOutputStream(tempFile);
+			try {
+				Crypter.encrypt(new MacInputStream(inStream, mac), outStream, true);
+			} catch (RuntimeException e) {
+				outStream.close();
+				throw unwrap(e);
+			}
+
+			String id = Hex.encodeHexString(mac.doFinal());
+			Path target = objectFile(id);
+			Files.createDirectories(target.getParent());
+			Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			return id;
+		} finally {
+			inStream.close();
+			Files.deleteIfExists(tempFile);
+		}
+	}
+
+	/**
+	 * Writes the snapshot file which references the given root object.
+	 */
+	private String writeSnapshot(String rootId) throws IOException {
+		long time = System.currentTimeMillis();
+		String snapshot;
+		do {
+			snapshot = NAME_FORMAT.format(Instant.ofEpochMilli(time++));
+		} while (Files.exists(snapshotFolder.resolve(snapshot)));
+
+		Path tempFile = Files.createTempFile(snapshotFolder, "snapshot", TEMP_SUFFIX);
+		try {
+			Files.write(tempFile, rootId.getBytes(StandardCharsets.US_ASCII));
+			Files.move(tempFile, snapshotFolder.resolve(snapshot), StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tempFile);
+		}
+		return snapshot;
+	}
+}
@@ -0,0 +1,49 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs.sync;
+
+/**
+ * Handler which performs the synchronization of a {@link SyncJob}.
+ */
+public interface ISyncJobHandler {
+
+	/**
+	 * Will be called when a job failed for the last time.
+	 * 
+	 * @param job
+	 *            the failed job
+	 * @param cause
+	 *            the reason of the last failure
+	 */
+	void onFailure(SyncJob job, Exception cause);
+
+	/**
+	 * Synchronizes the file of the job. A thrown exception schedules a retry.
+	 * 
+	 * @param job
+	 *            the job to process
+	 * @throws Exception
+	 *             if the synchronization failed
+	 */
+	void process(SyncJob job) throws Exception;
+}
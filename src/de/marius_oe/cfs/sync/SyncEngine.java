@@ -0,0 +1,494 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs.sync;
+
+import static de.marius_oe.cfs.configuration.Configuration.Key.LargeFileSize;
+import static de.marius_oe.cfs.configuration.Configuration.Key.LargeFileWorkers;
+import static de.marius_oe.cfs.configuration.Configuration.Key.RetryAttempts;
+import static de.marius_oe.cfs.configuration.Configuration.Key.RetryDelay;
+import static de.marius_oe.cfs.configuration.Configuration.Key.ScanIntervalMax;
+import static de.marius_oe.cfs.configuration.Configuration.Key.ScanIntervalMin;
+import static de.marius_oe.cfs.configuration.Configuration.Key.SmallFileWorkers;
+import static de.marius_oe.cfs.configuration.Configuration.Key.WatcherShards;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.marius_oe.cfs.configuration.ConfigurationSnapshot;
+import de.marius_oe.cfs.configuration.FolderPolicy;
+import de.marius_oe.cfs.configuration.FolderPolicy.ChangeDetection;
+import de.marius_oe.cfs.configuration.FolderPolicy.Compression;
+import de.marius_oe.cfs.configuration.IConfigurationListener;
+import de.marius_oe.cfs.storage.LocalStorage;
+import de.marius_oe.cfs.util.file.FileWatcher;
+import de.marius_oe.cfs.util.file.IChangeDetector;
+import de.marius_oe.cfs.util.file.IFileListener;
+import de.marius_oe.cfs.util.file.IgnoreMatcher;
+import de.marius_oe.cfs.util.file.PollingScanner;
+import de.marius_oe.cfs.util.throttle.IoThrottle;
+import de.marius_oe.cfs.util.throttle.IoThrottle.Channel;
+
+/**
+ * Synchronizes the configured folders into a {@link LocalStorage}. Changes
+ * reported by the change detectors are journaled first and then processed by
+ * the {@link SyncScheduler}; an operation is only removed from the journal
+ * once its file has been stored, so nothing is lost if the process stops.
+ * <p>
+ * Every sync folder is stored below the encrypted name of the folder in the
+ * target folder. Files changed while the engine was not running are found
+ * on startup by comparing their modification times with the stored files.
+ */
+public final class SyncEngine implements IFileListener, ISyncJobHandler, IConfigurationListener {
+
+	private static final Logger logger = LoggerFactory.getLogger(SyncEngine.class);
+
+	private volatile ConfigurationSnapshot configuration;
+
+	private final List<IChangeDetector> detectors = new ArrayList<>();
+
+	private final SyncJournal journal;
+
+	/** Policies of the folders registered with the change detectors. */
+	private final Map<Path, FolderPolicy> registered = new HashMap<>();
+
+	private PollingScanner scanner;
+
+	private boolean started;
+
+	private final SyncScheduler scheduler;
+
+	private final LocalStorage storage;
+
+	private final IoThrottle throttle;
+
+	private FileWatcher watcher;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param configuration
+	 *            the current configuration
+	 * @param journal
+	 *            the opened journal
+	 * @param storage
+	 *            the storage the files are synchronized into
+	 */
+	public SyncEngine(ConfigurationSnapshot configuration, SyncJournal journal, LocalStorage storage) {
+		this.configuration = configuration;
+		this.journal = journal;
+		this.storage = storage;
+		this.throttle = new IoThrottle(configuration);
+		this.scheduler = new SyncScheduler(this, configuration.getInt(LargeFileSize), configuration.getInt(RetryDelay),
+				configuration.getInt(RetryAttempts));
+	}
+
+	/**
+	 * Returns the change detector of the given kind, which is created and
+	 * started on first use.
+	 */
+	private IChangeDetector getDetector(ChangeDetection changeDetection) {
+		if (changeDetection == ChangeDetection.SCANNER) {
+			if (scanner == null) {
+				scanner = new PollingScanner(configuration.getInt(ScanIntervalMin), configuration.getInt(ScanIntervalMax),
+						Runtime.getRuntime().availableProcessors());
+				startDetector(scanner);
+			}
+			return scanner;
+		}
+		if (watcher == null) {
+			watcher = new FileWatcher(configuration.getInt(WatcherShards));
+			startDetector(watcher);
+		}
+		return watcher;
+	}
+
+	/**
+	 * Returns the scheduler of the sync jobs.
+	 *
+	 * @return the scheduler
+	 */
+	public SyncScheduler getScheduler() {
+		return scheduler;
+	}
+
+	/**
+	 * Returns the path of a file in the storage, made of the name of its sync
+	 * folder and its path relative to that folder.
+	 */
+	private Path getStoragePath(FolderPolicy policy, Path file) {
+		Path folder = policy.getPath();
+		return folder.getFileName().resolve(folder.relativize(file));
+	}
+
+	/**
+	 * Applies the new configuration. Added sync folders are registered and
+	 * reconciled, removed ones unregistered, and folders whose ignore
+	 * patterns or change detection have changed are registered again.
+	 */
+	@Override
+	public void onConfigurationChange(ConfigurationSnapshot configuration) {
+		this.configuration = configuration;
+		throttle.onConfigurationChange(configuration);
+		for (FolderPolicy policy : configuration.getFolderPolicies()) {
+			scheduler.setConcurrency(policy.getPath(), policy.getConcurrency());
+		}
+		updateFolders(configuration);
+	}
+
+	@Override
+	public void onCreate(Path file) {
+		submit(SyncOperation.Type.CREATE, file);
+	}
+
+	@Override
+	public void onDelete(Path file) {
+		submit(SyncOperation.Type.DELETE, file);
+	}
+
+	@Override
+	public void onFailure(SyncJob job, Exception cause) {
+		// the operations stay in the journal and are retried after a restart
+		logger.error("Synchronization of {} failed - Reason: {}", job.getPath(), cause.getLocalizedMessage());
+	}
+
+	@Override
+	public void onModify(Path file) {
+		submit(SyncOperation.Type.MODIFY, file);
+	}
+
+	@Override
+	public void process(SyncJob job) throws Exception {
+		FolderPolicy policy = configuration.getPolicy(job.getPath());
+		if (policy.getPath() == null) {
+			logger.info("{} is no longer in a sync folder.", job.getPath());
+		} else {
+			Path storagePath = getStoragePath(policy, job.getPath());
+			if (job.getType() == SyncOperation.Type.DELETE || !Files.isRegularFile(job.getPath())) {
+				storage.delete(storagePath);
+			} else {
+				try {
+					InputStream in = throttle.throttle(Files.newInputStream(job.getPath()), Channel.READ, policy.getPath(), job.getSize());
+					storage.store(storagePath, in, policy.getCompression() == Compression.ZIP,
+							out -> throttle.throttleStore(out, policy.getPath(), job.getSize()));
+				} catch (NoSuchFileException e) {
+					// deleted in the meantime, the delete event follows
+					logger.debug("{} has been deleted before it was stored.", job.getPath());
+				}
+			}
+		}
+
+		for (long sequence : job.getSequences()) {
+			journal.complete(sequence);
+		}
+	}
+
+	/**
+	 * Starts the change detection of all sync folders and the workers, and
+	 * queues the pending operations of the journal.
+	 *
+	 * @param pending
+	 *            the operations returned by {@link SyncJournal#open()}
+	 * @throws IOException
+	 *             if a folder cannot be registered
+	 */
+	public synchronized void start(List<SyncOperation> pending) throws IOException {
+		ConfigurationSnapshot configuration = this.configuration;
+		Map<FolderPolicy, IgnoreMatcher> matchers = new LinkedHashMap<>();
+		for (FolderPolicy policy : configuration.getFolderPolicies()) {
+			matchers.put(policy, register(policy));
+		}
+
+		for (SyncOperation operation : pending) {
+			submit(operation);
+		}
+		logger.info("Replayed {} pending operations of the journal.", pending.size());
+
+		scheduler.start(configuration.getInt(SmallFileWorkers), configuration.getInt(LargeFileWorkers));
+		started = true;
+		reconcile(matchers);
+	}
+
+	/**
+	 * Reconciles the given folders in the background.
+	 */
+	private void reconcile(Map<FolderPolicy, IgnoreMatcher> matchers) {
+		Thread reconciler = new Thread(() -> matchers.forEach(this::reconcile), "sync-reconcile");
+		reconciler.setDaemon(true);
+		reconciler.start();
+	}
+
+	/**
+	 * Registers the folder with the change detector of its policy.
+	 *
+	 * @return the matcher of the ignored files of the folder
+	 */
+	private IgnoreMatcher register(FolderPolicy policy) throws IOException {
+		IgnoreMatcher matcher = IgnoreMatcher.load(policy.getPath(), policy.getIgnorePatterns());
+		getDetector(policy.getChangeDetection()).registerAll(policy.getPath(), matcher);
+		registered.put(policy.getPath(), policy);
+		scheduler.setConcurrency(policy.getPath(), policy.getConcurrency());
+		logger.info("Synchronizing {} ({}).", policy.getPath(), policy.getChangeDetection());
+		return matcher;
+	}
+
+	/**
+	 * Queues every file of the folder which has been changed while the
+	 * engine was not running, that is whose stored file is missing or older,
+	 * and every file which has been deleted since.
+	 */
+	private void reconcile(FolderPolicy policy, IgnoreMatcher matcher) {
+		Path folder = policy.getPath();
+		int[] changed = new int[1];
+		try {
+			Files.walkFileTree(folder, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+					return !dir.equals(folder) && matcher.isIgnored(dir, true) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+					if (attributes.isRegularFile() && !matcher.isIgnored(file, false)) {
+						Path stored = storage.resolve(getStoragePath(policy, file));
+						if (!Files.exists(stored) || Files.getLastModifiedTime(stored).compareTo(attributes.lastModifiedTime()) < 0) {
+							submit(SyncOperation.Type.MODIFY, file);
+							changed[0]++;
+						}
+					}
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException e) {
+					logger.warn("{} cannot be checked - Reason: {}", file, e.getLocalizedMessage());
+					return FileVisitResult.CONTINUE;
+				}
+			});
+			logger.info("Found {} changed files in {}.", changed[0], folder);
+		} catch (IOException e) {
+			logger.error("{} cannot be checked for changes - Reason: {}", folder, e.getLocalizedMessage());
+		}
+		reconcileDeletions(policy);
+	}
+
+	/**
+	 * Queues the deletion of every stored file and directory whose source has
+	 * been deleted while the engine was not running.
+	 */
+	private void reconcileDeletions(FolderPolicy policy) {
+		Path folder = policy.getPath();
+		Path storedFolder = storage.resolve(folder.getFileName());
+		if (!Files.isDirectory(folder) || !Files.isDirectory(storedFolder)) {
+			// a missing sync folder, e.g. an unmounted drive, deletes nothing
+			return;
+		}
+
+		int[] deleted = new int[1];
+		try {
+			Files.walkFileTree(storedFolder, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+					return dir.equals(storedFolder) ? FileVisitResult.CONTINUE : check(dir);
+				}
+
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+					return check(file);
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException e) {
+					logger.warn("{} cannot be checked - Reason: {}", file, e.getLocalizedMessage());
+					return FileVisitResult.CONTINUE;
+				}
+
+				private FileVisitResult check(Path stored) {
+					Path source;
+					try {
+						source = folder.resolveSibling(storage.relativize(stored));
+					} catch (IllegalArgumentException e) {
+						// temporary file or not written by this storage
+						return FileVisitResult.SKIP_SUBTREE;
+					}
+					if (Files.exists(source, LinkOption.NOFOLLOW_LINKS)) {
+						return FileVisitResult.CONTINUE;
+					}
+					submit(SyncOperation.Type.DELETE, source);
+					deleted[0]++;
+					return FileVisitResult.SKIP_SUBTREE;
+				}
+			});
+			logger.info("Found {} deleted files in {}.", deleted[0], folder);
+		} catch (IOException e) {
+			logger.error("{} cannot be checked for deletions - Reason: {}", folder, e.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Registers this engine with the given detector and starts it.
+	 */
+	private void startDetector(IChangeDetector detector) {
+		detectors.add(detector);
+		detector.registerFileListener(this);
+		Thread thread = new Thread(detector, detector.getClass().getSimpleName());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops the change detection and waits until the queued jobs are done or
+	 * the timeout has passed. Jobs which are not done stay in the journal.
+	 *
+	 * @param timeout
+	 *            maximum time to wait in milliseconds
+	 * @return <code>true</code> if all jobs are done
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting
+	 */
+	public synchronized boolean stop(long timeout) throws InterruptedException {
+		started = false;
+		for (IChangeDetector detector : detectors) {
+			detector.unregisterFileListener(this);
+			detector.stopWatching();
+		}
+		detectors.clear();
+		registered.clear();
+		watcher = null;
+		scanner = null;
+
+		boolean drained = scheduler.drain(timeout);
+		scheduler.stop();
+		if (!drained) {
+			logger.warn("{} jobs have not been finished and are replayed on the next start.", scheduler.getQueuedCount() + scheduler.getActiveCount());
+		}
+		return drained;
+	}
+
+	/**
+	 * Journals the operation and queues it once it is durable.
+	 */
+	private void submit(SyncOperation.Type type, Path file) {
+		// the detectors report the entries of a created directory separately
+		if (type != SyncOperation.Type.DELETE && Files.isDirectory(file)) {
+			return;
+		}
+		journal.append(type, file).whenComplete((operation, cause) -> {
+			if (cause != null) {
+				logger.error("{} of {} cannot be journaled - Reason: {}", type, file, cause.getLocalizedMessage());
+			} else {
+				submit(operation);
+			}
+		});
+	}
+
+	/**
+	 * Queues a journaled operation.
+	 */
+	private void submit(SyncOperation operation) {
+		FolderPolicy policy = configuration.getPolicy(operation.getPath());
+		if (policy.getPath() == null) {
+			// the folder has been removed from the configuration
+			journal.complete(operation.getSequence());
+			return;
+		}
+
+		long size = 0;
+		long modificationTime = 0;
+		try {
+			BasicFileAttributes attributes = Files.readAttributes(operation.getPath(), BasicFileAttributes.class);
+			size = attributes.size();
+			modificationTime = attributes.lastModifiedTime().toMillis();
+		} catch (IOException e) {
+			// deleted files are processed as soon as possible
+			modificationTime = System.currentTimeMillis();
+		}
+		scheduler.submit(operation, policy.getPath(), policy.isPinned(), size, modificationTime);
+	}
+
+	/**
+	 * Stops watching the folder of the given policy.
+	 */
+	private void unregister(FolderPolicy policy) {
+		getDetector(policy.getChangeDetection()).unregisterAll(policy.getPath());
+		registered.remove(policy.getPath());
+	}
+
+	/**
+	 * Registers the added and changed folders of the configuration and
+	 * unregisters the removed ones. Nothing is done before the engine has
+	 * been started.
+	 */
+	private synchronized void updateFolders(ConfigurationSnapshot configuration) {
+		if (!started) {
+			return;
+		}
+
+		Map<FolderPolicy, IgnoreMatcher> changed = new LinkedHashMap<>();
+		Set<Path> folders = new HashSet<>();
+		for (FolderPolicy policy : configuration.getFolderPolicies()) {
+			folders.add(policy.getPath());
+			FolderPolicy previous = registered.get(policy.getPath());
+			if (previous != null && previous.getChangeDetection() == policy.getChangeDetection()
+					&& previous.getIgnorePatterns().equals(policy.getIgnorePatterns())) {
+				continue;
+			}
+
+			try {
+				if (previous != null) {
+					unregister(previous);
+				}
+				changed.put(policy, register(policy));
+			} catch (IOException e) {
+				logger.error("{} cannot be registered - Reason: {}", policy.getPath(), e.getLocalizedMessage());
+			}
+		}
+
+		for (FolderPolicy policy : new ArrayList<>(registered.values())) {
+			if (!folders.contains(policy.getPath())) {
+				unregister(policy);
+				logger.info("Stopped synchronizing {}.", policy.getPath());
+			}
+		}
+
+		if (!changed.isEmpty()) {
+			reconcile(changed);
+		}
+	}
+}
@@ -0,0 +1,182 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs.sync;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A queued synchronization of a single file. Operations on a file which is
+ * still queued are merged into its job, so a file that is saved repeatedly
+ * is only synchronized once.
+ */
+public final class SyncJob {
+
+	private int attempt;
+	private final Path folder;
+	private long modificationTime;
+	private long notBefore;
+	private final Path path;
+	private final boolean pinned;
+	private final List<Long> sequences = new ArrayList<>();
+	private long size;
+	private SyncOperation.Type type;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param operation
+	 *            the journaled operation
+	 * @param folder
+	 *            the sync folder of the file
+	 * @param pinned
+	 *            whether the folder is pinned by the user
+	 * @param size
+	 *            the size of the file
+	 * @param modificationTime
+	 *            the modification time of the file in milliseconds
+	 */
+	public SyncJob(SyncOperation operation, Path folder, boolean pinned, long size, long modificationTime) {
+		this.path = operation.getPath();
+		this.folder = folder;
+		this.pinned = pinned;
+		update(operation, size, modificationTime);
+	}
+
+	/**
+	 * Returns the number of failed attempts.
+	 *
+	 * @return the number of failed attempts
+	 */
+	public int getAttempt() {
+		return attempt;
+	}
+
+	/**
+	 * Returns the sync folder of the file.
+	 *
+	 * @return the sync folder
+	 */
+	public Path getFolder() {
+		return folder;
+	}
+
+	/**
+	 * Returns the modification time of the file.
+	 *
+	 * @return the modification time in milliseconds
+	 */
+	public long getModificationTime() {
+		return modificationTime;
+	}
+
+	/**
+	 * Returns the time before which the job must not run.
+	 *
+	 * @return time in milliseconds
+	 */
+	long getNotBefore() {
+		return notBefore;
+	}
+
+	/**
+	 * Returns the affected file.
+	 *
+	 * @return the absolute path of the file
+	 */
+	public Path getPath() {
+		return path;
+	}
+
+	/**
+	 * Returns the sequence numbers of all journaled operations merged into
+	 * this job.
+	 *
+	 * @return unmodifiable list of sequence numbers
+	 */
+	public List<Long> getSequences() {
+		return Collections.unmodifiableList(sequences);
+	}
+
+	/**
+	 * Returns the size of the file.
+	 *
+	 * @return the size in bytes
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * Returns the kind of the latest merged operation.
+	 *
+	 * @return the operation type
+	 */
+	public SyncOperation.Type getType() {
+		return type;
+	}
+
+	/**
+	 * Returns whether the folder of the file is pinned by the user.
+	 *
+	 * @return <code>true</code> if the folder is pinned
+	 */
+	public boolean isPinned() {
+		return pinned;
+	}
+
+	/**
+	 * Merges the operations of an older job of the same file into this job.
+	 */
+	void merge(SyncJob older) {
+		sequences.addAll(0, older.sequences);
+	}
+
+	/**
+	 * Records a failed attempt.
+	 */
+	void retryAt(long notBefore) {
+		this.attempt++;
+		this.notBefore = notBefore;
+	}
+
+	/**
+	 * Merges a newer operation into this job. A pending retry is dropped,
+	 * the newer operation is processed right away with fresh attempts.
+	 */
+	void update(SyncOperation operation, long size, long modificationTime) {
+		this.attempt = 0;
+		this.notBefore = 0;
+		this.type = operation.getType();
+		this.size = size;
+		this.modificationTime = modificationTime;
+		this.sequences.add(operation.getSequence());
+	}
+
+	@Override
+	public String toString() {
+		return type + " " + path;
+	}
+}
@@ -0,0 +1,461 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs.sync;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only journal of pending {@link SyncOperation}s, so changes which
+ * have been detected but not yet synchronized survive a crash.
+ * <p>
+ * Appended operations are written by a single writer thread. It takes all
+ * requests that are queued at the moment and writes them with a single
+ * <code>fsync</code> (group commit), so the cost of the <code>fsync</code>
+ * is shared by all operations of a burst. The future returned by
+ * {@link #append(SyncOperation.Type, Path)} completes once the operation is
+ * durable.
+ * <p>
+ * Record layout: length (4 bytes), CRC32 (4 bytes), record type (1 byte),
+ * sequence number (8 bytes) and for operations the operation type (1 byte)
+ * and the UTF-8 encoded path. A torn record at the end of the journal is
+ * dropped on replay. When the journal exceeds the checkpoint size, it is
+ * rewritten with the pending operations only.
+ */
+public final class SyncJournal implements Closeable {
+
+	/**
+	 * Kinds of requests processed by the writer thread.
+	 */
+	private enum RequestType {
+		OPERATION, COMPLETE, CHECKPOINT, STOP
+	}
+
+	private static final Logger logger = LoggerFactory.getLogger(SyncJournal.class);
+
+	/** Upper bound of a record, longer records are treated as corrupt. */
+	private static final int MAX_RECORD_LENGTH = 64 * 1024;
+
+	private static final byte RECORD_COMPLETE = 2;
+	private static final byte RECORD_OPERATION = 1;
+
+	/**
+	 * Writes the whole buffer into the channel.
+	 */
+	private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/** Buffer of the current batch. Only used by the writer thread. */
+	private final ByteArrayOutputStream batch = new ByteArrayOutputStream();
+
+	private FileChannel channel;
+
+	private final long checkpointSize;
+
+	private volatile boolean closed;
+
+	private final CRC32 crc = new CRC32();
+
+	private final Path file;
+
+	private final AtomicLong nextSequence = new AtomicLong(1);
+
+	/** Operations which have not been completed yet, by sequence number. */
+	private final Map<Long, SyncOperation> pending = new TreeMap<>();
+
+	private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+
+	/** Buffer of the current record. Only used by the writer thread. */
+	private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+
+	/** Size of the journal after the last checkpoint. */
+	private long sizeAfterCheckpoint;
+
+	private Thread writer;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param file
+	 *            the journal file
+	 * @param checkpointSize
+	 *            size in bytes after which the journal is rewritten with the
+	 *            pending operations only
+	 */
+	public SyncJournal(Path file, long checkpointSize) {
+		this.file = file;
+		this.checkpointSize = checkpointSize;
+	}
+
+	/**
+	 * Appends an operation to the journal.
+	 * 
+	 * @param type
+	 *            the kind of the operation
+	 * @param path
+	 *            the affected file
+	 * @return future which completes with the operation once it is durable
+	 */
+	public CompletableFuture<SyncOperation> append(SyncOperation.Type type, Path path) {
+		SyncOperation operation = new SyncOperation(nextSequence.getAndIncrement(), type, path);
+		Request request = new Request(RequestType.OPERATION, operation, operation.getSequence());
+		enqueue(request);
+		return request.future;
+	}
+
+	/**
+	 * Rewrites the journal with the pending operations only.
+	 * 
+	 * @return future which completes when the journal has been rewritten
+	 */
+	public CompletableFuture<SyncOperation> checkpoint() {
+		Request request = new Request(RequestType.CHECKPOINT, null, 0);
+		enqueue(request);
+		return request.future;
+	}
+
+	/**
+	 * Writes all queued operations and closes the journal.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (writer != null) {
+			queue.add(new Request(RequestType.STOP, null, 0));
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (channel != null) {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Marks the operation with the given sequence number as completed. The
+	 * completion is written with the next batch; if it is lost, the
+	 * operation is replayed again.
+	 * 
+	 * @param sequence
+	 *            sequence number of the completed operation
+	 */
+	public void complete(long sequence) {
+		enqueue(new Request(RequestType.COMPLETE, null, sequence));
+	}
+
+	/**
+	 * Encodes a record into the batch buffer.
+	 */
+	private void encode(byte recordType, long sequence, SyncOperation operation) throws IOException {
+		record.reset();
+		DataOutputStream recordOut = new DataOutputStream(record);
+		recordOut.writeByte(recordType);
+		recordOut.writeLong(sequence);
+		if (operation != null) {
+			recordOut.writeByte(operation.getType().ordinal());
+			recordOut.write(operation.getPath().toString().getBytes(StandardCharsets.UTF_8));
+		}
+
+		crc.reset();
+		crc.update(record.toByteArray(), 0, record.size());
+
+		DataOutputStream batchOut = new DataOutputStream(batch);
+		batchOut.writeInt(record.size());
+		batchOut.writeInt((int) crc.getValue());
+		record.writeTo(batchOut);
+	}
+
+	private void enqueue(Request request) {
+		if (closed) {
+			throw new IllegalStateException("Journal has been closed.");
+		}
+		queue.add(request);
+	}
+
+	/**
+	 * Opens the journal and replays its records. A torn or corrupt record at
+	 * the end is truncated.
+	 * 
+	 * @return the operations which have not been completed, ordered by their
+	 *         sequence number
+	 * @throws IOException
+	 *             if the journal cannot be opened
+	 */
+	public synchronized List<SyncOperation> open() throws IOException {
+		if (writer != null) {
+			throw new IllegalStateException("Journal has already been opened.");
+		}
+
+		channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		long validLength = replay();
+		if (validLength < channel.size()) {
+			logger.warn("Truncating {} bytes of a torn record at the end of the journal.", channel.size() - validLength);
+			channel.truncate(validLength);
+			channel.force(true);
+		}
+		channel.position(validLength);
+		sizeAfterCheckpoint = validLength;
+		logger.info("Journal {} opened with {} pending operations.", file, pending.size());
+
+		List<SyncOperation> operations = new ArrayList<>(pending.values());
+
+		writer = new Thread(this::processRequests, "sync-journal");
+		writer.setDaemon(true);
+		writer.start();
+		return operations;
+	}
+
+	/**
+	 * Loop of the writer thread.
+	 */
+	private void processRequests() {
+		List<Request> requests = new ArrayList<>();
+		boolean stop = false;
+		while (!stop) {
+			try {
+				requests.add(queue.take());
+			} catch (InterruptedException e) {
+				return;
+			}
+			queue.drainTo(requests);
+
+			try {
+				stop = writeBatch(requests);
+			} catch (IOException e) {
+				logger.error("Journal cannot be written - Reason: {}", e.getLocalizedMessage());
+				for (Request request : requests) {
+					if (request.future != null) {
+						request.future.completeExceptionally(e);
+					}
+					stop |= request.type == RequestType.STOP;
+				}
+			}
+			requests.clear();
+		}
+	}
+
+	/**
+	 * Reads all valid records.
+	 * 
+	 * @return length of the valid part of the journal
+	 */
+	private long replay() throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(0))));
+		long validLength = 0;
+		long maxSequence = 0;
+
+		while (true) {
+			byte[] data;
+			int checksum;
+			try {
+				int length = in.readInt();
+				checksum = in.readInt();
+				if (length < 9 || length > MAX_RECORD_LENGTH) {
+					break;
+				}
+				data = new byte[length];
+				in.readFully(data);
+			} catch (EOFException e) {
+				break;
+			}
+
+			crc.reset();
+			crc.update(data, 0, data.length);
+			if ((int) crc.getValue() != checksum) {
+				break;
+			}
+
+			ByteBuffer buffer = ByteBuffer.wrap(data);
+			byte recordType = buffer.get();
+			long sequence = buffer.getLong();
+			if (recordType == RECORD_OPERATION) {
+				SyncOperation.Type type = SyncOperation.Type.values()[buffer.get()];
+				String path = new String(data, buffer.position(), buffer.remaining(), StandardCharsets.UTF_8);
+				pending.put(sequence, new SyncOperation(sequence, type, Paths.get(path)));
+			} else if (recordType == RECORD_COMPLETE) {
+				pending.remove(sequence);
+			} else {
+				break;
+			}
+
+			maxSequence = Math.max(maxSequence, sequence);
+			validLength += 8 + data.length;
+		}
+
+		nextSequence.set(maxSequence + 1);
+		return validLength;
+	}
+
+	/**
+	 * Writes the pending operations into a new journal which replaces the
+	 * current one. The current journal stays in use until the new one has
+	 * been moved into its place.
+	 */
+	private void rewrite() throws IOException {
+		Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+		batch.reset();
+		for (SyncOperation operation : pending.values()) {
+			encode(RECORD_OPERATION, operation.getSequence(), operation);
+		}
+
+		FileChannel newChannel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			write(newChannel, ByteBuffer.wrap(batch.toByteArray()));
+			newChannel.force(true);
+			// the open channel follows the file to its new name
+			Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			newChannel.close();
+			Files.deleteIfExists(tempFile);
+			throw e;
+		} finally {
+			batch.reset();
+		}
+
+		FileChannel oldChannel = channel;
+		channel = newChannel;
+		sizeAfterCheckpoint = channel.size();
+		oldChannel.close();
+		logger.debug("Journal checkpoint written with {} pending operations.", pending.size());
+	}
+
+	/**
+	 * Writes a batch of requests with a single fsync.
+	 * 
+	 * @return <code>true</code> if the writer has to stop
+	 */
+	private boolean writeBatch(List<Request> requests) throws IOException {
+		boolean stop = false;
+		boolean checkpoint = false;
+
+		batch.reset();
+		for (Request request : requests) {
+			switch (request.type) {
+			case OPERATION:
+				encode(RECORD_OPERATION, request.sequence, request.operation);
+				break;
+			case COMPLETE:
+				encode(RECORD_COMPLETE, request.sequence, null);
+				break;
+			case CHECKPOINT:
+				checkpoint = true;
+				break;
+			case STOP:
+				stop = true;
+				break;
+			}
+		}
+
+		if (batch.size() > 0) {
+			long offset = channel.position();
+			try {
+				write(channel, ByteBuffer.wrap(batch.toByteArray()));
+				channel.force(false);
+			} catch (IOException e) {
+				// a torn record in the middle would hide all later records on replay
+				channel.position(offset);
+				channel.truncate(offset);
+				throw e;
+			}
+		}
+
+		// the pending operations only change once the batch is durable
+		for (Request request : requests) {
+			if (request.type == RequestType.OPERATION) {
+				pending.put(request.sequence, request.operation);
+			} else if (request.type == RequestType.COMPLETE) {
+				pending.remove(request.sequence);
+			}
+		}
+
+		long size = channel.size();
+		if (checkpoint || size > Math.max(checkpointSize, 2 * sizeAfterCheckpoint)) {
+			try {
+				rewrite();
+			} catch (IOException e) {
+				// the batch is durable, the journal is rewritten with a later batch
+				logger.warn("Journal checkpoint cannot be written - Reason: {}", e.getLocalizedMessage());
+			}
+		}
+
+		for (Request request : requests) {
+			if (request.future != null) {
+				request.future.complete(request.operation);
+			}
+		}
+		return stop;
+	}
+
+	/**
+	 * Request for the writer thread.
+	 */
+	private static class Request {
+
+		final CompletableFuture<SyncOperation> future;
+		final SyncOperation operation;
+		final long sequence;
+		final RequestType type;
+
+		Request(RequestType type, SyncOperation operation, long sequence) {
+			this.type = type;
+			this.operation = operation;
+			this.sequence = sequence;
+			this.future = type == RequestType.COMPLETE || type == RequestType.STOP ? null : new CompletableFuture<SyncOperation>();
+		}
+	}
+}
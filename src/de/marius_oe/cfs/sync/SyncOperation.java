@@ -0,0 +1,91 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs.sync;
+
+import java.nio.file.Path;
+
+/**
+ * A pending synchronization of a single file, as recorded in the
+ * {@link SyncJournal}.
+ */
+public final class SyncOperation {
+
+	/**
+	 * Kinds of operations.
+	 */
+	public enum Type {
+		CREATE, MODIFY, DELETE
+	}
+
+	private final Path path;
+	private final long sequence;
+	private final Type type;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param sequence
+	 *            the unique, increasing number of the operation
+	 * @param type
+	 *            the kind of the operation
+	 * @param path
+	 *            the absolute path of the affected file
+	 */
+	public SyncOperation(long sequence, Type type, Path path) {
+		this.sequence = sequence;
+		this.type = type;
+		this.path = path;
+	}
+
+	/**
+	 * Returns the affected file.
+	 * 
+	 * @return the absolute path of the file
+	 */
+	public Path getPath() {
+		return path;
+	}
+
+	/**
+	 * Returns the unique, increasing number of this operation.
+	 * 
+	 * @return the sequence number
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Returns the kind of this operation.
+	 * 
+	 * @return the type
+	 */
+	public Type getType() {
+		return type;
+	}
+
+	@Override
+	public String toString() {
+		return sequence + " " + type + " " + path;
+	}
+}
@@ -0,0 +1,384 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs.sync;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Schedules queued {@link SyncJob}s by priority instead of arrival order.
+ * Jobs of pinned folders come first, then smaller files and then more
+ * recently modified files.
+ * <p>
+ * Large files are processed in their own lane with their own workers, so
+ * they never hold up small files. Workers of the large lane take small jobs
+ * when no large job is queued. Failed jobs are retried with exponential
+ * backoff. A file is never processed by two workers at the same time, and
+ * the number of files of a folder processed at the same time can be limited.
+ */
+public final class SyncScheduler {
+
+	/**
+	 * Lanes with separate workers.
+	 */
+	public enum Lane {
+		SMALL, LARGE
+	}
+
+	private static final Logger logger = LoggerFactory.getLogger(SyncScheduler.class);
+
+	/** Upper bound of the retry delay. */
+	private static final long MAX_RETRY_DELAY = TimeUnit.MINUTES.toMillis(30);
+
+	private static final Comparator<SyncJob> PRIORITY = Comparator.comparing((SyncJob job) -> !job.isPinned())
+			.thenComparingInt(job -> 64 - Long.numberOfLeadingZeros(job.getSize()))
+			.thenComparing(Comparator.comparingLong(SyncJob::getModificationTime).reversed());
+
+	/** Number of jobs which are processed at the moment. */
+	private int activeJobs;
+
+	/** Maximum number of jobs per sync folder processed at the same time. */
+	private final Map<Path, Integer> concurrency = new HashMap<>();
+
+	/** Jobs waiting for their retry, ordered by their retry time. */
+	private final PriorityQueue<SyncJob> delayed = new PriorityQueue<>(Comparator.comparingLong(SyncJob::getNotBefore));
+
+	private final ISyncJobHandler handler;
+
+	private final long largeFileSize;
+
+	private final int maxAttempts;
+
+	/** Queued jobs by path. */
+	private final Map<Path, SyncJob> queued = new HashMap<>();
+
+	private final Map<Lane, PriorityQueue<SyncJob>> ready = new EnumMap<>(Lane.class);
+
+	private final long retryDelay;
+
+	/** Files which are processed at the moment. */
+	private final Set<Path> running = new HashSet<>();
+
+	/** Number of jobs per sync folder processed at the moment. */
+	private final Map<Path, Integer> runningPerFolder = new HashMap<>();
+
+	private volatile boolean stopped;
+
+	private final List<Thread> workers = new ArrayList<>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param handler
+	 *            the handler processing the jobs
+	 * @param largeFileSize
+	 *            size in bytes from which files are processed in the large
+	 *            lane
+	 * @param retryDelay
+	 *            delay of the first retry in milliseconds, doubled with every
+	 *            further retry
+	 * @param maxAttempts
+	 *            number of attempts before a job is given up
+	 */
+	public SyncScheduler(ISyncJobHandler handler, long largeFileSize, long retryDelay, int maxAttempts) {
+		this.handler = handler;
+		this.largeFileSize = largeFileSize;
+		this.retryDelay = retryDelay;
+		this.maxAttempts = maxAttempts;
+		for (Lane lane : Lane.values()) {
+			ready.put(lane, new PriorityQueue<>(PRIORITY));
+		}
+	}
+
+	/**
+	 * Queues the job into the ready lane or the delay queue.
+	 */
+	private void add(SyncJob job) {
+		queued.put(job.getPath(), job);
+		if (job.getNotBefore() > System.currentTimeMillis()) {
+			delayed.add(job);
+		} else {
+			ready.get(laneOf(job)).add(job);
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Waits until all queued jobs have been processed, except for jobs
+	 * waiting for a retry.
+	 *
+	 * @param timeout
+	 *            maximum time to wait in milliseconds
+	 * @return <code>true</code> if all jobs have been processed
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting
+	 */
+	public synchronized boolean drain(long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		while (activeJobs > 0 || queued.size() > delayed.size()) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				return false;
+			}
+			wait(remaining);
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the number of jobs which are processed at the moment.
+	 *
+	 * @return the number of active jobs
+	 */
+	public synchronized int getActiveCount() {
+		return activeJobs;
+	}
+
+	/**
+	 * Returns the number of queued jobs, including jobs waiting for a retry.
+	 *
+	 * @return the number of queued jobs
+	 */
+	public synchronized int getQueuedCount() {
+		return queued.size();
+	}
+
+	/**
+	 * Returns whether the job may be processed now, that is its file is not
+	 * processed and its folder has not reached its concurrency.
+	 */
+	private boolean isRunnable(SyncJob job) {
+		return !running.contains(job.getPath())
+				&& runningPerFolder.getOrDefault(job.getFolder(), 0) < concurrency.getOrDefault(job.getFolder(), Integer.MAX_VALUE);
+	}
+
+	private Lane laneOf(SyncJob job) {
+		return job.getSize() >= largeFileSize ? Lane.LARGE : Lane.SMALL;
+	}
+
+	/**
+	 * Moves the jobs whose retry time has come into their lanes.
+	 *
+	 * @return milliseconds until the next retry, <code>0</code> if no job
+	 *         is waiting
+	 */
+	private long promoteDelayed() {
+		long now = System.currentTimeMillis();
+		while (!delayed.isEmpty()) {
+			SyncJob job = delayed.peek();
+			if (job.getNotBefore() > now) {
+				return job.getNotBefore() - now;
+			}
+			delayed.poll();
+			ready.get(laneOf(job)).add(job);
+		}
+		return 0;
+	}
+
+	/**
+	 * Processes a job and schedules a retry if it fails.
+	 */
+	private void process(SyncJob job) {
+		try {
+			handler.process(job);
+		} catch (Exception e) {
+			if (job.getAttempt() + 1 >= maxAttempts) {
+				logger.error("Giving up {} after {} attempts - Reason: {}", job, maxAttempts, e.getLocalizedMessage());
+				handler.onFailure(job, e);
+			} else {
+				retry(job, e);
+			}
+		} finally {
+			synchronized (this) {
+				activeJobs--;
+				running.remove(job.getPath());
+				runningPerFolder.computeIfPresent(job.getFolder(), (folder, count) -> count > 1 ? count - 1 : null);
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Polls the job with the highest priority which may be processed now.
+	 */
+	private SyncJob poll(PriorityQueue<SyncJob> queue) {
+		List<SyncJob> skipped = null;
+		SyncJob job;
+		while ((job = queue.poll()) != null && !isRunnable(job)) {
+			if (skipped == null) {
+				skipped = new ArrayList<>();
+			}
+			skipped.add(job);
+		}
+		if (skipped != null) {
+			queue.addAll(skipped);
+		}
+		return job;
+	}
+
+	/**
+	 * Schedules a retry of the failed job with exponential backoff.
+	 */
+	private synchronized void retry(SyncJob job, Exception cause) {
+		long delay = Math.min(MAX_RETRY_DELAY, retryDelay << Math.min(job.getAttempt(), 30));
+		logger.warn("Retrying {} in {} ms - Reason: {}", job, delay, cause.getLocalizedMessage());
+		job.retryAt(System.currentTimeMillis() + delay);
+
+		SyncJob newer = queued.get(job.getPath());
+		if (newer != null) {
+			// a newer event has been queued meanwhile, it includes this one
+			newer.merge(job);
+		} else {
+			add(job);
+		}
+	}
+
+	/**
+	 * Limits the number of files of a sync folder which are processed at the
+	 * same time. Folders without a limit are only limited by the workers.
+	 *
+	 * @param folder
+	 *            the sync folder
+	 * @param limit
+	 *            the maximum number of files processed at the same time
+	 */
+	public synchronized void setConcurrency(Path folder, int limit) {
+		concurrency.put(folder, Math.max(1, limit));
+		notifyAll();
+	}
+
+	/**
+	 * Starts the workers of both lanes.
+	 *
+	 * @param smallWorkers
+	 *            number of workers of the small lane
+	 * @param largeWorkers
+	 *            number of workers of the large lane
+	 */
+	public synchronized void start(int smallWorkers, int largeWorkers) {
+		for (int i = 0; i < smallWorkers + largeWorkers; i++) {
+			final Lane lane = i < smallWorkers ? Lane.SMALL : Lane.LARGE;
+			Thread worker = new Thread(() -> work(lane), "sync-" + lane.name().toLowerCase() + "-" + i);
+			worker.setDaemon(true);
+			workers.add(worker);
+			worker.start();
+		}
+	}
+
+	/**
+	 * Stops the workers. Jobs which are processed at the moment are
+	 * interrupted.
+	 */
+	public synchronized void stop() {
+		stopped = true;
+		for (Thread worker : workers) {
+			worker.interrupt();
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Queues a synchronization. If the file is already queued, the operation
+	 * is merged into the queued job.
+	 *
+	 * @param operation
+	 *            the journaled operation
+	 * @param folder
+	 *            the sync folder of the file
+	 * @param pinned
+	 *            whether the folder is pinned by the user
+	 * @param size
+	 *            the size of the file
+	 * @param modificationTime
+	 *            the modification time of the file in milliseconds
+	 */
+	public synchronized void submit(SyncOperation operation, Path folder, boolean pinned, long size, long modificationTime) {
+		SyncJob job = queued.get(operation.getPath());
+		if (job == null) {
+			add(new SyncJob(operation, folder, pinned, size, modificationTime));
+			return;
+		}
+
+		if (!ready.get(laneOf(job)).remove(job)) {
+			delayed.remove(job);
+		}
+		job.update(operation, size, modificationTime);
+		add(job);
+	}
+
+	/**
+	 * Takes the next job of the given lane, waiting until one is available.
+	 *
+	 * @param lane
+	 *            the lane of the calling worker
+	 * @return the next job
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting
+	 */
+	synchronized SyncJob take(Lane lane) throws InterruptedException {
+		while (!stopped) {
+			long nextRetry = promoteDelayed();
+
+			SyncJob job = poll(ready.get(lane));
+			if (job == null && lane == Lane.LARGE) {
+				job = poll(ready.get(Lane.SMALL));
+			}
+			if (job != null) {
+				queued.remove(job.getPath());
+				running.add(job.getPath());
+				runningPerFolder.merge(job.getFolder(), 1, Integer::sum);
+				activeJobs++;
+				return job;
+			}
+			wait(nextRetry);
+		}
+		throw new InterruptedException("Scheduler has been stopped.");
+	}
+
+	/**
+	 * Loop of a worker.
+	 */
+	private void work(Lane lane) {
+		while (!stopped) {
+			SyncJob job;
+			try {
+				job = take(lane);
+			} catch (InterruptedException e) {
+				return;
+			}
+			process(job);
+		}
+	}
+}
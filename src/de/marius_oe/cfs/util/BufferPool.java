@@ -0,0 +1,232 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs.util;
+
+import static de.marius_oe.cfs.configuration.Configuration.Key.BufferPoolLimit;
+import static de.marius_oe.cfs.configuration.Configuration.Key.BufferSize;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.marius_oe.cfs.configuration.Configuration;
+
+/**
+ * Pool of reusable heap buffers with a global memory cap.
+ * <p>
+ * Buffers are handed out in power of two size classes from
+ * {@link #MIN_SIZE} to {@link #MAX_SIZE}. Released buffers are kept for the
+ * next caller of the same class. The bytes of all buffers created by the
+ * pool, in use or pooled, never exceed the limit: when it is reached, pooled
+ * buffers of other classes are dropped and if that is not enough, the caller
+ * waits until a buffer is released. A thread must therefore not hold more
+ * than one buffer while it waits for another thread which needs a buffer.
+ * <p>
+ * Only the copy buffers are pooled, the compression and cipher streams keep
+ * their own internal buffers.
+ */
+public final class BufferPool {
+
+	private static final Logger logger = LoggerFactory.getLogger(BufferPool.class);
+
+	/** Size of the largest buffer. */
+	public static final int MAX_SIZE = 1 << 20;
+
+	/** Size of the smallest buffer. */
+	public static final int MIN_SIZE = 1 << 16;
+
+	private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE) - Integer.numberOfTrailingZeros(MIN_SIZE) + 1;
+
+	private static volatile BufferPool shared;
+
+	/**
+	 * Returns the index of the size class the given size is rounded up to.
+	 */
+	private static int classOf(int size) {
+		int rounded = size <= MIN_SIZE ? MIN_SIZE : Integer.highestOneBit(size - 1) << 1;
+		if (rounded > MAX_SIZE) {
+			throw new IllegalArgumentException("Buffers are limited to " + MAX_SIZE + " bytes: " + size);
+		}
+		return Integer.numberOfTrailingZeros(rounded) - Integer.numberOfTrailingZeros(MIN_SIZE);
+	}
+
+	/**
+	 * Returns the pool which is shared by all stream copies. It is
+	 * configured by the entries <code>buffer_size</code> and
+	 * <code>buffer_pool_limit</code>.
+	 *
+	 * @return the shared pool
+	 */
+	public static BufferPool shared() {
+		BufferPool pool = shared;
+		if (pool == null) {
+			synchronized (BufferPool.class) {
+				pool = shared;
+				if (pool == null) {
+					pool = new BufferPool(Configuration.getInt(BufferSize), Configuration.getInt(BufferPoolLimit));
+					shared = pool;
+				}
+			}
+		}
+		return pool;
+	}
+
+	private static int sizeOf(int sizeClass) {
+		return MIN_SIZE << sizeClass;
+	}
+
+	/** Bytes of all buffers created by the pool and not dropped. */
+	private long allocated;
+
+	private final int bufferSize;
+
+	private final List<Deque<byte[]>> freeHeap = new ArrayList<>(CLASSES);
+
+	private final long limit;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param bufferSize
+	 *            the size of the buffers returned by {@link #acquire()}
+	 * @param limit
+	 *            the maximum number of bytes of all buffers
+	 */
+	public BufferPool(int bufferSize, long limit) {
+		this.bufferSize = sizeOf(classOf(bufferSize));
+		if (limit < MAX_SIZE) {
+			throw new IllegalArgumentException("The limit must hold at least one buffer of " + MAX_SIZE + " bytes: " + limit);
+		}
+		this.limit = limit;
+		for (int i = 0; i < CLASSES; i++) {
+			freeHeap.add(new ArrayDeque<>());
+		}
+	}
+
+	/**
+	 * Returns a heap buffer of the configured size.
+	 *
+	 * @return the buffer
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting
+	 */
+	public byte[] acquire() throws InterruptedException {
+		return acquire(bufferSize);
+	}
+
+	/**
+	 * Returns a heap buffer of at least the given size. Waits until the
+	 * memory is available.
+	 *
+	 * @param size
+	 *            the minimum size of the buffer
+	 * @return the buffer
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting
+	 */
+	public byte[] acquire(int size) throws InterruptedException {
+		int sizeClass = classOf(size);
+		synchronized (this) {
+			byte[] buffer = reserve(freeHeap.get(sizeClass), sizeOf(sizeClass));
+			if (buffer != null) {
+				return buffer;
+			}
+		}
+		return new byte[sizeOf(sizeClass)];
+	}
+
+	/**
+	 * Drops pooled buffers until there is room for the given number of bytes.
+	 *
+	 * @return <code>true</code> if there is room now
+	 */
+	private boolean evict(int size) {
+		for (int i = CLASSES - 1; i >= 0 && allocated + size > limit; i--) {
+			while (allocated + size > limit && !freeHeap.get(i).isEmpty()) {
+				freeHeap.get(i).poll();
+				allocated -= sizeOf(i);
+			}
+		}
+		return allocated + size <= limit;
+	}
+
+	/**
+	 * Returns the number of bytes of all buffers which are in use or pooled.
+	 *
+	 * @return the allocated bytes
+	 */
+	public synchronized long getAllocated() {
+		return allocated;
+	}
+
+	/**
+	 * Returns the size of the buffers returned by {@link #acquire()}.
+	 *
+	 * @return the buffer size in bytes
+	 */
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * Returns a buffer to the pool. The buffer must not be used
+	 * afterwards.
+	 *
+	 * @param buffer
+	 *            a buffer returned by {@link #acquire(int)}
+	 */
+	public void release(byte[] buffer) {
+		int sizeClass = classOf(buffer.length);
+		synchronized (this) {
+			freeHeap.get(sizeClass).push(buffer);
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Waits until a pooled buffer of the size class is free or there is room
+	 * for a new buffer of the given size. A buffer released while waiting is
+	 * taken before new memory is accounted.
+	 *
+	 * @return the pooled buffer or <code>null</code> if a new buffer has been
+	 *         accounted
+	 */
+	private byte[] reserve(Deque<byte[]> free, int size) throws InterruptedException {
+		while (true) {
+			byte[] buffer = free.poll();
+			if (buffer != null) {
+				return buffer;
+			}
+			if (evict(size)) {
+				allocated += size;
+				return null;
+			}
+			logger.debug("Buffer pool limit of {} bytes reached, waiting for a buffer.", limit);
+			wait();
+		}
+	}
+}
@@ -0,0 +1,156 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs.util;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Random token which authenticates the clients of a service on the loopback
+ * interface, like the {@link de.marius_oe.cfs.cryption.KeyAgent}. The service
+ * writes the token into a file which is only readable by the owner, a client
+ * sends it as the first line of a request and the command as the second.
+ */
+public final class LoopbackToken {
+
+	private static final Logger logger = LoggerFactory.getLogger(LoopbackToken.class);
+
+	/**
+	 * Connects to the service on the given port and sends the token of the
+	 * token file and the command.
+	 *
+	 * @param tokenFile
+	 *            the token file of the service
+	 * @param port
+	 *            the port of the service
+	 * @param timeout
+	 *            the connect timeout in milliseconds
+	 * @param command
+	 *            the command
+	 * @return the connected socket or <code>null</code> if the service is not
+	 *         running
+	 * @throws IOException
+	 *             if the service cannot be reached
+	 */
+	public static Socket connect(Path tokenFile, int port, int timeout, String command) throws IOException {
+		String token;
+		try {
+			token = new String(Files.readAllBytes(tokenFile), StandardCharsets.US_ASCII).trim();
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), timeout);
+			Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.US_ASCII);
+			out.write(token + "\n" + command + "\n");
+			out.flush();
+			return socket;
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+	}
+
+	private final Path file;
+
+	private final byte[] token;
+
+	/**
+	 * Constructor. Creates a new random token.
+	 *
+	 * @param file
+	 *            the token file
+	 */
+	public LoopbackToken(Path file) {
+		this.file = file;
+		byte[] random = new byte[32];
+		new SecureRandom().nextBytes(random);
+		token = Hex.encodeHexString(random).getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Deletes the token file, so clients know the service has stopped.
+	 */
+	public void delete() {
+		try {
+			Files.deleteIfExists(file);
+		} catch (IOException e) {
+			logger.warn("Token file {} cannot be deleted.", file);
+		}
+	}
+
+	/**
+	 * Returns the token file.
+	 *
+	 * @return the token file
+	 */
+	public Path getFile() {
+		return file;
+	}
+
+	/**
+	 * Returns whether the token sent by a client matches, comparing in
+	 * constant time.
+	 *
+	 * @param clientToken
+	 *            the first line of the request, may be <code>null</code>
+	 * @return <code>true</code> if the token matches
+	 */
+	public boolean matches(String clientToken) {
+		return clientToken != null && MessageDigest.isEqual(token, clientToken.getBytes(StandardCharsets.US_ASCII));
+	}
+
+	/**
+	 * Writes the token into the token file which is only readable by the
+	 * owner.
+	 *
+	 * @throws IOException
+	 *             if the file cannot be written
+	 */
+	public void write() throws IOException {
+		Files.deleteIfExists(file);
+		try {
+			Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		} catch (UnsupportedOperationException e) {
+			logger.warn("File permissions of {} cannot be restricted.", file);
+		}
+		Files.write(file, token);
+	}
+}
@@ -0,0 +1,116 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Input stream which counts the bytes read and the time spent reading. Every
+ * read fails with an {@link InterruptedIOException} once the given condition
+ * signals a cancellation. Closing the stream does not close the underlying
+ * stream.
+ */
+public class MeteredInputStream extends FilterInputStream {
+
+	private long bytes;
+	private final BooleanSupplier cancelled;
+	private long nanos;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param in
+	 *            the underlying stream
+	 * @param cancelled
+	 *            returns <code>true</code> if reading should be aborted
+	 */
+	public MeteredInputStream(InputStream in, BooleanSupplier cancelled) {
+		super(in);
+		this.cancelled = cancelled;
+	}
+
+	private void checkCancelled() throws InterruptedIOException {
+		if (cancelled.getAsBoolean()) {
+			throw new InterruptedIOException("Reading has been cancelled after " + bytes + " bytes.");
+		}
+	}
+
+	@Override
+	public void close() {
+		// the caller owns the underlying stream
+	}
+
+	/**
+	 * Returns the number of bytes read.
+	 *
+	 * @return the byte count
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Returns the time spent in the underlying stream.
+	 *
+	 * @return the time in nanoseconds
+	 */
+	public long getNanos() {
+		return nanos;
+	}
+
+	@Override
+	public int read() throws IOException {
+		checkCancelled();
+		long start = System.nanoTime();
+		int value = super.read();
+		nanos += System.nanoTime() - start;
+		if (value != -1) {
+			bytes++;
+		}
+		return value;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		checkCancelled();
+		long start = System.nanoTime();
+		int count = super.read(b, off, len);
+		nanos += System.nanoTime() - start;
+		if (count > 0) {
+			bytes += count;
+		}
+		return count;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		checkCancelled();
+		long skipped = super.skip(n);
+		bytes += skipped;
+		return skipped;
+	}
+}
@@ -0,0 +1,110 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Output stream which counts the bytes written and the time spent writing.
+ * Every write fails with an {@link InterruptedIOException} once the given
+ * condition signals a cancellation. Closing the stream only flushes the
+ * underlying stream.
+ */
+public class MeteredOutputStream extends FilterOutputStream {
+
+	private long bytes;
+	private final BooleanSupplier cancelled;
+	private long nanos;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param out
+	 *            the underlying stream
+	 * @param cancelled
+	 *            returns <code>true</code> if writing should be aborted
+	 */
+	public MeteredOutputStream(OutputStream out, BooleanSupplier cancelled) {
+		super(out);
+		this.cancelled = cancelled;
+	}
+
+	private void checkCancelled() throws InterruptedIOException {
+		if (cancelled.getAsBoolean()) {
+			throw new InterruptedIOException("Writing has been cancelled after " + bytes + " bytes.");
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		// the caller owns the underlying stream
+		flush();
+	}
+
+	@Override
+	public void flush() throws IOException {
+		long start = System.nanoTime();
+		out.flush();
+		nanos += System.nanoTime() - start;
+	}
+
+	/**
+	 * Returns the number of bytes written.
+	 *
+	 * @return the byte count
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Returns the time spent in the underlying stream.
+	 *
+	 * @return the time in nanoseconds
+	 */
+	public long getNanos() {
+		return nanos;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		checkCancelled();
+		long start = System.nanoTime();
+		out.write(b, off, len);
+		nanos += System.nanoTime() - start;
+		bytes += len;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		checkCancelled();
+		long start = System.nanoTime();
+		out.write(b);
+		nanos += System.nanoTime() - start;
+		bytes++;
+	}
+}
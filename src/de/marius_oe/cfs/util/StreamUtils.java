@@ -22,17 +22,14 @@
  */
 package de.marius_oe.cfs.util;
 
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.zip.Deflater;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.function.BooleanSupplier;
 
 /**
  * 
@@ -64,13 +61,20 @@ public final class StreamUtils {
 	 *            the source stream
 	 * @param outStream
 	 *            the destination stream
+	 * @return the number of copied bytes
 	 */
-	public static void copy(InputStream inStream, OutputStream outStream) {
-		copy(inStream, outStream, false);
+	public static long copy(InputStream inStream, OutputStream outStream) {
+		try {
+			return transfer(inStream, outStream);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
 	}
 
 	/**
-	 * Copies the input stream into the output stream.
+	 * Copies the input stream into the output stream. Neither stream is
+	 * closed. Cancelling the returned future stops an asynchronous copy
+	 * process before the next chunk.
 	 * 
 	 * @param inStream
 	 *            the source stream
@@ -78,102 +82,69 @@ public final class StreamUtils {
 	 *            the destination stream
 	 * @param asynchronous
 	 *            Defines whether the copy process runs in a own thread
+	 * @return future with the number of copied bytes, completed
+	 *         exceptionally if reading or writing fails
 	 */
-	public static void copy(InputStream inStream, OutputStream outStream, boolean asynchronous) {
-		CopyWorker worker = new CopyWorker();
-		worker.inStream = inStream;
-		worker.outStream = outStream;
+	public static CompletableFuture<Long> copy(InputStream inStream, OutputStream outStream, boolean asynchronous) {
+		CompletableFuture<Long> future = new CompletableFuture<>();
+		Runnable worker = () -> {
+			try {
+				future.complete(transfer(inStream, outStream, future::isCancelled));
+			} catch (IOException | RuntimeException e) {
+				future.completeExceptionally(e);
+			}
+		};
 
 		if (asynchronous) {
 			getThreadPool().execute(worker);
 		} else {
 			worker.run();
 		}
+		return future;
 	}
 
 	/**
-	 * Takes the given input stream and returns an {@link InputStream} with the
-	 * compressed data.
-	 * 
-	 * @param inStream
-	 *            stream to compress
-	 * @return @ InputStream} with the compressed data
-	 */
-	public static InputStream zipStream(InputStream inStream) {
-		try {
-			PipedOutputStream outPipe = new PipedOutputStream();
-			PipedInputStream destinationStream = new PipedInputStream(outPipe);
-
-			ZipWorker worker = new ZipWorker();
-			worker.inStream = inStream;
-			worker.outStream = outPipe;
-
-			getThreadPool().execute(worker);
-
-			return destinationStream;
-		} catch (IOException e) {
-			throw new RuntimeException(e);
-		}
-	}
-
-	/**
-	 * Writes the input stream into the output stream.
+	 * Writes the input stream into the output stream using a buffer of the
+	 * shared {@link BufferPool}. Neither stream is closed.
 	 * 
 	 * @param inStream
 	 *            the source stream
 	 * @param outStream
 	 *            the destination stream
+	 * @return the number of copied bytes
+	 * @throws IOException
+	 *             if reading or writing fails
 	 */
-	private static void copyStream(InputStream inStream, OutputStream outStream) {
-		try {
-			byte[] buffer = new byte[1024];
-			int bytesRead;
-			while ((bytesRead = inStream.read(buffer)) != -1) {
-				outStream.write(buffer, 0, bytesRead);
-			}
-		} catch (IOException e) {
-			throw new RuntimeException(e);
-		}
+	public static long transfer(InputStream inStream, OutputStream outStream) throws IOException {
+		return transfer(inStream, outStream, () -> false);
 	}
 
 	/**
-	 * Runnable class to copy a stream into an other.
+	 * Writes the input stream into the output stream until the end of the
+	 * input or until the copy process is cancelled.
 	 */
-	private static class CopyWorker implements Runnable {
-
-		InputStream inStream;
-		OutputStream outStream;
-
-		@Override
-		public void run() {
-			copyStream(inStream, outStream);
+	private static long transfer(InputStream inStream, OutputStream outStream, BooleanSupplier cancelled) throws IOException {
+		BufferPool pool = BufferPool.shared();
+		byte[] buffer;
+		try {
+			buffer = pool.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a buffer.");
 		}
-	}
-
-	/**
-	 * Runnable class to copy a stream into an other.
-	 */
-	private static class ZipWorker implements Runnable {
-
-		InputStream inStream;
-		OutputStream outStream;
-
-		@Override
-		public void run() {
-			try {
-				ZipOutputStream zipStream = new ZipOutputStream(outStream);
-				zipStream.setLevel(Deflater.BEST_COMPRESSION);
-				zipStream.putNextEntry(new ZipEntry("entry"));
-
-				copyStream(inStream, zipStream);
-
-				zipStream.closeEntry();
-				zipStream.close();
-			} catch (FileNotFoundException e) {
-				throw new RuntimeException(e);
-			} catch (IOException e) {
-				throw new RuntimeException(e);
+		try {
+			long bytesCopied = 0;
+			int bytesRead;
+			while ((bytesRead = inStream.read(buffer)) != -1) {
+				if (cancelled.getAsBoolean()) {
+					throw new InterruptedIOException("Copy process has been cancelled after " + bytesCopied + " bytes.");
+				}
+				outStream.write(buffer, 0, bytesRead);
+				bytesCopied += bytesRead;
 			}
+			return bytesCopied;
+		} finally {
+			pool.release(buffer);
 		}
 	}
 }
@@ -0,0 +1,110 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs.util.file;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Copy-on-write list of {@link IFileListener}s. Registrations copy the
+ * listener array, so notifying the listeners neither locks nor allocates
+ * and never races with a concurrent registration.
+ */
+final class FileListeners {
+
+	private static final IFileListener[] EMPTY = new IFileListener[0];
+
+	private volatile IFileListener[] listeners = EMPTY;
+
+	/**
+	 * Adds the given listener.
+	 *
+	 * @param listener
+	 *            listener that will be added
+	 * @return true if the listener was succsesfully added
+	 */
+	synchronized boolean add(IFileListener listener) {
+		IFileListener[] current = listeners;
+		IFileListener[] updated = Arrays.copyOf(current, current.length + 1);
+		updated[current.length] = listener;
+		listeners = updated;
+		return true;
+	}
+
+	/**
+	 * Notifies all listeners about a created file.
+	 *
+	 * @param file
+	 *            file that was created
+	 */
+	void fireCreate(Path file) {
+		for (IFileListener listener : listeners) {
+			listener.onCreate(file);
+		}
+	}
+
+	/**
+	 * Notifies all listeners about a deleted file.
+	 *
+	 * @param file
+	 *            file that was deleted
+	 */
+	void fireDelete(Path file) {
+		for (IFileListener listener : listeners) {
+			listener.onDelete(file);
+		}
+	}
+
+	/**
+	 * Notifies all listeners about a modified file.
+	 *
+	 * @param file
+	 *            file that was modified
+	 */
+	void fireModify(Path file) {
+		for (IFileListener listener : listeners) {
+			listener.onModify(file);
+		}
+	}
+
+	/**
+	 * Removes the given listener.
+	 *
+	 * @param listener
+	 *            listener that will be removed
+	 * @return true if the listener was succsefully removed
+	 */
+	synchronized boolean remove(IFileListener listener) {
+		IFileListener[] current = listeners;
+		for (int i = 0; i < current.length; i++) {
+			if (current[i].equals(listener)) {
+				IFileListener[] updated = new IFileListener[current.length - 1];
+				System.arraycopy(current, 0, updated, 0, i);
+				System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+				listeners = updated;
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -27,9 +27,11 @@ import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
 import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
 
 import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
 import java.nio.file.FileSystems;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardWatchEventKinds;
@@ -37,38 +39,58 @@ import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Util class for watching the file system for changes.
+ * <p>
+ * The registered directories can be spread over several {@link WatchService}
+ * shards, each drained by its own thread, so a single thread doesn't become
+ * the bottleneck for very large trees. A directory is always registered with
+ * the same shard, so the events of its entries are delivered in order.
  *
  * @author Marius
  *
  */
-public final class FileWatcher implements Runnable {
+public final class FileWatcher implements IChangeDetector {
 
 	private static final Logger logger = LoggerFactory.getLogger(FileWatcher.class);
 
-	private Thread executingThread;
-	private boolean isProcessing = true;
-	private final Map<WatchKey, Path> keyMap;
-	private final WatchService watcher;
-	private List<IFileListener> fileListener;
+	private final List<Thread> executingThreads;
+	private volatile boolean isProcessing = true;
+	private final Map<WatchKey, WatchedDirectory> keyMap;
+	private final WatchService[] watchers;
+	private final FileListeners fileListener;
 
 	/**
 	 * Constructor.
 	 */
 	public FileWatcher() {
+		this(1);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param shards
+	 *            number of {@link WatchService}s the directories are spread
+	 *            over
+	 */
+	public FileWatcher(int shards) {
 		try {
-			keyMap = new HashMap<>();
-			watcher = FileSystems.getDefault().newWatchService();
-			fileListener = new ArrayList<>();
+			keyMap = new ConcurrentHashMap<>();
+			watchers = new WatchService[shards];
+			for (int i = 0; i < shards; i++) {
+				watchers[i] = FileSystems.getDefault().newWatchService();
+			}
+			fileListener = new FileListeners();
+			executingThreads = new CopyOnWriteArrayList<>();
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
@@ -81,11 +103,31 @@ public final class FileWatcher implements Runnable {
 	 *            listener that will be registered
 	 * @return true if the listener was succsesfully added
 	 */
+	@Override
 	public boolean registerFileListener(IFileListener listener) {
 		logger.debug("Registering fileListener");
 		return fileListener.add(listener);
 	}
 
+	/**
+	 * Stops watching the given path and all sub directories.
+	 * 
+	 * @param path
+	 *            directory to stop observing
+	 */
+	@Override
+	public void unregisterAll(Path path) {
+		Path root = path.toAbsolutePath();
+		logger.debug("Unregister path {}", root);
+		keyMap.entrySet().removeIf(entry -> {
+			if (!entry.getValue().path.startsWith(root)) {
+				return false;
+			}
+			entry.getKey().cancel();
+			return true;
+		});
+	}
+
 	/**
 	 * Unregisters the given {@link IFileListener}.
 	 * 
@@ -93,33 +135,52 @@ public final class FileWatcher implements Runnable {
 	 *            listener that will be unregistered
 	 * @return true if the listener was succsefully removed
 	 */
+	@Override
 	public boolean unregisterFileListener(IFileListener listener) {
 		logger.debug("Unregister fileListener");
 		return fileListener.remove(listener);
 	}
 
 	/**
-	 * Processes the WatchEvents.
+	 * Processes the WatchEvents of all shards. The calling thread drains the
+	 * first shard, every other shard is drained by an additional thread. The
+	 * listeners are notified with the absolute path of the affected file.
 	 */
-	@SuppressWarnings("unchecked")
 	public void processEvents() {
-		logger.debug("Start processing events");
+		logger.debug("Start processing events of {} shards", watchers.length);
+		executingThreads.add(Thread.currentThread());
+		for (int i = 1; i < watchers.length; i++) {
+			final WatchService shard = watchers[i];
+			Thread thread = new Thread(() -> processEvents(shard), "file-watcher-shard-" + i);
+			thread.setDaemon(true);
+			executingThreads.add(thread);
+			thread.start();
+		}
+		processEvents(watchers[0]);
+	}
+
+	/**
+	 * Processes the WatchEvents of a single shard.
+	 */
+	@SuppressWarnings("unchecked")
+	private void processEvents(WatchService watcher) {
 		while (isProcessing) {
 
 			// Wait for a key
 			WatchKey key;
 			try {
 				key = watcher.take();
-			} catch (InterruptedException e) {
+			} catch (InterruptedException | ClosedWatchServiceException e) {
 				return;
 			}
 
 			// Get the path related to the WatchKey
-			Path currentPath = keyMap.get(key);
-			if (currentPath == null) {
+			WatchedDirectory directory = keyMap.get(key);
+			if (directory == null) {
 				logger.debug("No Path for received WatchKey available.");
 				continue;
 			}
+			Path currentPath = directory.path;
 
 			for (WatchEvent<?> event : key.pollEvents()) {
 				WatchEvent.Kind<?> kind = event.kind();
@@ -129,32 +190,41 @@ public final class FileWatcher implements Runnable {
 					continue;
 				}
 
-				// Get the file that triggered this event
+				// Get the file that triggered this event, the context of the
+				// event is relative to the watched directory
 				WatchEvent<Path> ev = (WatchEvent<Path>) event;
-				Path file = ev.context();
+				Path file = currentPath.resolve(ev.context());
+
+				// Skip ignored files
+				if (directory.matcher.isIgnored(file)) {
+					continue;
+				}
 
 				// Notify all listeners
 				if (kind == ENTRY_CREATE) {
-					logger.debug("Created {} {} - Exists: {}", currentPath, file, file.toFile().exists());
-					fileListener.stream().forEach(listener -> listener.onCreate(file));
+					logger.debug("Created {}", file);
+					fileListener.fireCreate(file);
+					if (Files.isDirectory(file, LinkOption.NOFOLLOW_LINKS)) {
+						registerCreated(file, directory.matcher);
+					}
 				} else if (kind == ENTRY_DELETE) {
-					logger.debug("Delete {} {}", currentPath, file);
-					fileListener.stream().forEach(listener -> listener.onDelete(file));
+					logger.debug("Delete {}", file);
+					fileListener.fireDelete(file);
 				} else if (kind == ENTRY_MODIFY) {
-					logger.debug("Modified {} {}", currentPath, file);
-					fileListener.stream().forEach(listener -> listener.onModify(file));
+					logger.debug("Modified {}", file);
+					fileListener.fireModify(file);
 				} else {
-					logger.debug("Event: {} - {} {}", kind.name(), currentPath, file);
+					logger.debug("Event: {} - {}", kind.name(), file);
 				}
 			}
 
 			// Reset the key -- this step is critical if you want to
 			// receive further watch events. If the key is no longer valid,
-			// the directory is inaccessible so exit the loop.
+			// the directory is inaccessible and is not watched anymore.
 			boolean valid = key.reset();
 			if (!valid) {
-				logger.error("Key reset was not sucessfull.");
-				break;
+				logger.debug("Directory {} is not accessible anymore.", currentPath);
+				keyMap.remove(key);
 			}
 
 		}
@@ -169,9 +239,25 @@ public final class FileWatcher implements Runnable {
 	 * @throws IOException
 	 */
 	public void register(Path path) throws IOException {
+		register(path, IgnoreMatcher.none(path));
+	}
+
+	/**
+	 * Register the given path to the watcher and notify if any files or
+	 * directories are modified, unless they are ignored by the given matcher.
+	 *
+	 * @param path
+	 *            path to observe
+	 * @param matcher
+	 *            matcher of the files to ignore
+	 * @throws IOException
+	 */
+	public void register(Path path, IgnoreMatcher matcher) throws IOException {
+		path = path.toAbsolutePath();
 		logger.debug("Register path {}", path);
+		WatchService watcher = watchers[(path.hashCode() & Integer.MAX_VALUE) % watchers.length];
 		WatchKey key = path.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
-		keyMap.put(key, path);
+		keyMap.put(key, new WatchedDirectory(path, matcher));
 	}
 
 	/**
@@ -183,29 +269,104 @@ public final class FileWatcher implements Runnable {
 	 * @throws IOException
 	 */
 	public void registerAll(Path path) throws IOException {
-		Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+		registerAll(path, IgnoreMatcher.none(path));
+	}
+
+	/**
+	 * Register the given path and all sub directories to the watcher and notify
+	 * if any files or directories are modified. Directories ignored by the
+	 * given matcher are not registered at all.
+	 *
+	 * @param path
+	 *            directory to observe
+	 * @param matcher
+	 *            matcher of the files to ignore
+	 * @throws IOException
+	 */
+	@Override
+	public void registerAll(Path path, final IgnoreMatcher matcher) throws IOException {
+		registerAll(path, matcher, false);
+	}
+
+	/**
+	 * Registers the given path and all sub directories. If notify is set, the
+	 * listeners are notified of every entry below the path, which has been
+	 * created before the directories were registered.
+	 */
+	private void registerAll(Path path, final IgnoreMatcher matcher, final boolean notify) throws IOException {
+		final Path root = path.toAbsolutePath();
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attrs) throws IOException {
+				if (matcher.isIgnored(directory, true)) {
+					logger.debug("Skipping ignored directory {}", directory);
+					return FileVisitResult.SKIP_SUBTREE;
+				}
+				register(directory, matcher);
+				if (notify && !directory.equals(root)) {
+					fileListener.fireCreate(directory);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
 			@Override
-			public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attrs) throws IOException {
-				register(path);
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				if (notify && !matcher.isIgnored(file, false)) {
+					fileListener.fireCreate(file);
+				}
 				return FileVisitResult.CONTINUE;
 			}
 		});
 	}
 
+	/**
+	 * Registers a directory which has been created or moved into a watched
+	 * directory and notifies the listeners of the entries it already
+	 * contains.
+	 */
+	private void registerCreated(Path directory, IgnoreMatcher matcher) {
+		try {
+			registerAll(directory, matcher, true);
+		} catch (IOException e) {
+			logger.warn("Created directory {} cannot be watched - Reason: {}", directory, e.getLocalizedMessage());
+		}
+	}
+
 	@Override
 	public void run() {
-		executingThread = Thread.currentThread();
 		processEvents();
 	}
 
 	/**
 	 * Stops the file watcher.
 	 */
+	@Override
 	public void stopWatching() {
 		logger.debug("Stopping file watcher");
 		isProcessing = false;
-		if (executingThread != null) {
-			executingThread.interrupt();
+		for (Thread thread : executingThreads) {
+			thread.interrupt();
+		}
+		for (WatchService watcher : watchers) {
+			try {
+				watcher.close();
+			} catch (IOException e) {
+				logger.debug("WatchService cannot be closed - Reason: {}", e.getLocalizedMessage());
+			}
+		}
+	}
+
+	/**
+	 * A registered directory and the matcher of its sync folder.
+	 */
+	private static class WatchedDirectory {
+
+		final IgnoreMatcher matcher;
+		final Path path;
+
+		WatchedDirectory(Path path, IgnoreMatcher matcher) {
+			this.path = path;
+			this.matcher = matcher;
 		}
 	}
 }
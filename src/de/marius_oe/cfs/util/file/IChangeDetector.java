@@ -0,0 +1,79 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs.util.file;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Engine which detects changes in directory trees and notifies
+ * {@link IFileListener}s about them. The detection runs in
+ * {@link #run()} until {@link #stopWatching()} is called.
+ */
+public interface IChangeDetector extends Runnable {
+
+	/**
+	 * Register the given path and all sub directories and notify if any files
+	 * or directories are modified, unless they are ignored by the given
+	 * matcher.
+	 *
+	 * @param path
+	 *            directory to observe
+	 * @param matcher
+	 *            matcher of the files to ignore
+	 * @throws IOException
+	 */
+	void registerAll(Path path, IgnoreMatcher matcher) throws IOException;
+
+	/**
+	 * Registers the given {@link IFileListener}.
+	 * 
+	 * @param listener
+	 *            listener that will be registered
+	 * @return true if the listener was succsesfully added
+	 */
+	boolean registerFileListener(IFileListener listener);
+
+	/**
+	 * Stops the change detection.
+	 */
+	void stopWatching();
+
+	/**
+	 * Stops watching the given path and all sub directories, which have been
+	 * registered by {@link #registerAll(Path, IgnoreMatcher)}.
+	 *
+	 * @param path
+	 *            directory to stop observing
+	 */
+	void unregisterAll(Path path);
+
+	/**
+	 * Unregisters the given {@link IFileListener}.
+	 * 
+	 * @param listener
+	 *            listener that will be unregistered
+	 * @return true if the listener was succsefully removed
+	 */
+	boolean unregisterFileListener(IFileListener listener);
+}
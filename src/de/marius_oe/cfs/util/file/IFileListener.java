@@ -24,6 +24,10 @@ package de.marius_oe.cfs.util.file;
 
 import java.nio.file.Path;
 
+/**
+ * Listener for changes in the file system. The paths passed to the listener
+ * are absolute. Listeners may be notified by several threads.
+ */
 public interface IFileListener {
 
 	/**
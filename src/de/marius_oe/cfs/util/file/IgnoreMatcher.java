@@ -0,0 +1,404 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs.util.file;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Matcher for gitignore-style patterns. Supported are comments (<code>#</code>
+ * ), negation (<code>!</code>), directory-only patterns (trailing
+ * <code>/</code>), anchored patterns (containing a <code>/</code>) and the
+ * wildcards <code>*</code>, <code>?</code>, <code>[...]</code> and
+ * <code>**</code>. As in git, the last matching pattern wins.
+ * <p>
+ * Patterns are compiled by kind, so most of them cost a hash lookup per
+ * path: names without wildcards are kept in a hash map, anchored paths
+ * without wildcards in a trie of their segments and patterns like
+ * <code>*.tmp</code> as suffixes. Only the remaining patterns are matched by
+ * regular expressions.
+ * <p>
+ * A matcher only evaluates the given path itself, not its parent
+ * directories. Callers walking a tree have to skip ignored directories.
+ */
+public final class IgnoreMatcher {
+
+	/** Name of the file in the root of a sync folder containing additional patterns. */
+	public static final String IGNORE_FILE = ".cfsignore";
+
+	/**
+	 * Compiles the given patterns.
+	 *
+	 * @param root
+	 *            the directory the patterns are relative to
+	 * @param patterns
+	 *            the gitignore-style patterns
+	 * @return the compiled matcher
+	 */
+	public static IgnoreMatcher compile(Path root, List<String> patterns) {
+		return new IgnoreMatcher(root, patterns);
+	}
+
+	/**
+	 * Compiles the given patterns followed by the patterns of the
+	 * {@value #IGNORE_FILE} file in the root directory, if it exists.
+	 *
+	 * @param root
+	 *            the directory the patterns are relative to
+	 * @param patterns
+	 *            the gitignore-style patterns
+	 * @return the compiled matcher
+	 * @throws IOException
+	 *             if the ignore file cannot be read
+	 */
+	public static IgnoreMatcher load(Path root, List<String> patterns) throws IOException {
+		List<String> allPatterns = new ArrayList<>(patterns);
+		try {
+			allPatterns.addAll(Files.readAllLines(root.resolve(IGNORE_FILE), StandardCharsets.UTF_8));
+		} catch (NoSuchFileException e) {
+			// no additional patterns
+		}
+		return new IgnoreMatcher(root, allPatterns);
+	}
+
+	/**
+	 * Returns a matcher which doesn't ignore anything.
+	 *
+	 * @param root
+	 *            the directory the matcher is used for
+	 * @return an empty matcher
+	 */
+	public static IgnoreMatcher none(Path root) {
+		return new IgnoreMatcher(root, Collections.<String> emptyList());
+	}
+
+	/**
+	 * Translates a glob into a regular expression.
+	 */
+	private static Pattern toRegex(String glob) {
+		StringBuilder regex = new StringBuilder();
+		int i = 0;
+		while (i < glob.length()) {
+			char c = glob.charAt(i);
+			if (glob.startsWith("**/", i)) {
+				regex.append("(?:.*/)?");
+				i += 3;
+				continue;
+			} else if (glob.startsWith("**", i)) {
+				regex.append(".*");
+				i += 2;
+				continue;
+			}
+
+			if (c == '*') {
+				regex.append("[^/]*");
+			} else if (c == '?') {
+				regex.append("[^/]");
+			} else if (c == '[' && glob.indexOf(']', i + 1) > i) {
+				int end = glob.indexOf(']', i + 1);
+				String content = glob.substring(i + 1, end);
+				if (content.startsWith("!")) {
+					content = "^" + content.substring(1);
+				}
+				regex.append('[').append(content.replace("\\", "\\\\")).append(']');
+				i = end;
+			} else {
+				regex.append(Pattern.quote(String.valueOf(c)));
+			}
+			i++;
+		}
+		return Pattern.compile(regex.toString());
+	}
+
+	/** Anchored paths without wildcards. */
+	private final TrieNode anchoredLiterals = new TrieNode();
+
+	/** Whether the matcher contains regular expressions matching the whole path. */
+	private boolean hasPathRegexRules;
+
+	/** Names without wildcards, matching at any depth. */
+	private final Map<String, List<Rule>> nameLiterals = new HashMap<>();
+
+	/** Remaining patterns. */
+	private final List<Rule> regexRules = new ArrayList<>();
+
+	private final Path root;
+
+	/** Patterns of the form <code>*suffix</code>. */
+	private final List<Rule> suffixRules = new ArrayList<>();
+
+	/**
+	 * Constructor.
+	 */
+	private IgnoreMatcher(Path root, List<String> patterns) {
+		this.root = root.toAbsolutePath();
+		int index = 0;
+		for (String line : patterns) {
+			addRule(line, index++);
+		}
+	}
+
+	/**
+	 * Parses the pattern and adds it to the matching structure.
+	 */
+	private void addRule(String line, int index) {
+		String pattern = line.trim();
+		if (pattern.isEmpty() || pattern.startsWith("#")) {
+			return;
+		}
+
+		boolean negated = pattern.startsWith("!");
+		if (negated) {
+			pattern = pattern.substring(1);
+		}
+		boolean directoryOnly = pattern.endsWith("/");
+		if (directoryOnly) {
+			pattern = pattern.substring(0, pattern.length() - 1);
+		}
+		boolean anchored = pattern.contains("/");
+		if (pattern.startsWith("/")) {
+			pattern = pattern.substring(1);
+		}
+		if (pattern.isEmpty()) {
+			return;
+		}
+
+		boolean wildcard = pattern.indexOf('*') >= 0 || pattern.indexOf('?') >= 0 || pattern.indexOf('[') >= 0;
+		Rule rule = new Rule(index, negated, directoryOnly);
+
+		if (!wildcard && !anchored) {
+			nameLiterals.computeIfAbsent(pattern, name -> new ArrayList<>()).add(rule);
+		} else if (!wildcard) {
+			TrieNode node = anchoredLiterals;
+			for (String segment : pattern.split("/")) {
+				node = node.children.computeIfAbsent(segment, name -> new TrieNode());
+			}
+			node.rules.add(rule);
+		} else if (!anchored && pattern.lastIndexOf('*') == 0 && pattern.indexOf('?') < 0 && pattern.indexOf('[') < 0) {
+			rule.literal = pattern.substring(1);
+			suffixRules.add(rule);
+		} else {
+			rule.regex = toRegex(pattern);
+			rule.wholePath = anchored;
+			hasPathRegexRules |= anchored;
+			regexRules.add(rule);
+		}
+	}
+
+	/**
+	 * Returns the matching rule with the highest index.
+	 */
+	private Rule find(Path relative, boolean directory) {
+		Rule result = null;
+		String name = relative.getFileName().toString();
+
+		List<Rule> rules = nameLiterals.get(name);
+		if (rules != null) {
+			result = last(rules, directory, result);
+		}
+
+		if (!anchoredLiterals.children.isEmpty()) {
+			TrieNode node = anchoredLiterals;
+			for (int i = 0; node != null && i < relative.getNameCount(); i++) {
+				node = node.children.get(relative.getName(i).toString());
+			}
+			if (node != null) {
+				result = last(node.rules, directory, result);
+			}
+		}
+
+		for (int i = suffixRules.size() - 1; i >= 0; i--) {
+			Rule rule = suffixRules.get(i);
+			if (result != null && rule.index < result.index) {
+				break;
+			}
+			if (rule.appliesTo(directory) && name.endsWith(rule.literal)) {
+				result = rule;
+				break;
+			}
+		}
+
+		if (!regexRules.isEmpty()) {
+			String path = hasPathRegexRules ? toSlashPath(relative) : null;
+			for (int i = regexRules.size() - 1; i >= 0; i--) {
+				Rule rule = regexRules.get(i);
+				if (result != null && rule.index < result.index) {
+					break;
+				}
+				if (rule.appliesTo(directory) && rule.regex.matcher(rule.wholePath ? path : name).matches()) {
+					result = rule;
+					break;
+				}
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Returns the root directory of this matcher.
+	 *
+	 * @return the root directory
+	 */
+	public Path getRoot() {
+		return root;
+	}
+
+	/**
+	 * Returns whether the given path is ignored. Whether the path is a
+	 * directory is only looked up in the file system if a directory-only
+	 * pattern decides the result.
+	 *
+	 * @param path
+	 *            absolute path or path relative to the root
+	 * @return <code>true</code> if the path is ignored
+	 */
+	public boolean isIgnored(Path path) {
+		Path relative = relativize(path);
+		if (relative == null) {
+			return false;
+		}
+
+		Rule rule = find(relative, true);
+		if (rule != null && rule.directoryOnly && !Files.isDirectory(root.resolve(relative))) {
+			rule = find(relative, false);
+		}
+		return rule != null && !rule.negated;
+	}
+
+	/**
+	 * Returns whether the given path is ignored.
+	 *
+	 * @param path
+	 *            absolute path or path relative to the root
+	 * @param directory
+	 *            whether the path is a directory
+	 * @return <code>true</code> if the path is ignored
+	 */
+	public boolean isIgnored(Path path, boolean directory) {
+		Path relative = relativize(path);
+		if (relative == null) {
+			return false;
+		}
+
+		Rule rule = find(relative, directory);
+		return rule != null && !rule.negated;
+	}
+
+	/**
+	 * Returns whether this matcher doesn't contain any pattern.
+	 *
+	 * @return <code>true</code> if nothing is ignored
+	 */
+	public boolean isEmpty() {
+		return nameLiterals.isEmpty() && anchoredLiterals.children.isEmpty() && suffixRules.isEmpty() && regexRules.isEmpty();
+	}
+
+	/**
+	 * Returns the last rule of the given list which applies, if it is newer
+	 * than the current result.
+	 */
+	private Rule last(List<Rule> rules, boolean directory, Rule result) {
+		for (int i = rules.size() - 1; i >= 0; i--) {
+			Rule rule = rules.get(i);
+			if (rule.appliesTo(directory)) {
+				return result == null || rule.index > result.index ? rule : result;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the path relative to the root or <code>null</code> if the path
+	 * is the root itself or outside of it.
+	 */
+	private Path relativize(Path path) {
+		if (isEmpty()) {
+			return null;
+		}
+		if (path.startsWith(root)) {
+			if (path.getNameCount() == root.getNameCount()) {
+				return null;
+			}
+			path = root.relativize(path);
+		} else if (path.isAbsolute()) {
+			return null;
+		}
+		return path.getNameCount() == 0 || path.toString().isEmpty() ? null : path;
+	}
+
+	/**
+	 * Joins the names of the path with slashes.
+	 */
+	private String toSlashPath(Path relative) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < relative.getNameCount(); i++) {
+			if (i > 0) {
+				builder.append('/');
+			}
+			builder.append(relative.getName(i));
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * A single compiled pattern.
+	 */
+	private static class Rule {
+
+		final boolean directoryOnly;
+		final int index;
+		String literal;
+		final boolean negated;
+		Pattern regex;
+		boolean wholePath;
+
+		Rule(int index, boolean negated, boolean directoryOnly) {
+			this.index = index;
+			this.negated = negated;
+			this.directoryOnly = directoryOnly;
+		}
+
+		boolean appliesTo(boolean directory) {
+			return directory || !directoryOnly;
+		}
+	}
+
+	/**
+	 * Node of the trie of anchored literal paths.
+	 */
+	private static class TrieNode {
+
+		final Map<String, TrieNode> children = new HashMap<>();
+		final List<Rule> rules = new ArrayList<>();
+	}
+}
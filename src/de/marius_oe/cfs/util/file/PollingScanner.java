@@ -0,0 +1,397 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs.util.file;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Change detection by periodic scans, for file systems where the
+ * {@link FileWatcher} misses events (NFS, SMB) or needs too many kernel
+ * watches.
+ * <p>
+ * The scanner remembers the modification time of every directory and only
+ * lists a directory again if its modification time has changed, which is
+ * the case when entries have been created, deleted or renamed. Known files
+ * of unchanged directories are only checked for modifications. Directories
+ * are scanned in parallel and the scan interval adapts to the observed
+ * churn: it is halved after a scan which found changes and slowly grows up
+ * to the maximum interval otherwise.
+ */
+public final class PollingScanner implements IChangeDetector {
+
+	private static final Logger logger = LoggerFactory.getLogger(PollingScanner.class);
+
+	/**
+	 * Directories modified within this time are listed again in the next scan
+	 * as well, because changes within the granularity of the modification
+	 * time would be missed otherwise.
+	 */
+	private static final long MODIFICATION_TIME_GRANULARITY = TimeUnit.SECONDS.toMillis(2);
+
+	/** Known state of the scanned directories. */
+	private final Map<Path, DirectoryState> directories = new ConcurrentHashMap<>();
+
+	private Thread executingThread;
+
+	private final FileListeners fileListener = new FileListeners();
+
+	/** Current scan interval in milliseconds. */
+	private volatile long interval;
+
+	private volatile boolean isProcessing = true;
+
+	private final long maxInterval;
+
+	private final long minInterval;
+
+	private final ForkJoinPool pool;
+
+	/** Registered trees and their ignore matchers. */
+	private final Map<Path, IgnoreMatcher> roots = new ConcurrentHashMap<>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param minInterval
+	 *            minimum time between two scans in milliseconds
+	 * @param maxInterval
+	 *            maximum time between two scans in milliseconds
+	 * @param parallelism
+	 *            number of threads scanning directories in parallel
+	 */
+	public PollingScanner(long minInterval, long maxInterval, int parallelism) {
+		this.minInterval = minInterval;
+		this.maxInterval = maxInterval;
+		this.interval = minInterval;
+		this.pool = new ForkJoinPool(parallelism);
+	}
+
+	/**
+	 * Returns the current scan interval.
+	 *
+	 * @return the scan interval in milliseconds
+	 */
+	public long getInterval() {
+		return interval;
+	}
+
+	/**
+	 * Register the given path and all sub directories and notify if any files
+	 * or directories are modified, unless they are ignored by the given
+	 * matcher. The current state of the tree is recorded without notifying
+	 * the listeners.
+	 */
+	@Override
+	public void registerAll(Path path, IgnoreMatcher matcher) throws IOException {
+		Path root = path.toAbsolutePath();
+		logger.debug("Register path {}", root);
+
+		pool.invoke(new ScanTask(root, matcher, false, new AtomicInteger()));
+		roots.put(root, matcher);
+	}
+
+	@Override
+	public boolean registerFileListener(IFileListener listener) {
+		logger.debug("Registering fileListener");
+		return fileListener.add(listener);
+	}
+
+	/**
+	 * Removes the state of the given directory and all its sub directories.
+	 * The listeners are notified about the deletion of all known entries
+	 * below the directory.
+	 */
+	private int removeDirectory(Path directory, boolean notify) {
+		DirectoryState state = directories.remove(directory);
+		if (state == null) {
+			return 0;
+		}
+
+		int changes = 0;
+		if (notify) {
+			for (Path file : state.files.keySet()) {
+				fileListener.fireDelete(file);
+				changes++;
+			}
+		}
+		for (Path subdirectory : state.subdirectories) {
+			changes += removeDirectory(subdirectory, notify);
+			if (notify) {
+				fileListener.fireDelete(subdirectory);
+				changes++;
+			}
+		}
+		return changes;
+	}
+
+	@Override
+	public void run() {
+		executingThread = Thread.currentThread();
+		logger.debug("Start scanning");
+		while (isProcessing) {
+			try {
+				Thread.sleep(interval);
+			} catch (InterruptedException e) {
+				return;
+			}
+			scan();
+		}
+	}
+
+	/**
+	 * Scans all registered trees once and notifies the listeners about the
+	 * changes since the previous scan.
+	 *
+	 * @return number of detected changes
+	 */
+	public int scan() {
+		long start = System.nanoTime();
+		AtomicInteger changes = new AtomicInteger();
+		for (Map.Entry<Path, IgnoreMatcher> root : roots.entrySet()) {
+			pool.invoke(new ScanTask(root.getKey(), root.getValue(), true, changes));
+		}
+
+		if (changes.get() > 0) {
+			interval = Math.max(minInterval, interval / 2);
+		} else {
+			interval = Math.min(maxInterval, interval + interval / 2 + 1);
+		}
+
+		logger.debug("Scan found {} changes in {} ms, next scan in {} ms", changes.get(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), interval);
+		return changes.get();
+	}
+
+	@Override
+	public void stopWatching() {
+		logger.debug("Stopping scanner");
+		isProcessing = false;
+		if (executingThread != null) {
+			executingThread.interrupt();
+		}
+		pool.shutdown();
+	}
+
+	@Override
+	public void unregisterAll(Path path) {
+		Path root = path.toAbsolutePath();
+		logger.debug("Unregister path {}", root);
+		if (roots.remove(root) != null) {
+			removeDirectory(root, false);
+		}
+	}
+
+	@Override
+	public boolean unregisterFileListener(IFileListener listener) {
+		logger.debug("Unregister fileListener");
+		return fileListener.remove(listener);
+	}
+
+	/**
+	 * Known state of a directory. The maps are only modified by the task
+	 * scanning the directory.
+	 */
+	private static class DirectoryState {
+
+		/** Modification time and size of the files. */
+		final Map<Path, long[]> files = new HashMap<>();
+
+		/** Modification time of the directory, -1 to force a listing. */
+		long modificationTime;
+
+		final Set<Path> subdirectories = new HashSet<>();
+	}
+
+	/**
+	 * Task scanning a single directory. Sub directories are scanned by forked
+	 * tasks.
+	 */
+	private class ScanTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final AtomicInteger changes;
+		private final Path directory;
+		private final IgnoreMatcher matcher;
+		private final boolean notify;
+
+		ScanTask(Path directory, IgnoreMatcher matcher, boolean notify, AtomicInteger changes) {
+			this.directory = directory;
+			this.matcher = matcher;
+			this.notify = notify;
+			this.changes = changes;
+		}
+
+		/**
+		 * Checks the known files of the directory for modifications.
+		 */
+		private void checkFiles(DirectoryState state) {
+			for (Map.Entry<Path, long[]> entry : state.files.entrySet()) {
+				try {
+					BasicFileAttributes attributes = Files.readAttributes(entry.getKey(), BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+					updateFile(entry.getKey(), entry.getValue(), attributes);
+				} catch (IOException e) {
+					// deleted files are detected by the next listing
+					state.modificationTime = -1;
+				}
+			}
+		}
+
+		@Override
+		protected void compute() {
+			BasicFileAttributes attributes;
+			try {
+				attributes = Files.readAttributes(directory, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			} catch (IOException e) {
+				logger.debug("Directory {} cannot be read - Reason: {}", directory, e.getLocalizedMessage());
+				return;
+			}
+
+			DirectoryState state = directories.get(directory);
+			if (state == null) {
+				state = new DirectoryState();
+				state.modificationTime = -1;
+				directories.put(directory, state);
+			}
+
+			long modificationTime = attributes.lastModifiedTime().toMillis();
+			if (modificationTime != state.modificationTime) {
+				state.modificationTime = System.currentTimeMillis() - modificationTime < MODIFICATION_TIME_GRANULARITY ? -1 : modificationTime;
+				list(state);
+			} else {
+				checkFiles(state);
+			}
+
+			List<ScanTask> tasks = new ArrayList<>(state.subdirectories.size());
+			for (Path subdirectory : state.subdirectories) {
+				tasks.add(new ScanTask(subdirectory, matcher, notify, changes));
+			}
+			invokeAll(tasks);
+		}
+
+		/**
+		 * Lists the directory and compares the entries with the known state.
+		 */
+		private void list(DirectoryState state) {
+			Set<Path> seenFiles = new HashSet<>();
+			Set<Path> seenDirectories = new HashSet<>();
+
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+				for (Path entry : stream) {
+					BasicFileAttributes attributes;
+					try {
+						attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+					} catch (NoSuchFileException e) {
+						continue;
+					}
+
+					boolean isDirectory = attributes.isDirectory();
+					if (matcher.isIgnored(entry, isDirectory)) {
+						continue;
+					}
+
+					if (isDirectory) {
+						seenDirectories.add(entry);
+						if (state.subdirectories.add(entry) && notify) {
+							fileListener.fireCreate(entry);
+							changes.incrementAndGet();
+						}
+					} else {
+						seenFiles.add(entry);
+						long[] fileState = state.files.get(entry);
+						if (fileState == null) {
+							state.files.put(entry, new long[] { attributes.lastModifiedTime().toMillis(), attributes.size() });
+							if (notify) {
+								fileListener.fireCreate(entry);
+								changes.incrementAndGet();
+							}
+						} else {
+							updateFile(entry, fileState, attributes);
+						}
+					}
+				}
+			} catch (IOException e) {
+				logger.debug("Directory {} cannot be listed - Reason: {}", directory, e.getLocalizedMessage());
+				state.modificationTime = -1;
+				return;
+			}
+
+			state.files.keySet().removeIf(file -> {
+				if (seenFiles.contains(file)) {
+					return false;
+				}
+				if (notify) {
+					fileListener.fireDelete(file);
+					changes.incrementAndGet();
+				}
+				return true;
+			});
+
+			state.subdirectories.removeIf(subdirectory -> {
+				if (seenDirectories.contains(subdirectory)) {
+					return false;
+				}
+				changes.addAndGet(removeDirectory(subdirectory, notify));
+				if (notify) {
+					fileListener.fireDelete(subdirectory);
+					changes.incrementAndGet();
+				}
+				return true;
+			});
+		}
+
+		/**
+		 * Compares the attributes of a known file with its recorded state.
+		 */
+		private void updateFile(Path file, long[] fileState, BasicFileAttributes attributes) {
+			long modificationTime = attributes.lastModifiedTime().toMillis();
+			if (fileState[0] != modificationTime || fileState[1] != attributes.size()) {
+				fileState[0] = modificationTime;
+				fileState[1] = attributes.size();
+				if (notify) {
+					fileListener.fireModify(file);
+					changes.incrementAndGet();
+				}
+			}
+		}
+	}
+}
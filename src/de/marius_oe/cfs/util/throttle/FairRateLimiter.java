@@ -0,0 +1,174 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs.util.throttle;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shares the capacity of a {@link TokenBucket} between several flows, e.g.
+ * sync folders, by weighted fair queuing: every request gets a virtual
+ * finish time which grows with the requested amount divided by the weight of
+ * its flow, and requests are granted in the order of their finish times. A
+ * flow with twice the weight therefore gets twice the capacity while both
+ * are busy, and an idle flow doesn't lose anything.
+ * <p>
+ * Priority requests, e.g. for small files, are always granted before all
+ * other requests, so latency-sensitive files aren't stuck behind large ones.
+ */
+public final class FairRateLimiter {
+
+	private final TokenBucket bucket;
+
+	private final Map<Object, Flow> flows = new HashMap<>();
+
+	private long nextSequence;
+
+	/** Virtual time of the fair queuing, the start time of the last grant. */
+	private double virtualTime;
+
+	private final PriorityQueue<Request> waiting = new PriorityQueue<>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param bucket
+	 *            the bucket to share
+	 */
+	public FairRateLimiter(TokenBucket bucket) {
+		this.bucket = bucket;
+	}
+
+	/**
+	 * Acquires the given amount for the given flow. Blocks until it is the
+	 * turn of the request and the bucket has tokens.
+	 *
+	 * @param flow
+	 *            the flow the request belongs to
+	 * @param amount
+	 *            the amount to acquire
+	 * @param priority
+	 *            whether the request is granted before all other requests
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting
+	 */
+	public void acquire(Object flow, long amount, boolean priority) throws InterruptedException {
+		if (bucket.isUnlimited()) {
+			return;
+		}
+
+		synchronized (this) {
+			Flow state = flows.computeIfAbsent(flow, key -> new Flow());
+			double start = Math.max(virtualTime, state.finish);
+			Request request = new Request(priority, start, start + amount / state.weight, nextSequence++);
+			state.finish = request.finish;
+			waiting.add(request);
+
+			try {
+				while (true) {
+					if (waiting.peek() != request) {
+						wait();
+						continue;
+					}
+
+					long waitTime = bucket.tryTake(amount);
+					if (waitTime == 0) {
+						waiting.poll();
+						virtualTime = Math.max(virtualTime, request.start);
+						notifyAll();
+						return;
+					}
+					TimeUnit.NANOSECONDS.timedWait(this, waitTime);
+				}
+			} catch (InterruptedException e) {
+				waiting.remove(request);
+				notifyAll();
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Returns the shared bucket.
+	 *
+	 * @return the token bucket
+	 */
+	public TokenBucket getBucket() {
+		return bucket;
+	}
+
+	/**
+	 * Sets the weight of the given flow.
+	 *
+	 * @param flow
+	 *            the flow
+	 * @param weight
+	 *            the weight, greater than zero
+	 */
+	public synchronized void setWeight(Object flow, double weight) {
+		if (weight <= 0) {
+			throw new IllegalArgumentException("Weight must be greater than zero: " + weight);
+		}
+		flows.computeIfAbsent(flow, key -> new Flow()).weight = weight;
+	}
+
+	/**
+	 * State of a single flow.
+	 */
+	private static class Flow {
+
+		/** Virtual finish time of the last request of the flow. */
+		double finish;
+
+		double weight = 1;
+	}
+
+	/**
+	 * A waiting request.
+	 */
+	private static class Request implements Comparable<Request> {
+
+		final double finish;
+		final boolean priority;
+		final long sequence;
+		final double start;
+
+		Request(boolean priority, double start, double finish, long sequence) {
+			this.priority = priority;
+			this.start = start;
+			this.finish = finish;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public int compareTo(Request other) {
+			if (priority != other.priority) {
+				return priority ? -1 : 1;
+			}
+			int result = Double.compare(finish, other.finish);
+			return result != 0 ? result : Long.compare(sequence, other.sequence);
+		}
+	}
+}
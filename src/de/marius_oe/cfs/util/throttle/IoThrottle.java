@@ -0,0 +1,261 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs.util.throttle;
+
+import static de.marius_oe.cfs.configuration.Configuration.Key.IopsLimit;
+import static de.marius_oe.cfs.configuration.Configuration.Key.ReadLimit;
+import static de.marius_oe.cfs.configuration.Configuration.Key.SmallFileSize;
+import static de.marius_oe.cfs.configuration.Configuration.Key.UploadLimit;
+import static de.marius_oe.cfs.configuration.Configuration.Key.WriteLimit;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.marius_oe.cfs.configuration.ConfigurationSnapshot;
+import de.marius_oe.cfs.configuration.FolderPolicy;
+import de.marius_oe.cfs.configuration.IConfigurationListener;
+
+/**
+ * Limits the bytes read, written and uploaded as well as the number of I/O
+ * operations. The capacity of every channel is shared between the sync
+ * folders by their weights (see {@link FairRateLimiter}), small files are
+ * served first. The bandwidth limit of a folder policy additionally limits
+ * the uploads of that folder.
+ * <p>
+ * The limits are taken from the configuration and are updated when the
+ * configuration is reloaded.
+ */
+public final class IoThrottle implements IConfigurationListener {
+
+	/**
+	 * The limited channels.
+	 */
+	public enum Channel {
+		READ, WRITE, UPLOAD
+	}
+
+	private static final Logger logger = LoggerFactory.getLogger(IoThrottle.class);
+
+	private final Map<Channel, FairRateLimiter> limiters = new EnumMap<>(Channel.class);
+
+	private final TokenBucket operations = new TokenBucket(0, 0);
+
+	/** Upload limits of the folders with a bandwidth limit. */
+	private final Map<Path, TokenBucket> folderLimits = new ConcurrentHashMap<>();
+
+	private volatile long smallFileSize;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param configuration
+	 *            the configuration with the limits
+	 */
+	public IoThrottle(ConfigurationSnapshot configuration) {
+		for (Channel channel : Channel.values()) {
+			limiters.put(channel, new FairRateLimiter(new TokenBucket(0, 0)));
+		}
+		onConfigurationChange(configuration);
+	}
+
+	/**
+	 * Acquires the given amount of bytes and one I/O operation.
+	 *
+	 * @param channel
+	 *            the channel
+	 * @param folder
+	 *            the sync folder of the transferred file
+	 * @param amount
+	 *            the number of bytes
+	 * @param fileSize
+	 *            the size of the transferred file
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting
+	 */
+	public void acquire(Channel channel, Path folder, long amount, long fileSize) throws InterruptedException {
+		operations.take(1);
+		acquireBandwidth(channel, folder, amount, fileSize);
+	}
+
+	/**
+	 * Acquires the given amount of bytes on the channel, without an I/O
+	 * operation.
+	 */
+	private void acquireBandwidth(Channel channel, Path folder, long amount, long fileSize) throws InterruptedException {
+		if (channel == Channel.UPLOAD) {
+			TokenBucket folderLimit = folderLimits.get(folder);
+			if (folderLimit != null) {
+				folderLimit.take(amount);
+			}
+		}
+		limiters.get(channel).acquire(folder, amount, fileSize <= smallFileSize);
+	}
+
+	/**
+	 * Acquires the amount on every channel as a single I/O operation and
+	 * translates an interruption into an {@link InterruptedIOException}.
+	 */
+	private void acquireInterruptibly(Path folder, long amount, long fileSize, Channel... channels) throws InterruptedIOException {
+		try {
+			operations.take(1);
+			for (Channel channel : channels) {
+				acquireBandwidth(channel, folder, amount, fileSize);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the I/O limit.");
+		}
+	}
+
+	/**
+	 * Applies the limits of the new configuration.
+	 */
+	@Override
+	public void onConfigurationChange(ConfigurationSnapshot configuration) {
+		setRate(limiters.get(Channel.READ).getBucket(), configuration.getInt(ReadLimit));
+		setRate(limiters.get(Channel.WRITE).getBucket(), configuration.getInt(WriteLimit));
+		setRate(limiters.get(Channel.UPLOAD).getBucket(), configuration.getInt(UploadLimit));
+		setRate(operations, configuration.getInt(IopsLimit));
+		smallFileSize = configuration.getInt(SmallFileSize);
+
+		for (FolderPolicy policy : configuration.getFolderPolicies()) {
+			for (FairRateLimiter limiter : limiters.values()) {
+				limiter.setWeight(policy.getPath(), policy.getWeight());
+			}
+			if (policy.getBandwidthLimit() > 0) {
+				setRate(folderLimits.computeIfAbsent(policy.getPath(), path -> new TokenBucket(0, 0)), policy.getBandwidthLimit());
+			} else {
+				folderLimits.remove(policy.getPath());
+			}
+		}
+		logger.debug("Applied I/O limits of the configuration.");
+	}
+
+	/**
+	 * Sets the rate of the bucket, with a capacity of one second.
+	 */
+	private void setRate(TokenBucket bucket, long rate) {
+		bucket.setRate(rate, Math.max(rate, 1));
+	}
+
+	/**
+	 * Returns a stream which acquires every read chunk.
+	 *
+	 * @param in
+	 *            the stream to throttle
+	 * @param channel
+	 *            the channel
+	 * @param folder
+	 *            the sync folder of the file
+	 * @param fileSize
+	 *            the size of the file
+	 * @return the throttled stream
+	 */
+	public InputStream throttle(InputStream in, final Channel channel, final Path folder, final long fileSize) {
+		return new FilterInputStream(in) {
+			@Override
+			public int read() throws IOException {
+				int b = super.read();
+				if (b != -1) {
+					acquireInterruptibly(folder, 1, fileSize, channel);
+				}
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int bytesRead = super.read(b, off, len);
+				if (bytesRead > 0) {
+					acquireInterruptibly(folder, bytesRead, fileSize, channel);
+				}
+				return bytesRead;
+			}
+		};
+	}
+
+	/**
+	 * Returns a stream which acquires every written chunk.
+	 *
+	 * @param out
+	 *            the stream to throttle
+	 * @param channel
+	 *            the channel
+	 * @param folder
+	 *            the sync folder of the file
+	 * @param fileSize
+	 *            the size of the file
+	 * @return the throttled stream
+	 */
+	public OutputStream throttle(OutputStream out, Channel channel, Path folder, long fileSize) {
+		return throttle(out, folder, fileSize, channel);
+	}
+
+	/**
+	 * Returns a stream which acquires every written chunk on all given
+	 * channels as a single I/O operation.
+	 */
+	private OutputStream throttle(OutputStream out, final Path folder, final long fileSize, final Channel... channels) {
+		return new FilterOutputStream(out) {
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				acquireInterruptibly(folder, len, fileSize, channels);
+				out.write(b, off, len);
+			}
+
+			@Override
+			public void write(int b) throws IOException {
+				acquireInterruptibly(folder, 1, fileSize, channels);
+				out.write(b);
+			}
+		};
+	}
+
+	/**
+	 * Returns a stream for a file written into the storage. The target
+	 * folder is synchronized by a cloud client, so every written chunk is
+	 * acquired on the {@link Channel#WRITE} and the {@link Channel#UPLOAD}
+	 * channel, the latter also limited by the bandwidth limit of the folder.
+	 *
+	 * @param out
+	 *            the stream to throttle
+	 * @param folder
+	 *            the sync folder of the file
+	 * @param fileSize
+	 *            the size of the file
+	 * @return the throttled stream
+	 */
+	public OutputStream throttleStore(OutputStream out, Path folder, long fileSize) {
+		return throttle(out, folder, fileSize, Channel.WRITE, Channel.UPLOAD);
+	}
+}
@@ -0,0 +1,125 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs.util.throttle;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket which refills with a constant rate up to its capacity. Takes
+ * are allowed as long as the bucket isn't empty and may drive it into debt,
+ * so amounts larger than the capacity can be taken as well; the debt delays
+ * the following takes.
+ */
+public final class TokenBucket {
+
+	private long capacity;
+
+	private long lastRefill;
+
+	/** Tokens per second, zero or less for an unlimited bucket. */
+	private double rate;
+
+	private double tokens;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param rate
+	 *            tokens per second, zero or less for an unlimited bucket
+	 * @param capacity
+	 *            maximum number of tokens the bucket can hold
+	 */
+	public TokenBucket(double rate, long capacity) {
+		this.rate = rate;
+		this.capacity = capacity;
+		this.tokens = capacity;
+		this.lastRefill = System.nanoTime();
+	}
+
+	/**
+	 * Returns whether the bucket doesn't limit anything.
+	 *
+	 * @return <code>true</code> if the bucket is unlimited
+	 */
+	public synchronized boolean isUnlimited() {
+		return rate <= 0;
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		tokens = Math.min(capacity, tokens + (now - lastRefill) * rate / TimeUnit.SECONDS.toNanos(1));
+		lastRefill = now;
+	}
+
+	/**
+	 * Changes the rate and the capacity of the bucket.
+	 *
+	 * @param rate
+	 *            tokens per second, zero or less for an unlimited bucket
+	 * @param capacity
+	 *            maximum number of tokens the bucket can hold
+	 */
+	public synchronized void setRate(double rate, long capacity) {
+		refill();
+		this.rate = rate;
+		this.capacity = capacity;
+		this.tokens = Math.min(tokens, capacity);
+	}
+
+	/**
+	 * Takes the given amount of tokens, waiting until the bucket isn't empty
+	 * anymore.
+	 *
+	 * @param amount
+	 *            number of tokens
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting
+	 */
+	public void take(long amount) throws InterruptedException {
+		long waitTime;
+		while ((waitTime = tryTake(amount)) > 0) {
+			TimeUnit.NANOSECONDS.sleep(waitTime);
+		}
+	}
+
+	/**
+	 * Takes the given amount of tokens if the bucket isn't empty.
+	 *
+	 * @param amount
+	 *            number of tokens
+	 * @return <code>0</code> if the tokens have been taken, otherwise the
+	 *         nanoseconds until the bucket won't be empty anymore
+	 */
+	public synchronized long tryTake(long amount) {
+		if (rate <= 0) {
+			return 0;
+		}
+
+		refill();
+		if (tokens > 0) {
+			tokens -= amount;
+			return 0;
+		}
+		return Math.max(TimeUnit.MILLISECONDS.toNanos(1), (long) (-tokens / rate * TimeUnit.SECONDS.toNanos(1)));
+	}
+}
@@ -0,0 +1,104 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs.configuration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Properties;
+
+import org.junit.Test;
+
+import de.marius_oe.cfs.configuration.Configuration.Key;
+import de.marius_oe.cfs.configuration.FolderPolicy.ChangeDetection;
+import de.marius_oe.cfs.configuration.FolderPolicy.Compression;
+
+/**
+ * Tests for the {@link ConfigurationSnapshot} class.
+ */
+public class ConfigurationSnapshotTest {
+
+	/**
+	 * Testing that named folders override the default policy.
+	 */
+	@Test
+	public void getPolicy_01() {
+		Properties properties = new Properties();
+		properties.setProperty("key_size", "256");
+		properties.setProperty("weight", "3");
+		properties.setProperty("ignore", "*.tmp; node_modules/");
+		properties.setProperty("sync_folders", "/data/music");
+		properties.setProperty("folders", "docs");
+		properties.setProperty("folder.docs.path", "/data/docs");
+		properties.setProperty("folder.docs.compression", "none");
+		properties.setProperty("folder.docs.concurrency", "8");
+		properties.setProperty("folder.docs.change_detection", "scanner");
+
+		ConfigurationSnapshot snapshot = new ConfigurationSnapshot(properties);
+
+		assertEquals(Integer.valueOf(256), snapshot.getInt(Key.KeySize));
+		assertEquals(2, snapshot.getFolderPolicies().size());
+
+		FolderPolicy music = snapshot.getPolicy(Paths.get("/data/music/song.mp3"));
+		assertEquals(Compression.ZIP, music.getCompression());
+		assertEquals(ChangeDetection.WATCHER, music.getChangeDetection());
+		assertEquals(3, music.getWeight());
+		assertEquals(Arrays.asList("*.tmp", "node_modules/"), music.getIgnorePatterns());
+
+		FolderPolicy docs = snapshot.getPolicy(Paths.get("/data/docs/letter.txt"));
+		assertEquals(Paths.get("/data/docs"), docs.getPath());
+		assertEquals(Compression.NONE, docs.getCompression());
+		assertEquals(8, docs.getConcurrency());
+		assertEquals(ChangeDetection.SCANNER, docs.getChangeDetection());
+		assertEquals(3, docs.getWeight());
+
+		assertSame(snapshot.getDefaultPolicy(), snapshot.getPolicy(Paths.get("/tmp/file")));
+	}
+
+	/**
+	 * Testing that a named folder without path is rejected.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void parse_01() {
+		Properties properties = new Properties();
+		properties.setProperty("folders", "docs");
+
+		new ConfigurationSnapshot(properties);
+	}
+
+	/**
+	 * Testing that sync folders with the same name are rejected, they would
+	 * be stored in the same place.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void parse_02() {
+		Properties properties = new Properties();
+		properties.setProperty("sync_folders", "/data/docs");
+		properties.setProperty("folders", "work");
+		properties.setProperty("folder.work.path", "/work/docs");
+
+		new ConfigurationSnapshot(properties);
+	}
+}
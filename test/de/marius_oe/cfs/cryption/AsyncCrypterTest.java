@@ -0,0 +1,122 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs.cryption;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests for the {@link AsyncCrypter} class.
+ */
+public class AsyncCrypterTest {
+
+	private final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Testing that composed encryption and decryption restore the input and
+	 * report the byte counts without closing the streams.
+	 */
+	@Test
+	public void encrypt_01() throws Exception {
+		byte[] plain = new byte[300000];
+		new Random(7).nextBytes(plain);
+		AsyncCrypter crypter = new AsyncCrypter(executor);
+
+		ByteArrayOutputStream encrypted = new ByteArrayOutputStream() {
+			@Override
+			public void close() {
+				throw new AssertionError("Caller's stream must not be closed.");
+			}
+		};
+		ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+
+		CryptResult result = crypter.encrypt(new ByteArrayInputStream(plain), encrypted, true)
+				.thenCompose(encryption -> {
+					assertEquals(plain.length, encryption.getBytesRead());
+					assertEquals(encrypted.size(), encryption.getBytesWritten());
+					return crypter.decrypt(new ByteArrayInputStream(encrypted.toByteArray()), decrypted, true);
+				}).get(10, TimeUnit.SECONDS);
+
+		assertArrayEquals(plain, decrypted.toByteArray());
+		assertEquals(encrypted.size(), result.getBytesRead());
+		assertEquals(plain.length, result.getBytesWritten());
+		assertTrue(result.getTotalTime(TimeUnit.NANOSECONDS) >= result.getReadTime(TimeUnit.NANOSECONDS));
+	}
+
+	/**
+	 * Testing that cancelling stops an operation which is in progress.
+	 */
+	@Test(expected = CancellationException.class)
+	public void encrypt_02() throws Exception {
+		CountDownLatch reading = new CountDownLatch(1);
+		InputStream endless = new InputStream() {
+			@Override
+			public int read() {
+				return 0;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) {
+				reading.countDown();
+				return len;
+			}
+		};
+		OutputStream sink = new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+		};
+
+		AsyncCrypter crypter = new AsyncCrypter(executor);
+		CompletableFuture<CryptResult> future = crypter.encrypt(endless, sink, false);
+
+		assertTrue(reading.await(10, TimeUnit.SECONDS));
+		assertTrue(future.cancel(true));
+
+		// the worker stops reading the endless stream
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+		future.get();
+	}
+}
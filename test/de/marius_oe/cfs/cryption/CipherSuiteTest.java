@@ -0,0 +1,108 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs.cryption;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+/**
+ * Tests for the {@link CipherSuite} class.
+ */
+public class CipherSuiteTest {
+
+	private static final SecretKey key = new SecretKeySpec(new byte[32], "AES");
+
+	private static byte[] decrypt(CipherSuite suite, byte[] encrypted, byte[] iv) throws Exception {
+		try (InputStream in = suite.decrypt(new ByteArrayInputStream(encrypted), key, iv, null)) {
+			return IOUtils.toByteArray(in);
+		}
+	}
+
+	private static byte[] encrypt(CipherSuite suite, byte[] plain, byte[] iv) throws Exception {
+		ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+		try (OutputStream out = suite.encrypt(encrypted, key, iv, null)) {
+			out.write(plain);
+		}
+		return encrypted.toByteArray();
+	}
+
+	/**
+	 * Testing that every suite restores the input, including empty input and
+	 * input ending exactly at a segment boundary.
+	 */
+	@Test
+	public void encrypt_01() throws Exception {
+		Random random = new Random(5);
+		int segment = AeadOutputStream.SEGMENT_SIZE;
+		for (CipherSuite suite : CipherSuite.values()) {
+			for (int length : new int[] { 0, 1, segment - 1, segment, segment + 1, 3 * segment + 7 }) {
+				byte[] plain = new byte[length];
+				random.nextBytes(plain);
+				byte[] iv = suite.generateIv();
+
+				assertArrayEquals(suite + " " + length, plain, decrypt(suite, encrypt(suite, plain, iv), iv));
+			}
+		}
+	}
+
+	/**
+	 * Testing that authenticated suites detect modified, truncated and
+	 * extended streams.
+	 */
+	@Test
+	public void decrypt_01() throws Exception {
+		int segment = AeadOutputStream.SEGMENT_SIZE + CipherSuite.TAG_LENGTH;
+		for (CipherSuite suite : new CipherSuite[] { CipherSuite.AES_GCM, CipherSuite.CHACHA20_POLY1305 }) {
+			byte[] iv = suite.generateIv();
+			byte[] encrypted = encrypt(suite, new byte[AeadOutputStream.SEGMENT_SIZE * 3], iv);
+
+			byte[] modified = encrypted.clone();
+			modified[segment + 10] ^= 1;
+			byte[] extended = Arrays.copyOf(encrypted, encrypted.length + segment);
+			System.arraycopy(encrypted, 0, extended, encrypted.length, segment);
+
+			for (byte[] invalid : new byte[][] { modified, Arrays.copyOf(encrypted, segment * 2), extended }) {
+				try {
+					decrypt(suite, invalid, iv);
+					fail(suite + " accepted an invalid stream.");
+				} catch (IOException e) {
+					// expected
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,91 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs.cryption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Test;
+
+/**
+ * Tests for the {@link FileNameCrypter} class.
+ */
+public class FileNameCrypterTest {
+
+	private final FileNameCrypter crypter = new FileNameCrypter(new SecretKeySpec(new byte[32], "AES"), 16);
+
+	/**
+	 * Testing that encrypted names are deterministic and can be decrypted.
+	 */
+	@Test
+	public void encryptName_01() {
+		String encrypted = crypter.encryptName("report.pdf");
+
+		assertEquals(encrypted, crypter.encryptName("report.pdf"));
+		assertNotEquals(encrypted, crypter.encryptName("report.pdg"));
+		assertEquals("report.pdf", crypter.decryptName(encrypted));
+	}
+
+	/**
+	 * Testing that every component of a path is encrypted on its own.
+	 */
+	@Test
+	public void encryptPath_01() {
+		Path plain = Paths.get("docs", "2015", "report.pdf");
+		Path encrypted = crypter.encryptPath(plain);
+
+		assertEquals(3, encrypted.getNameCount());
+		assertEquals(crypter.encryptPath(Paths.get("docs", "2015")), encrypted.getParent());
+		assertEquals(plain, crypter.decryptPath(encrypted));
+	}
+
+	/**
+	 * Testing that manipulated names are rejected.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void decryptName_01() {
+		String encrypted = crypter.encryptName("report.pdf");
+		char replacement = encrypted.charAt(4) == 'A' ? 'B' : 'A';
+		crypter.decryptName(encrypted.substring(0, 4) + replacement + encrypted.substring(5));
+	}
+
+	/**
+	 * Testing that the longest allowed name fits into a file name and longer
+	 * names are rejected.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void encryptName_02() {
+		char[] name = new char[FileNameCrypter.MAX_NAME_LENGTH];
+		Arrays.fill(name, 'x');
+		assertTrue(crypter.encryptName(new String(name)).length() <= 255);
+
+		crypter.encryptName(new String(name) + "x");
+	}
+}
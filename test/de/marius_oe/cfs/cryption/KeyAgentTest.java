@@ -0,0 +1,120 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs.cryption;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import javax.crypto.SecretKey;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.marius_oe.cfs.configuration.Configuration;
+import de.marius_oe.cfs.configuration.Configuration.Key;
+
+/**
+ * Tests for the {@link KeyAgent} class.
+ */
+public class KeyAgentTest {
+
+	private Thread agentThread;
+
+	private Path directory;
+
+	private Path kdfFile;
+
+	private Path tokenFile;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("cfs");
+		kdfFile = directory.resolve("kdf.properties");
+		tokenFile = Paths.get(Configuration.get(Key.AgentTokenFile));
+		Files.deleteIfExists(tokenFile);
+	}
+
+	/**
+	 * Starts an agent handing out the given key and waits until it accepts
+	 * requests.
+	 */
+	private void startAgent(SecretKey key) throws InterruptedException {
+		agentThread = new Thread(new KeyAgent(key), "key-agent");
+		agentThread.setDaemon(true);
+		agentThread.start();
+
+		for (int i = 0; i < 100 && !Files.exists(tokenFile); i++) {
+			Thread.sleep(50);
+		}
+		assertTrue(Files.exists(tokenFile));
+	}
+
+	@After
+	public void tearDown() throws IOException, InterruptedException {
+		if (agentThread != null) {
+			KeyAgent.stopAgent();
+			agentThread.join(5000);
+		}
+		FileUtils.deleteDirectory(directory.toFile());
+	}
+
+	/**
+	 * Testing that the key is handed out by the agent and only accepted if it
+	 * matches the kdf-file.
+	 */
+	@Test
+	public void requestKey_01() throws InterruptedException {
+		SecretKey key = KeyDerivation.createKey("correct horse".toCharArray(), kdfFile);
+		startAgent(key);
+
+		assertArrayEquals(key.getEncoded(), KeyAgent.requestKey(kdfFile).getEncoded());
+
+		KeyDerivation.createKey("battery staple".toCharArray(), kdfFile);
+		assertNull(KeyAgent.requestKey(kdfFile));
+	}
+
+	/**
+	 * Testing that a request with a wrong token is denied.
+	 */
+	@Test
+	public void requestKey_02() throws IOException, InterruptedException {
+		SecretKey key = KeyDerivation.createKey("correct horse".toCharArray(), kdfFile);
+		startAgent(key);
+
+		byte[] token = Files.readAllBytes(tokenFile);
+		Files.write(tokenFile, "invalid".getBytes(StandardCharsets.US_ASCII));
+		assertNull(KeyAgent.requestKey(kdfFile));
+
+		Files.write(tokenFile, token);
+		assertArrayEquals(key.getEncoded(), KeyAgent.requestKey(kdfFile).getEncoded());
+	}
+}
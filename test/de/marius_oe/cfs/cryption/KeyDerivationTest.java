@@ -0,0 +1,96 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs.cryption;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import javax.crypto.SecretKey;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the {@link KeyDerivation} class.
+ */
+public class KeyDerivationTest {
+
+	private Path directory;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("cfs");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(directory.toFile());
+	}
+
+	/**
+	 * Testing that the same passphrase derives the same key and that the key
+	 * matches the check value of the kdf-file.
+	 */
+	@Test
+	public void deriveKey_01() {
+		Path kdfFile = directory.resolve("kdf.properties");
+		SecretKey key = KeyDerivation.deriveKey("correct horse".toCharArray(), kdfFile);
+
+		assertTrue(Files.exists(kdfFile));
+		assertArrayEquals(key.getEncoded(), KeyDerivation.deriveKey("correct horse".toCharArray(), kdfFile).getEncoded());
+		assertTrue(KeyDerivation.verifyKey(key, kdfFile));
+	}
+
+	/**
+	 * Testing that a wrong passphrase is rejected.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void deriveKey_02() {
+		Path kdfFile = directory.resolve("kdf.properties");
+		KeyDerivation.createKey("correct horse".toCharArray(), kdfFile);
+
+		KeyDerivation.deriveKey("battery staple".toCharArray(), kdfFile);
+	}
+
+	/**
+	 * Testing that keys of another kdf-file and a missing kdf-file are not
+	 * verified.
+	 */
+	@Test
+	public void verifyKey_01() {
+		Path kdfFile = directory.resolve("kdf.properties");
+		Path otherKdfFile = directory.resolve("other.properties");
+		KeyDerivation.createKey("correct horse".toCharArray(), kdfFile);
+		SecretKey otherKey = KeyDerivation.createKey("correct horse".toCharArray(), otherKdfFile);
+
+		assertFalse(KeyDerivation.verifyKey(otherKey, kdfFile));
+		assertFalse(KeyDerivation.verifyKey(otherKey, directory.resolve("missing.properties")));
+	}
+}
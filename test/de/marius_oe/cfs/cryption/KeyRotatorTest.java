@@ -0,0 +1,191 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs.cryption;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import de.marius_oe.cfs.configuration.Configuration;
+import de.marius_oe.cfs.configuration.Configuration.Key;
+
+/**
+ * Tests for the {@link KeyRotator} class.
+ */
+public class KeyRotatorTest {
+
+	private static final byte[] testInput = "Rotating keys must not touch the encrypted data".getBytes();
+
+	/**
+	 * Testing that only the header is rewritten and the file can be decrypted
+	 * after rotating back to the original key.
+	 */
+	@Test
+	public void rewrap_01() throws IOException {
+		ByteArrayOutputStream encryptedOutputStream = new ByteArrayOutputStream();
+		Crypter.encrypt(new ByteArrayInputStream(testInput), encryptedOutputStream, false);
+		byte[] encrypted = encryptedOutputStream.toByteArray();
+
+		Path file = Files.createTempFile("cfs", ".enc");
+		try {
+			Files.write(file, encrypted);
+
+			SecretKey masterKey = KeyManager.instance().getKey();
+			SecretKey newKey = new SecretKeySpec(new byte[32], "AES");
+
+			assertTrue(KeyRotator.rewrap(file, masterKey, newKey));
+			assertFalse(KeyRotator.rewrap(file, masterKey, newKey));
+
+			byte[] rewrapped = Files.readAllBytes(file);
+			// everything behind the wrapped 256 bit key must be unchanged
+			int dataOffset = 1 + 1 + 4 + 1 + 40;
+			assertFalse(Arrays.equals(encrypted, rewrapped));
+			assertArrayEquals(Arrays.copyOfRange(encrypted, dataOffset, encrypted.length), Arrays.copyOfRange(rewrapped, dataOffset, rewrapped.length));
+
+			assertTrue(KeyRotator.rewrap(file, newKey, masterKey));
+
+			ByteArrayOutputStream plainOutputStream = new ByteArrayOutputStream();
+			Crypter.decrypt(Files.newInputStream(file), plainOutputStream, false);
+			assertArrayEquals(testInput, plainOutputStream.toByteArray());
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	/**
+	 * Testing that a rotation rewraps all files, keeps the name key and
+	 * deletes the previous key when it is done.
+	 */
+	@Test
+	public void rotate_01() throws IOException {
+		Path root = Files.createTempDirectory("cfs");
+		try {
+			Path file = root.resolve("file.enc");
+			Crypter.encrypt(new ByteArrayInputStream(testInput), Files.newOutputStream(file), false);
+			KeyManager keyManager = KeyManager.instance();
+			SecretKey nameKey = keyManager.getNameKey();
+			SecretKey previousKey = keyManager.getKey();
+
+			assertEquals(1, KeyRotator.rotate(Collections.singletonList(root), 2));
+			assertNull(keyManager.getPreviousKey());
+			assertNotEquals(previousKey, keyManager.getKey());
+			assertEquals(nameKey, keyManager.getNameKey());
+
+			ByteArrayOutputStream plainOutputStream = new ByteArrayOutputStream();
+			Crypter.decrypt(Files.newInputStream(file), plainOutputStream, false);
+			assertArrayEquals(testInput, plainOutputStream.toByteArray());
+		} finally {
+			FileUtils.deleteDirectory(root.toFile());
+		}
+	}
+
+	/**
+	 * Testing that legacy files are encrypted again and that files which are
+	 * not encrypted by the application are skipped.
+	 */
+	@Test
+	public void rotate_02() throws Exception {
+		Path root = Files.createTempDirectory("cfs");
+		try {
+			byte[] iv = new byte[16];
+			new Random().nextBytes(iv);
+			Path legacy = root.resolve("legacy.enc");
+			try (OutputStream out = Files.newOutputStream(legacy)) {
+				out.write(iv.length);
+				out.write(iv);
+				try (OutputStream cipherStream = CipherSuite.AES_CBC.encrypt(out, KeyManager.instance().getKey(), iv)) {
+					cipherStream.write(testInput);
+				}
+			}
+			byte[] versionLike = { 3, 1, 2, 3 };
+			Path other = Files.write(root.resolve("other.txt"), versionLike);
+			byte[] ivLike = new byte[1 + 16 + 20];
+			ivLike[0] = 16;
+			Path random = Files.write(root.resolve("random.bin"), ivLike);
+
+			assertEquals(1, KeyRotator.rotate(Collections.singletonList(root), 2));
+			assertNull(KeyManager.instance().getPreviousKey());
+			assertArrayEquals(versionLike, Files.readAllBytes(other));
+			assertArrayEquals(ivLike, Files.readAllBytes(random));
+
+			ByteArrayOutputStream plainOutputStream = new ByteArrayOutputStream();
+			Crypter.decrypt(Files.newInputStream(legacy), plainOutputStream, false);
+			assertArrayEquals(testInput, plainOutputStream.toByteArray());
+		} finally {
+			FileUtils.deleteDirectory(root.toFile());
+		}
+	}
+
+	/**
+	 * Testing that the key is not rotated again before the previous rotation
+	 * has been completed.
+	 */
+	@Test(expected = IllegalStateException.class)
+	public void rotateKey_01() {
+		KeyManager keyManager = KeyManager.instance();
+		keyManager.rotateKey();
+		try {
+			keyManager.rotateKey();
+		} finally {
+			keyManager.completeRotation();
+		}
+	}
+
+	/**
+	 * Testing that the previous key is only stored wrapped by the new key.
+	 */
+	@Test
+	public void rotateKey_02() throws IOException {
+		KeyManager keyManager = KeyManager.instance();
+		SecretKey previousKey = keyManager.rotateKey();
+		try {
+			byte[] content = Files.readAllBytes(Paths.get(Configuration.get(Key.SecretKeyFile) + ".previous"));
+			String stored = new String(content, StandardCharsets.ISO_8859_1);
+			assertFalse(stored.contains(new String(previousKey.getEncoded(), StandardCharsets.ISO_8859_1)));
+			assertEquals(previousKey, keyManager.getPreviousKey());
+		} finally {
+			keyManager.completeRotation();
+		}
+	}
+}
@@ -0,0 +1,151 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs.storage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.marius_oe.cfs.cryption.AsyncCrypter;
+import de.marius_oe.cfs.cryption.CryptResult;
+import de.marius_oe.cfs.cryption.Crypter;
+
+/**
+ * Tests for the {@link LocalStorage} class.
+ */
+public class LocalStorageTest {
+
+	private Path root;
+
+	@Before
+	public void setUp() throws IOException {
+		root = Files.createTempDirectory("cfs");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(root.toFile());
+	}
+
+	/**
+	 * Testing that a directory is deleted with all its entries and that
+	 * stored files are mapped back to their plain paths.
+	 */
+	@Test
+	public void delete_01() throws IOException {
+		LocalStorage storage = new LocalStorage(root);
+		Path file = Paths.get("docs", "letters", "letter.txt");
+		storage.store(file, new ByteArrayInputStream("letter".getBytes(StandardCharsets.UTF_8)), false);
+		storage.store(Paths.get("docs", "note.txt"), new ByteArrayInputStream("note".getBytes(StandardCharsets.UTF_8)), false);
+
+		assertEquals(file, storage.relativize(storage.resolve(file)));
+
+		assertTrue(storage.delete(Paths.get("docs")));
+		assertFalse(Files.exists(storage.resolve(Paths.get("docs"))));
+		assertFalse(storage.delete(Paths.get("docs")));
+	}
+
+	/**
+	 * Testing that files are stored encrypted with encrypted names, replaced
+	 * and deleted.
+	 */
+	@Test
+	public void store_01() throws IOException {
+		LocalStorage storage = new LocalStorage(root);
+		Path path = Paths.get("docs", "letter.txt");
+
+		storage.store(path, new ByteArrayInputStream("first".getBytes(StandardCharsets.UTF_8)), false);
+		storage.store(path, new ByteArrayInputStream("second".getBytes(StandardCharsets.UTF_8)), true);
+
+		Path stored = storage.resolve(path);
+		assertTrue(stored.startsWith(root.toAbsolutePath()));
+		assertFalse(stored.toString().contains("letter"));
+		try (Stream<Path> files = Files.list(stored.getParent())) {
+			assertEquals(1, files.count());
+		}
+
+		ByteArrayOutputStream plain = new ByteArrayOutputStream();
+		Crypter.decrypt(Files.newInputStream(stored), plain, true);
+		assertArrayEquals("second".getBytes(StandardCharsets.UTF_8), plain.toByteArray());
+
+		assertTrue(storage.delete(path));
+		assertFalse(Files.exists(stored));
+		assertFalse(storage.delete(path));
+	}
+
+	/**
+	 * Testing that cancelling a store leaves neither the file nor its
+	 * temporary file behind.
+	 */
+	@Test
+	public void storeAsync_01() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		CountDownLatch reading = new CountDownLatch(1);
+		InputStream endless = new InputStream() {
+			@Override
+			public int read() {
+				return 0;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) {
+				reading.countDown();
+				return len;
+			}
+		};
+
+		LocalStorage storage = new LocalStorage(root, new AsyncCrypter(executor));
+		Path path = Paths.get("endless.bin");
+		CompletableFuture<CryptResult> future = storage.storeAsync(path, endless, false);
+
+		assertTrue(reading.await(10, TimeUnit.SECONDS));
+		assertTrue(future.cancel(true));
+
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+		try (Stream<Path> files = Files.list(root)) {
+			assertEquals(0, files.count());
+		}
+	}
+}
@@ -0,0 +1,189 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs.storage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.marius_oe.cfs.cryption.Crypter;
+
+/**
+ * Tests for the {@link ObjectCache} class.
+ */
+public class ObjectCacheTest {
+
+	private static final int OBJECT_SIZE = 10000;
+
+	private Path directory;
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	private final Map<String, byte[]> encrypted = new HashMap<>();
+	private final AtomicInteger fetches = new AtomicInteger();
+	private final CountDownLatch gate = new CountDownLatch(1);
+	private final Map<String, byte[]> plain = new HashMap<>();
+
+	private final IObjectSource source = id -> {
+		fetches.incrementAndGet();
+		try {
+			gate.await(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+		byte[] data = encrypted.get(id);
+		if (data == null) {
+			throw new IOException("No such object: " + id);
+		}
+		return new ByteArrayInputStream(data);
+	};
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("cfs");
+		Random random = new Random(3);
+		for (String id : new String[] { "a", "b", "c" }) {
+			byte[] data = new byte[OBJECT_SIZE];
+			random.nextBytes(data);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			Crypter.encrypt(new ByteArrayInputStream(data), out, false);
+			plain.put(id, data);
+			encrypted.put(id, out.toByteArray());
+		}
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		executor.shutdownNow();
+		FileUtils.deleteDirectory(directory.toFile());
+	}
+
+	private byte[] read(ObjectCache cache, String id) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		cache.read(id, out, false).get(10, TimeUnit.SECONDS);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Testing that concurrent reads share one fetch and that objects are
+	 * stored encrypted.
+	 */
+	@Test
+	public void read_01() throws Exception {
+		ObjectCache cache = new ObjectCache(directory, Long.MAX_VALUE, source, executor);
+
+		List<ByteArrayOutputStream> outputs = new ArrayList<>();
+		List<CompletableFuture<?>> reads = new ArrayList<>();
+		for (int i = 0; i < 8; i++) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			outputs.add(out);
+			reads.add(cache.read("a", out, false));
+		}
+		gate.countDown();
+		CompletableFuture.allOf(reads.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+
+		assertEquals(1, fetches.get());
+		for (ByteArrayOutputStream out : outputs) {
+			assertArrayEquals(plain.get("a"), out.toByteArray());
+		}
+		assertArrayEquals(encrypted.get("a"), Files.readAllBytes(directory.resolve("a")));
+		assertArrayEquals(plain.get("a"), read(cache, "a"));
+		assertEquals(1, fetches.get());
+	}
+
+	/**
+	 * Testing that the least recently used object is evicted and that the
+	 * index is rebuilt from the directory.
+	 */
+	@Test
+	public void evict_01() throws Exception {
+		gate.countDown();
+		long objectSize = encrypted.get("a").length;
+		ObjectCache cache = new ObjectCache(directory, objectSize * 2, source, executor);
+
+		read(cache, "a");
+		read(cache, "b");
+		read(cache, "a");
+		read(cache, "c");
+
+		assertTrue(cache.isCached("a"));
+		assertFalse(cache.isCached("b"));
+		assertTrue(cache.isCached("c"));
+		assertFalse(Files.exists(directory.resolve("b")));
+		assertEquals(objectSize * 2, cache.getSize());
+
+		cache = new ObjectCache(directory, objectSize * 2, source, executor);
+		assertTrue(cache.isCached("a"));
+		assertTrue(cache.isCached("c"));
+		assertEquals(objectSize * 2, cache.getSize());
+		assertArrayEquals(plain.get("c"), read(cache, "c"));
+		assertEquals(3, fetches.get());
+	}
+
+	/**
+	 * Testing that an object whose file is gone is fetched again and that
+	 * ids which could name other files are rejected.
+	 */
+	@Test
+	public void read_02() throws Exception {
+		gate.countDown();
+		ObjectCache cache = new ObjectCache(directory, Long.MAX_VALUE, source, executor);
+		read(cache, "a");
+		Files.delete(directory.resolve("a"));
+
+		assertArrayEquals(plain.get("a"), read(cache, "a"));
+		assertEquals(2, fetches.get());
+
+		for (String id : new String[] { ".", "..", "a.part" }) {
+			try {
+				cache.get(id);
+				fail("Accepted " + id);
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+}
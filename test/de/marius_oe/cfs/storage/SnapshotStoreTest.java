@@ -0,0 +1,189 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs.storage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.marius_oe.cfs.util.file.IgnoreMatcher;
+
+/**
+ * Tests for the {@link SnapshotStore} class.
+ */
+public class SnapshotStoreTest {
+
+	private Path folder;
+
+	private Map<Path, IgnoreMatcher> folders;
+
+	private Path root;
+
+	private SnapshotStore store;
+
+	private long countObjects() throws IOException {
+		try (Stream<Path> files = Files.walk(root.resolve("store").resolve("objects"))) {
+			return files.filter(Files::isRegularFile).count();
+		}
+	}
+
+	private void assertContent(String expected, Path file) throws IOException {
+		assertArrayEquals(expected.getBytes(StandardCharsets.UTF_8), Files.readAllBytes(file));
+	}
+
+	private void write(String path, String content) throws IOException {
+		Path file = folder.resolve(path);
+		Files.createDirectories(file.getParent());
+		Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		root = Files.createTempDirectory("cfs");
+		folder = root.resolve("docs");
+		folders = Collections.singletonMap(folder, IgnoreMatcher.compile(folder, Arrays.asList("*.tmp")));
+		store = new SnapshotStore(root.resolve("store"), new SecretKeySpec(new byte[32], "AES"), ForkJoinPool.commonPool());
+
+		write("a.txt", "alpha");
+		write("sub/b.txt", "beta");
+		write("other/c.txt", "gamma");
+		write("other/c.tmp", "ignored");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(root.toFile());
+	}
+
+	/**
+	 * Testing that a snapshot only writes the changed file and the
+	 * directories on its path, and that each snapshot restores its own
+	 * version.
+	 */
+	@Test
+	public void create_01() throws IOException {
+		String first = store.create(folders);
+		// 3 files, 3 directories and the root
+		assertEquals(7, countObjects());
+
+		String unchanged = store.create(folders);
+		assertEquals(7, countObjects());
+
+		write("sub/b.txt", "beta, second version");
+		Files.setLastModifiedTime(folder.resolve("sub/b.txt"), FileTime.fromMillis(System.currentTimeMillis() + 5000));
+		String second = store.create(folders);
+		assertEquals(11, countObjects());
+		assertEquals(Arrays.asList(first, unchanged, second), store.list());
+
+		store.restore(first, root.resolve("first"));
+		store.restore(second, root.resolve("second"));
+		assertContent("beta", root.resolve("first/docs/sub/b.txt"));
+		assertContent("beta, second version", root.resolve("second/docs/sub/b.txt"));
+		assertContent("gamma", root.resolve("second/docs/other/c.txt"));
+		assertFalse(Files.exists(root.resolve("second/docs/other/c.tmp")));
+	}
+
+	/**
+	 * Testing that the garbage collection removes only objects of deleted
+	 * snapshots which no other snapshot shares.
+	 */
+	@Test
+	public void collectGarbage_01() throws IOException {
+		store.create(folders);
+		write("sub/b.txt", "beta, second version");
+		Files.setLastModifiedTime(folder.resolve("sub/b.txt"), FileTime.fromMillis(System.currentTimeMillis() + 5000));
+		String second = store.create(folders);
+
+		// objects written during a collection are kept, so these ones are made older
+		long old = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1);
+		try (Stream<Path> files = Files.walk(root.resolve("store").resolve("objects"))) {
+			for (Path file : files.filter(Files::isRegularFile).collect(Collectors.toList())) {
+				Files.setLastModifiedTime(file, FileTime.fromMillis(old));
+			}
+		}
+
+		assertEquals(0, store.collectGarbage());
+		assertEquals(1, store.prune(1));
+		assertEquals(4, store.collectGarbage());
+		assertEquals(7, countObjects());
+
+		store.restore(second, root.resolve("restored"));
+		List<String> restored = Arrays.asList("a.txt", "sub/b.txt", "other/c.txt");
+		for (String path : restored) {
+			assertArrayEquals(Files.readAllBytes(folder.resolve(path)), Files.readAllBytes(root.resolve("restored/docs").resolve(path)));
+		}
+	}
+
+	/**
+	 * Testing that a file object whose content does not match its id is
+	 * rejected and leaves the existing file alone.
+	 */
+	@Test
+	public void restore_01() throws IOException {
+		String snapshot = store.create(folders);
+		String rootId = new String(Files.readAllBytes(root.resolve("store/snapshots").resolve(snapshot)), StandardCharsets.US_ASCII).trim();
+		Map<String, SnapshotStore.Entry> docs = new HashMap<>();
+		for (SnapshotStore.Entry entry : store.readTree(store.readTree(rootId).get(0).id)) {
+			docs.put(entry.name, entry);
+		}
+		String a = docs.get("a.txt").id;
+		String b = store.readTree(docs.get("sub").id).get(0).id;
+		Path objects = root.resolve("store/objects");
+		Files.copy(objects.resolve(b.substring(0, 2)).resolve(b), objects.resolve(a.substring(0, 2)).resolve(a), StandardCopyOption.REPLACE_EXISTING);
+
+		Path restored = root.resolve("restored/docs/a.txt");
+		Files.createDirectories(restored.getParent());
+		Files.write(restored, "local".getBytes(StandardCharsets.UTF_8));
+		try {
+			store.restore(snapshot, root.resolve("restored"));
+			fail("Restored a corrupted object.");
+		} catch (IOException e) {
+			// expected
+		}
+		assertContent("local", restored);
+	}
+}
@@ -0,0 +1,170 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs.sync;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.function.BooleanSupplier;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.marius_oe.cfs.configuration.ConfigurationSnapshot;
+import de.marius_oe.cfs.cryption.Crypter;
+import de.marius_oe.cfs.storage.LocalStorage;
+
+/**
+ * Tests for the {@link SyncEngine} class.
+ */
+public class SyncEngineTest {
+
+	private Path directory;
+
+	private SyncEngine engine;
+
+	private Path folder;
+
+	private SyncJournal journal;
+
+	private LocalStorage storage;
+
+	/**
+	 * Waits up to ten seconds for the condition.
+	 */
+	private static void await(BooleanSupplier condition) throws InterruptedException {
+		for (int i = 0; i < 200 && !condition.getAsBoolean(); i++) {
+			Thread.sleep(50);
+		}
+		assertTrue(condition.getAsBoolean());
+	}
+
+	/**
+	 * Returns whether the stored file of the given path has the content.
+	 */
+	private boolean isStored(String path, String content) {
+		Path stored = storage.resolve(Paths.get("docs", path));
+		if (!Files.exists(stored)) {
+			return false;
+		}
+		ByteArrayOutputStream plain = new ByteArrayOutputStream();
+		try (InputStream in = Files.newInputStream(stored)) {
+			Crypter.decrypt(in, plain, true);
+		} catch (IOException e) {
+			return false;
+		}
+		return Arrays.equals(content.getBytes(StandardCharsets.UTF_8), plain.toByteArray());
+	}
+
+	/**
+	 * Changes the folder and waits until every change is stored.
+	 */
+	private void process() throws Exception {
+		Files.write(folder.resolve("letter.txt"), "first".getBytes(StandardCharsets.UTF_8));
+		await(() -> isStored("letter.txt", "first"));
+
+		Files.write(folder.resolve("letter.txt"), "second version".getBytes(StandardCharsets.UTF_8));
+		await(() -> isStored("letter.txt", "second version"));
+
+		Files.createDirectories(folder.resolve("sub/deep"));
+		Files.write(folder.resolve("sub/deep/note.txt"), "note".getBytes(StandardCharsets.UTF_8));
+		await(() -> isStored("sub/deep/note.txt", "note"));
+
+		FileUtils.deleteDirectory(folder.resolve("sub").toFile());
+		await(() -> !Files.exists(storage.resolve(Paths.get("docs", "sub"))));
+
+		Files.delete(folder.resolve("letter.txt"));
+		await(() -> !Files.exists(storage.resolve(Paths.get("docs", "letter.txt"))));
+	}
+
+	/**
+	 * Testing that created, modified and deleted files, also in a new sub
+	 * directory, are synchronized into the storage with the watcher.
+	 */
+	@Test
+	public void process_01() throws Exception {
+		start("watcher");
+		process();
+	}
+
+	/**
+	 * Testing that created, modified and deleted files, also in a new sub
+	 * directory, are synchronized into the storage with the scanner.
+	 */
+	@Test
+	public void process_02() throws Exception {
+		start("scanner");
+		process();
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("cfs");
+		folder = Files.createDirectories(directory.resolve("docs"));
+	}
+
+	/**
+	 * Starts an engine synchronizing the folder with the given change
+	 * detection.
+	 */
+	private void start(String changeDetection) throws IOException {
+		Properties properties = new Properties();
+		properties.setProperty("sync_folders", folder.toString());
+		properties.setProperty("change_detection", changeDetection);
+		properties.setProperty("scan_interval_min", "10");
+		properties.setProperty("scan_interval_max", "100");
+		properties.setProperty("watcher_shards", "1");
+		properties.setProperty("small_file_workers", "2");
+		properties.setProperty("large_file_workers", "1");
+		properties.setProperty("large_file_size", "67108864");
+		properties.setProperty("small_file_size", "1048576");
+		properties.setProperty("retry_delay", "10");
+		properties.setProperty("retry_attempts", "3");
+		properties.setProperty("read_limit", "0");
+		properties.setProperty("write_limit", "0");
+		properties.setProperty("upload_limit", "0");
+		properties.setProperty("iops_limit", "0");
+
+		journal = new SyncJournal(directory.resolve("sync.journal"), Long.MAX_VALUE);
+		storage = new LocalStorage(directory.resolve("target"));
+		engine = new SyncEngine(new ConfigurationSnapshot(properties), journal, storage);
+		engine.start(journal.open());
+	}
+
+	@After
+	public void tearDown() throws IOException, InterruptedException {
+		engine.stop(5000);
+		journal.close();
+		FileUtils.deleteDirectory(directory.toFile());
+	}
+}
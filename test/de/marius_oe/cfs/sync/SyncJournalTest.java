@@ -0,0 +1,139 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs.sync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.marius_oe.cfs.sync.SyncOperation.Type;
+
+/**
+ * Tests for the {@link SyncJournal} class.
+ */
+public class SyncJournalTest {
+
+	private Path file;
+
+	@Before
+	public void setUp() throws IOException {
+		file = Files.createTempFile("cfs", ".journal");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(file);
+	}
+
+	/**
+	 * Testing that pending operations are replayed and completed ones are
+	 * not.
+	 */
+	@Test
+	public void open_01() throws Exception {
+		SyncJournal journal = new SyncJournal(file, Long.MAX_VALUE);
+		assertTrue(journal.open().isEmpty());
+
+		List<CompletableFuture<SyncOperation>> futures = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			futures.add(journal.append(Type.MODIFY, Paths.get("/data/file" + i)));
+		}
+		for (int i = 0; i < 100; i += 2) {
+			journal.complete(futures.get(i).get().getSequence());
+		}
+		journal.close();
+
+		journal = new SyncJournal(file, Long.MAX_VALUE);
+		List<SyncOperation> pending = journal.open();
+		assertEquals(50, pending.size());
+		assertEquals(Paths.get("/data/file1"), pending.get(0).getPath());
+		assertEquals(Type.MODIFY, pending.get(0).getType());
+
+		// sequence numbers continue after the replayed ones
+		assertTrue(journal.append(Type.DELETE, Paths.get("/data/x")).get().getSequence() > 100);
+		journal.close();
+	}
+
+	/**
+	 * Testing that a torn record at the end is dropped.
+	 */
+	@Test
+	public void open_02() throws Exception {
+		SyncJournal journal = new SyncJournal(file, Long.MAX_VALUE);
+		journal.open();
+		journal.append(Type.CREATE, Paths.get("/data/file")).get();
+		journal.close();
+
+		Files.write(file, new byte[] { 0, 0, 0, 20, 1, 2 }, StandardOpenOption.APPEND);
+		long tornSize = Files.size(file);
+
+		journal = new SyncJournal(file, Long.MAX_VALUE);
+		assertEquals(1, journal.open().size());
+		assertEquals(tornSize - 6, Files.size(file));
+		journal.close();
+	}
+
+	/**
+	 * Testing that a checkpoint only keeps the pending operations.
+	 */
+	@Test
+	public void checkpoint_01() throws Exception {
+		SyncJournal journal = new SyncJournal(file, Long.MAX_VALUE);
+		journal.open();
+		for (int i = 0; i < 100; i++) {
+			journal.complete(journal.append(Type.CREATE, Paths.get("/data/file" + i)).get().getSequence());
+		}
+		journal.append(Type.DELETE, Paths.get("/data/pending"));
+		long size = Files.size(file);
+
+		journal.checkpoint().get();
+		assertTrue(Files.size(file) < size / 50);
+		journal.close();
+
+		journal = new SyncJournal(file, Long.MAX_VALUE);
+		List<SyncOperation> pending = journal.open();
+		assertEquals(1, pending.size());
+		assertEquals(Paths.get("/data/pending"), pending.get(0).getPath());
+		journal.close();
+	}
+
+	/**
+	 * Testing that a journal which was never opened can be closed.
+	 */
+	@Test
+	public void close_01() throws Exception {
+		new SyncJournal(file, Long.MAX_VALUE).close();
+	}
+}
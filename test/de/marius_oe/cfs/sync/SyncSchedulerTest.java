@@ -0,0 +1,185 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs.sync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import de.marius_oe.cfs.sync.SyncOperation.Type;
+
+/**
+ * Tests for the {@link SyncScheduler} class.
+ */
+public class SyncSchedulerTest {
+
+	private static final Path FOLDER = Paths.get("/data");
+
+	private static SyncOperation operation(long sequence, String name) {
+		return new SyncOperation(sequence, Type.MODIFY, FOLDER.resolve(name));
+	}
+
+	/**
+	 * Testing that pinned folders, small files and recent files come first
+	 * and that queued events of the same file are merged.
+	 */
+	@Test
+	public void submit_01() throws Exception {
+		List<String> order = new CopyOnWriteArrayList<>();
+		List<List<Long>> sequences = new CopyOnWriteArrayList<>();
+		SyncScheduler scheduler = new SyncScheduler(new ISyncJobHandler() {
+			@Override
+			public void onFailure(SyncJob job, Exception cause) {
+			}
+
+			@Override
+			public void process(SyncJob job) {
+				order.add(job.getPath().getFileName().toString());
+				sequences.add(job.getSequences());
+			}
+		}, Long.MAX_VALUE, 10, 3);
+
+		scheduler.submit(operation(1, "big"), FOLDER, false, 100000, 1000);
+		scheduler.submit(operation(2, "old"), FOLDER, false, 100, 1000);
+		scheduler.submit(operation(3, "new"), FOLDER, false, 100, 2000);
+		scheduler.submit(operation(4, "pinned"), FOLDER, true, 100000, 1000);
+		scheduler.submit(operation(5, "old"), FOLDER, false, 100, 1500);
+		assertEquals(4, scheduler.getQueuedCount());
+
+		scheduler.start(1, 0);
+		assertTrue(scheduler.drain(5000));
+		scheduler.stop();
+
+		assertEquals(Arrays.asList("pinned", "new", "old", "big"), order);
+		assertEquals(Arrays.asList(2L, 5L), sequences.get(2));
+	}
+
+	/**
+	 * Testing that failed jobs are retried with backoff and given up after
+	 * the last attempt.
+	 */
+	@Test
+	public void retry_01() throws Exception {
+		AtomicInteger attempts = new AtomicInteger();
+		CountDownLatch failed = new CountDownLatch(1);
+		SyncScheduler scheduler = new SyncScheduler(new ISyncJobHandler() {
+			@Override
+			public void onFailure(SyncJob job, Exception cause) {
+				failed.countDown();
+			}
+
+			@Override
+			public void process(SyncJob job) throws Exception {
+				attempts.incrementAndGet();
+				throw new Exception("unreachable");
+			}
+		}, 1000, 20, 3);
+		scheduler.start(0, 1);
+
+		long start = System.nanoTime();
+		scheduler.submit(operation(1, "file"), FOLDER, false, 10, 1000);
+		assertTrue(failed.await(5, TimeUnit.SECONDS));
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		scheduler.stop();
+
+		assertEquals(3, attempts.get());
+		// 20 ms after the first and 40 ms after the second attempt
+		assertTrue("Elapsed " + elapsed, elapsed >= 60);
+		assertEquals(0, scheduler.getQueuedCount());
+	}
+
+	/**
+	 * Testing that a newer event of a file which waits for a retry is
+	 * processed right away.
+	 */
+	@Test
+	public void retry_02() throws Exception {
+		AtomicInteger attempts = new AtomicInteger();
+		CountDownLatch processed = new CountDownLatch(1);
+		SyncScheduler scheduler = new SyncScheduler(new ISyncJobHandler() {
+			@Override
+			public void onFailure(SyncJob job, Exception cause) {
+			}
+
+			@Override
+			public void process(SyncJob job) throws Exception {
+				if (attempts.incrementAndGet() == 1) {
+					throw new Exception("unreachable");
+				}
+				assertEquals(0, job.getAttempt());
+				processed.countDown();
+			}
+		}, Long.MAX_VALUE, 60000, 3);
+		scheduler.start(1, 0);
+
+		scheduler.submit(operation(1, "file"), FOLDER, false, 10, 1000);
+		while (attempts.get() == 0 || scheduler.getQueuedCount() == 0) {
+			Thread.sleep(5);
+		}
+		scheduler.submit(operation(2, "file"), FOLDER, false, 10, 2000);
+		assertTrue(processed.await(5, TimeUnit.SECONDS));
+		scheduler.stop();
+	}
+
+	/**
+	 * Testing that no more files of a folder are processed at the same time
+	 * than its concurrency allows.
+	 */
+	@Test
+	public void concurrency_01() throws Exception {
+		AtomicInteger active = new AtomicInteger();
+		AtomicInteger maxActive = new AtomicInteger();
+		SyncScheduler scheduler = new SyncScheduler(new ISyncJobHandler() {
+			@Override
+			public void onFailure(SyncJob job, Exception cause) {
+			}
+
+			@Override
+			public void process(SyncJob job) throws Exception {
+				maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+				Thread.sleep(20);
+				active.decrementAndGet();
+			}
+		}, Long.MAX_VALUE, 10, 3);
+		scheduler.setConcurrency(FOLDER, 2);
+
+		for (int i = 0; i < 8; i++) {
+			scheduler.submit(operation(i, "file" + i), FOLDER, false, 100, 1000);
+		}
+		scheduler.start(4, 0);
+		assertTrue(scheduler.drain(5000));
+		scheduler.stop();
+
+		assertEquals(2, maxActive.get());
+	}
+}
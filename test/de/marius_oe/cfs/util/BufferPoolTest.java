@@ -0,0 +1,114 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Tests for the {@link BufferPool} class.
+ */
+public class BufferPoolTest {
+
+	/**
+	 * Testing that sizes are rounded up to their class and released buffers
+	 * are reused.
+	 */
+	@Test
+	public void acquire_01() throws InterruptedException {
+		BufferPool pool = new BufferPool(100000, BufferPool.MAX_SIZE * 4L);
+		assertEquals(131072, pool.getBufferSize());
+
+		byte[] buffer = pool.acquire();
+		assertEquals(131072, buffer.length);
+		assertEquals(BufferPool.MIN_SIZE, pool.acquire(1).length);
+		pool.release(buffer);
+
+		assertSame(buffer, pool.acquire(131072));
+		assertEquals(131072 + BufferPool.MIN_SIZE, pool.getAllocated());
+	}
+
+	/**
+	 * Testing that the limit is never exceeded and callers wait for a
+	 * released buffer which they reuse.
+	 */
+	@Test
+	public void acquire_02() throws Exception {
+		BufferPool pool = new BufferPool(BufferPool.MAX_SIZE, BufferPool.MAX_SIZE * 2L);
+		byte[] first = pool.acquire();
+		pool.release(pool.acquire(BufferPool.MIN_SIZE));
+
+		CountDownLatch acquired = new CountDownLatch(1);
+		AtomicReference<byte[]> second = new AtomicReference<>();
+		Thread thread = new Thread(() -> {
+			try {
+				// drops the pooled small buffer, then has to wait
+				pool.acquire();
+				second.set(pool.acquire());
+				acquired.countDown();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		thread.start();
+
+		assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+		assertEquals(BufferPool.MAX_SIZE * 2L, pool.getAllocated());
+
+		pool.release(first);
+		assertTrue(acquired.await(5, TimeUnit.SECONDS));
+		assertSame(first, second.get());
+		assertEquals(BufferPool.MAX_SIZE * 2L, pool.getAllocated());
+	}
+
+	/**
+	 * Testing that a waiting caller can be interrupted.
+	 */
+	@Test
+	public void acquire_03() throws Exception {
+		BufferPool pool = new BufferPool(BufferPool.MAX_SIZE, BufferPool.MAX_SIZE);
+		pool.acquire();
+
+		CountDownLatch interrupted = new CountDownLatch(1);
+		Thread thread = new Thread(() -> {
+			try {
+				pool.acquire();
+			} catch (InterruptedException e) {
+				interrupted.countDown();
+			}
+		});
+		thread.start();
+		thread.interrupt();
+
+		assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+		assertEquals(BufferPool.MAX_SIZE, pool.getAllocated());
+	}
+}
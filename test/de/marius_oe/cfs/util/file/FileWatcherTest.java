@@ -0,0 +1,158 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs.util.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the {@link FileWatcher} class.
+ */
+public class FileWatcherTest {
+
+	private final BlockingQueue<Path> created = new LinkedBlockingQueue<>();
+
+	private Path root;
+
+	private FileWatcher watcher;
+
+	@Before
+	public void setUp() throws IOException {
+		root = Files.createTempDirectory("cfs");
+		Files.createDirectories(root.resolve("sub"));
+		Files.createDirectories(root.resolve("node_modules"));
+		for (int i = 0; i < 8; i++) {
+			Files.createDirectories(root.resolve("shard/" + i));
+		}
+	}
+
+	/**
+	 * Starts a watcher with the given number of shards.
+	 */
+	private void startWatcher(int shards) throws IOException {
+		watcher = new FileWatcher(shards);
+		watcher.registerFileListener(new IFileListener() {
+			@Override
+			public void onCreate(Path file) {
+				created.add(file);
+			}
+
+			@Override
+			public void onDelete(Path file) {
+			}
+
+			@Override
+			public void onModify(Path file) {
+			}
+		});
+		watcher.registerAll(root, IgnoreMatcher.compile(root, Arrays.asList("node_modules/", "*.tmp")));
+		new Thread(watcher).start();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		watcher.stopWatching();
+		FileUtils.deleteDirectory(root.toFile());
+	}
+
+	/**
+	 * Testing that listeners receive absolute paths and ignored files are
+	 * skipped.
+	 */
+	@Test
+	public void processEvents_01() throws Exception {
+		startWatcher(1);
+
+		Files.createFile(root.resolve("node_modules/module.js"));
+		Files.createFile(root.resolve("sub/file.tmp"));
+		Files.createFile(root.resolve("sub/file.txt"));
+
+		Path file = created.poll(10, TimeUnit.SECONDS);
+		assertEquals(root.resolve("sub/file.txt").toAbsolutePath(), file);
+		assertNull(created.poll(200, TimeUnit.MILLISECONDS));
+	}
+
+	/**
+	 * Testing that the events of all shards are delivered.
+	 */
+	@Test
+	public void processEvents_02() throws Exception {
+		startWatcher(4);
+
+		Set<Path> expected = new HashSet<>();
+		for (int i = 0; i < 8; i++) {
+			expected.add(Files.createFile(root.resolve("shard/" + i + "/file.txt")));
+		}
+
+		Set<Path> received = new HashSet<>();
+		for (int i = 0; i < 8; i++) {
+			received.add(created.poll(10, TimeUnit.SECONDS));
+		}
+		assertEquals(expected, received);
+	}
+
+	/**
+	 * Testing that a directory moved into the tree is watched and that the
+	 * entries it already contains are reported.
+	 */
+	@Test
+	public void processEvents_03() throws Exception {
+		startWatcher(1);
+
+		Path outside = Files.createTempDirectory("cfs");
+		try {
+			Files.createDirectories(outside.resolve("moved/nested"));
+			Files.createFile(outside.resolve("moved/file.txt"));
+			Files.createFile(outside.resolve("moved/nested/file.txt"));
+			Path moved = Files.move(outside.resolve("moved"), root.resolve("moved"));
+
+			Set<Path> expected = new HashSet<>(Arrays.asList(moved, moved.resolve("nested"), moved.resolve("file.txt"),
+					moved.resolve("nested/file.txt")));
+			Set<Path> received = new HashSet<>();
+			for (int i = 0; i < expected.size(); i++) {
+				received.add(created.poll(10, TimeUnit.SECONDS));
+			}
+			assertEquals(expected, received);
+
+			Path file = Files.createFile(moved.resolve("nested/new.txt"));
+			assertEquals(file, created.poll(10, TimeUnit.SECONDS));
+		} finally {
+			FileUtils.deleteDirectory(outside.toFile());
+		}
+	}
+}
@@ -0,0 +1,96 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs.util.file;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Tests for the {@link IgnoreMatcher} class.
+ */
+public class IgnoreMatcherTest {
+
+	private final Path root = Paths.get("/sync/project").toAbsolutePath();
+
+	private final IgnoreMatcher matcher = IgnoreMatcher.compile(root, Arrays.asList(
+			"# build output",
+			"node_modules/",
+			"/build",
+			"*.tmp",
+			"!keep.tmp",
+			"docs/**/draft-?.txt",
+			"**/cache/*.bin",
+			"[Tt]humbs.db"));
+
+	/**
+	 * Testing names without wildcards and directory-only patterns.
+	 */
+	@Test
+	public void isIgnored_01() {
+		assertTrue(matcher.isIgnored(root.resolve("node_modules"), true));
+		assertTrue(matcher.isIgnored(root.resolve("web/node_modules"), true));
+		assertFalse(matcher.isIgnored(root.resolve("node_modules"), false));
+	}
+
+	/**
+	 * Testing anchored patterns.
+	 */
+	@Test
+	public void isIgnored_02() {
+		assertTrue(matcher.isIgnored(root.resolve("build"), true));
+		assertFalse(matcher.isIgnored(root.resolve("src/build"), true));
+		assertTrue(matcher.isIgnored(Paths.get("build"), true));
+	}
+
+	/**
+	 * Testing wildcards and negation.
+	 */
+	@Test
+	public void isIgnored_03() {
+		assertTrue(matcher.isIgnored(root.resolve("a/b/file.tmp"), false));
+		assertFalse(matcher.isIgnored(root.resolve("a/b/keep.tmp"), false));
+		assertTrue(matcher.isIgnored(root.resolve("docs/draft-1.txt"), false));
+		assertTrue(matcher.isIgnored(root.resolve("docs/2015/05/draft-2.txt"), false));
+		assertFalse(matcher.isIgnored(root.resolve("docs/draft-10.txt"), false));
+		assertTrue(matcher.isIgnored(root.resolve("x/cache/data.bin"), false));
+		assertTrue(matcher.isIgnored(root.resolve("cache/data.bin"), false));
+		assertTrue(matcher.isIgnored(root.resolve("pictures/thumbs.db"), false));
+		assertFalse(matcher.isIgnored(root.resolve("pictures/humbs.db"), false));
+	}
+
+	/**
+	 * Testing paths outside of the root and the root itself.
+	 */
+	@Test
+	public void isIgnored_04() {
+		assertFalse(matcher.isIgnored(root, true));
+		assertFalse(matcher.isIgnored(Paths.get("/other/file.tmp").toAbsolutePath(), false));
+		assertFalse(IgnoreMatcher.none(root).isIgnored(root.resolve("file.tmp"), false));
+	}
+}
@@ -0,0 +1,121 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs.util.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the {@link PollingScanner} class.
+ */
+public class PollingScannerTest {
+
+	private final List<String> events = new CopyOnWriteArrayList<>();
+
+	private Path root;
+
+	private PollingScanner scanner;
+
+	@Before
+	public void setUp() throws IOException {
+		root = Files.createTempDirectory("cfs").toAbsolutePath();
+		Files.createDirectories(root.resolve("sub/deep"));
+		Files.write(root.resolve("sub/modified.txt"), new byte[1]);
+		Files.write(root.resolve("sub/deep/deleted.txt"), new byte[1]);
+
+		scanner = new PollingScanner(10, 1000, 2);
+		scanner.registerFileListener(new IFileListener() {
+			@Override
+			public void onCreate(Path file) {
+				events.add("create " + root.relativize(file));
+			}
+
+			@Override
+			public void onDelete(Path file) {
+				events.add("delete " + root.relativize(file));
+			}
+
+			@Override
+			public void onModify(Path file) {
+				events.add("modify " + root.relativize(file));
+			}
+		});
+		scanner.registerAll(root, IgnoreMatcher.compile(root, Arrays.asList("*.tmp")));
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		scanner.stopWatching();
+		FileUtils.deleteDirectory(root.toFile());
+	}
+
+	/**
+	 * Testing that the registration doesn't report the existing files.
+	 */
+	@Test
+	public void scan_01() {
+		assertEquals(0, scanner.scan());
+		assertTrue(events.isEmpty());
+	}
+
+	/**
+	 * Testing that created, modified and deleted files are reported.
+	 */
+	@Test
+	public void scan_02() throws IOException {
+		Files.write(root.resolve("sub/created.txt"), new byte[1]);
+		Files.write(root.resolve("sub/ignored.tmp"), new byte[1]);
+		Files.write(root.resolve("sub/modified.txt"), new byte[2]);
+		FileUtils.deleteDirectory(root.resolve("sub/deep").toFile());
+
+		assertEquals(4, scanner.scan());
+
+		Collections.sort(events);
+		assertEquals(Arrays.asList("create sub/created.txt", "delete sub/deep", "delete sub/deep/deleted.txt", "modify sub/modified.txt"), events);
+	}
+
+	/**
+	 * Testing that an unregistered tree is not scanned anymore.
+	 */
+	@Test
+	public void unregisterAll_01() throws IOException {
+		scanner.unregisterAll(root);
+		Files.write(root.resolve("sub/created.txt"), new byte[1]);
+
+		assertEquals(0, scanner.scan());
+		assertTrue(events.isEmpty());
+	}
+}
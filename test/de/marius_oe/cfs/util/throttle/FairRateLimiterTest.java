@@ -0,0 +1,86 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs.util.throttle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests for the {@link FairRateLimiter} class.
+ */
+public class FairRateLimiterTest {
+
+	/**
+	 * Testing that the rate of the bucket is not exceeded.
+	 */
+	@Test
+	public void acquire_01() throws InterruptedException {
+		FairRateLimiter limiter = new FairRateLimiter(new TokenBucket(10000, 1000));
+
+		long start = System.nanoTime();
+		for (int i = 0; i < 30; i++) {
+			limiter.acquire("folder", 100, false);
+		}
+
+		// 1000 tokens are available immediately, 2000 take 200 ms
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 150);
+	}
+
+	/**
+	 * Testing that priority requests are granted first.
+	 */
+	@Test
+	public void acquire_02() throws InterruptedException {
+		final FairRateLimiter limiter = new FairRateLimiter(new TokenBucket(10000, 1));
+		final List<String> order = new CopyOnWriteArrayList<>();
+
+		// drive the bucket 200 ms into debt
+		limiter.acquire("large", 2000, false);
+
+		Thread large = new Thread(() -> acquire(limiter, order, "large", false));
+		large.start();
+		Thread.sleep(50);
+		Thread small = new Thread(() -> acquire(limiter, order, "small", true));
+		small.start();
+
+		large.join();
+		small.join();
+		assertEquals("small", order.get(0));
+		assertEquals("large", order.get(1));
+	}
+
+	private void acquire(FairRateLimiter limiter, List<String> order, String flow, boolean priority) {
+		try {
+			limiter.acquire(flow, 10, priority);
+			order.add(flow);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,95 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Marius Oehler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.marius_oe.cfs.util.throttle;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.junit.Test;
+
+import de.marius_oe.cfs.configuration.ConfigurationSnapshot;
+
+/**
+ * Tests for the {@link IoThrottle} class.
+ */
+public class IoThrottleTest {
+
+	private static final Path folder = Paths.get("/data/docs").toAbsolutePath();
+
+	/**
+	 * Returns the milliseconds it takes to store 3000 bytes with the given
+	 * limit.
+	 */
+	private long store(String key, String prefix) throws IOException {
+		Properties properties = new Properties();
+		properties.setProperty("read_limit", "0");
+		properties.setProperty("write_limit", "0");
+		properties.setProperty("upload_limit", "0");
+		properties.setProperty("iops_limit", "0");
+		properties.setProperty("small_file_size", "0");
+		properties.setProperty("folders", "docs");
+		properties.setProperty("folder.docs.path", folder.toString());
+		properties.setProperty(prefix + key, "10000");
+		IoThrottle throttle = new IoThrottle(new ConfigurationSnapshot(properties));
+
+		long start = System.nanoTime();
+		try (OutputStream out = throttle.throttleStore(new NullOutputStream(), folder, 3000)) {
+			for (int i = 0; i < 30; i++) {
+				out.write(new byte[100]);
+			}
+		}
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+	}
+
+	/**
+	 * Testing that the write limit applies to stored files.
+	 */
+	@Test
+	public void throttleStore_01() throws IOException {
+		// the bucket starts empty, 3000 bytes take 300 ms
+		assertTrue(store("write_limit", "") >= 200);
+	}
+
+	/**
+	 * Testing that the upload limit applies to stored files.
+	 */
+	@Test
+	public void throttleStore_02() throws IOException {
+		assertTrue(store("upload_limit", "") >= 200);
+	}
+
+	/**
+	 * Testing that the bandwidth limit of the folder applies to stored files.
+	 */
+	@Test
+	public void throttleStore_03() throws IOException {
+		assertTrue(store("bandwidth_limit", "folder.docs.") >= 200);
+	}
+}